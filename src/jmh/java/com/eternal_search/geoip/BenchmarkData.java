@@ -0,0 +1,124 @@
+package com.eternal_search.geoip;
+
+import com.eternal_search.geoip.maxmind.MaxMindBlockParser;
+import com.eternal_search.geoip.maxmind.MaxMindDatasetGenerator;
+import com.eternal_search.geoip.maxmind.MaxMindLocationParser;
+import com.eternal_search.geoip.maxmind.model.MaxMindBlock;
+import com.eternal_search.geoip.maxmind.model.MaxMindLocation;
+import com.eternal_search.geoip.memory.GeoIPBlockIndex;
+import com.eternal_search.geoip.memory.GeoIPLocationStore;
+import com.eternal_search.geoip.memory.GeoIPSnapshot;
+import com.eternal_search.geoip.model.GeoIPBlock;
+import com.eternal_search.geoip.model.GeoIPLocation;
+import com.eternal_search.geoip.model.GeoIPTimezone;
+import lombok.SneakyThrows;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Generated data shared by the benchmarks, a quarter of the blocks is IPv6
+public final class BenchmarkData {
+	public static final List<String> LOCALES = Collections.unmodifiableList(Arrays.asList("en", "de", "ru"));
+	public static final String MIX_IPV4_HIT = "ipv4-hit";
+	public static final String MIX_IPV4_MISS = "ipv4-miss";
+	public static final String MIX_IPV6_HIT = "ipv6-hit";
+	public static final String MIX_IPV6_MISS = "ipv6-miss";
+	public static final String MIX_MIXED = "mixed";
+	
+	private final MaxMindDatasetGenerator generator;
+	
+	public BenchmarkData(int blockCount) {
+		generator = MaxMindDatasetGenerator.builder()
+				.ipv4Blocks(blockCount - blockCount / 4)
+				.ipv6Blocks(blockCount / 4)
+				.locales(LOCALES)
+				.build();
+	}
+	
+	// IPv4 blocks come first
+	public MaxMindBlock[] maxMindBlocks() {
+		return Stream.concat(generator.blocks(false), generator.blocks(true)).toArray(MaxMindBlock[]::new);
+	}
+	
+	public List<MaxMindLocation> maxMindLocations(String localeCode) {
+		return generator.locations(localeCode).collect(Collectors.toList());
+	}
+	
+	@SneakyThrows(IOException.class)
+	public String blocksCsv() {
+		StringWriter writer = new StringWriter();
+		generator.writeBlocks(writer, false);
+		return writer.toString();
+	}
+	
+	@SneakyThrows(IOException.class)
+	public String locationsCsv(String localeCode) {
+		StringWriter writer = new StringWriter();
+		generator.writeLocations(writer, localeCode);
+		return writer.toString();
+	}
+	
+	public GeoIPSnapshot snapshot() {
+		MaxMindBlock[] maxMindBlocks = maxMindBlocks();
+		GeoIPBlockIndex.Builder blocks = GeoIPBlockIndex.builder(maxMindBlocks.length);
+		for (MaxMindBlock maxMindBlock : maxMindBlocks) {
+			GeoIPBlock block = MaxMindBlockParser.parse(maxMindBlock);
+			blocks.add(block.getStartHigh(), block.getStartLow(), block.getStopHigh(), block.getStopLow(), block);
+		}
+		GeoIPLocationStore.Builder locations = GeoIPLocationStore.builder();
+		// Same as the importer, the first locale gives the structure and the others only their names
+		MaxMindLocationParser.Result result = generator.locations(LOCALES.get(0))
+				.collect(new MaxMindLocationParser());
+		Map<Long, String> timezones = new HashMap<>();
+		for (GeoIPTimezone timezone : result.getTimezones()) {
+			timezones.put(timezone.getId(), timezone.getName());
+		}
+		for (String localeCode : LOCALES) {
+			MaxMindLocationParser.LocationTree.LocaleNames names = result.localeNames(localeCode);
+			generator.locations(localeCode).forEach(names::add);
+			for (GeoIPLocation location : names.getLocations()) {
+				locations.add(
+						localeCode,
+						location.getId(),
+						location.getParentId(),
+						location.getLevel(),
+						location.getName(),
+						location.getCode(),
+						location.getIsInEuropeanUnion(),
+						timezones.get(location.getTimezoneId())
+				);
+			}
+		}
+		return new GeoIPSnapshot(blocks.build(), locations.build(), LOCALES, Instant.EPOCH);
+	}
+	
+	public String[] addresses(String mix, int count) {
+		Random random = new Random(count);
+		String[] addresses = new String[count];
+		for (int i = 0; i < count; i++) {
+			String kind = mix;
+			if (MIX_MIXED.equals(mix)) {
+				// Mostly IPv4 traffic with a share of IPv6 and unknown addresses
+				int roll = random.nextInt(100);
+				kind = roll < 70 ? MIX_IPV4_HIT : roll < 90 ? MIX_IPV6_HIT : roll < 95 ? MIX_IPV4_MISS : MIX_IPV6_MISS;
+			}
+			boolean ipv6 = MIX_IPV6_HIT.equals(kind) || MIX_IPV6_MISS.equals(kind);
+			boolean hit = MIX_IPV4_HIT.equals(kind) || MIX_IPV6_HIT.equals(kind);
+			if (!ipv6 && !hit && !MIX_IPV4_MISS.equals(kind)) {
+				throw new IllegalArgumentException("Unknown address mix: " + mix);
+			}
+			int blocks = ipv6 ? generator.getIpv6Blocks() : generator.getIpv4Blocks();
+			addresses[i] = generator.address(ipv6, random.nextInt(Math.max(blocks, 1)), hit, random.nextLong());
+		}
+		return addresses;
+	}
+}
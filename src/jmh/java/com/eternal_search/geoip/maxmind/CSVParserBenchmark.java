@@ -0,0 +1,66 @@
+package com.eternal_search.geoip.maxmind;
+
+import com.eternal_search.geoip.BenchmarkData;
+import com.eternal_search.geoip.maxmind.model.MaxMindBlock;
+import com.eternal_search.geoip.maxmind.model.MaxMindLocation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CSVParserBenchmark {
+	@Param({"10000", "100000"})
+	int blocks;
+	
+	private String blocksCsv;
+	private String locationsCsv;
+	
+	@Setup
+	public void setUp() {
+		BenchmarkData data = new BenchmarkData(blocks);
+		blocksCsv = data.blocksCsv();
+		locationsCsv = data.locationsCsv("de");
+	}
+	
+	@Benchmark
+	public void readBlocks(Blackhole blackhole) {
+		CSVParser<MaxMindBlock> parser = new CSVParser<>(new StringReader(blocksCsv), MaxMindBlock.class);
+		for (MaxMindBlock block = parser.readEntry(); block != null; block = parser.readEntry()) {
+			blackhole.consume(block);
+		}
+	}
+	
+	@Benchmark
+	public void readLocations(Blackhole blackhole) {
+		CSVParser<MaxMindLocation> parser = new CSVParser<>(new StringReader(locationsCsv), MaxMindLocation.class);
+		for (MaxMindLocation location = parser.readEntry(); location != null; location = parser.readEntry()) {
+			blackhole.consume(location);
+		}
+	}
+	
+	// Same as readBlocks, but through the Multi the updater subscribes to
+	@Benchmark
+	public long streamBlocks() {
+		return new CSVParser<>(new StringReader(blocksCsv), MaxMindBlock.class).multi()
+				.collectItems().with(Collectors.counting())
+				.await().indefinitely();
+	}
+}
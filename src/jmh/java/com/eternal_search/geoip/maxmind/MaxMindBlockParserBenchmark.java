@@ -0,0 +1,49 @@
+package com.eternal_search.geoip.maxmind;
+
+import com.eternal_search.geoip.BenchmarkData;
+import com.eternal_search.geoip.maxmind.model.MaxMindBlock;
+import com.eternal_search.geoip.model.GeoIPBlock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MaxMindBlockParserBenchmark {
+	private static final int BLOCK_COUNT = 4096;
+	
+	@Param({"ipv4", "ipv6"})
+	String family;
+	
+	private MaxMindBlock[] blocks;
+	private int next;
+	
+	@Setup
+	public void setUp() {
+		// A quarter of the generated networks are IPv6 and those come last
+		MaxMindBlock[] all = new BenchmarkData(BLOCK_COUNT * 4).maxMindBlocks();
+		blocks = "ipv4".equals(family) ?
+				Arrays.copyOfRange(all, 0, BLOCK_COUNT) :
+				Arrays.copyOfRange(all, all.length - BLOCK_COUNT, all.length);
+	}
+	
+	@Benchmark
+	public GeoIPBlock parse() {
+		return MaxMindBlockParser.parse(blocks[next++ & (BLOCK_COUNT - 1)]);
+	}
+}
@@ -0,0 +1,59 @@
+package com.eternal_search.geoip.maxmind;
+
+import com.eternal_search.geoip.BenchmarkData;
+import com.eternal_search.geoip.maxmind.model.MaxMindLocation;
+import com.eternal_search.geoip.model.GeoIPLocation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MaxMindLocationParserBenchmark {
+	// Block counts, the data has a city per 20 blocks like GeoLite2 City does
+	@Param({"100000", "2000000"})
+	int blocks;
+	
+	private List<MaxMindLocation> locations;
+	
+	@Setup
+	public void setUp() {
+		locations = new BenchmarkData(blocks).maxMindLocations("de");
+	}
+	
+	// Locations are materialized while the result is iterated, so that is part of the measurement
+	@Benchmark
+	public void collect(Blackhole blackhole) {
+		MaxMindLocationParser.Result result = locations.stream().collect(new MaxMindLocationParser());
+		for (GeoIPLocation location : result.getLocations()) {
+			blackhole.consume(location);
+		}
+		blackhole.consume(result.getTimezones());
+	}
+	
+	// Chunks are accumulated on the common fork/join pool and merged with the combiner
+	@Benchmark
+	public void collectParallel(Blackhole blackhole) {
+		MaxMindLocationParser.Result result = locations.parallelStream().collect(new MaxMindLocationParser());
+		for (GeoIPLocation location : result.getLocations()) {
+			blackhole.consume(location);
+		}
+		blackhole.consume(result.getTimezones());
+	}
+}
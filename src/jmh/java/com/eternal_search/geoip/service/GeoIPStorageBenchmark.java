@@ -0,0 +1,126 @@
+package com.eternal_search.geoip.service;
+
+import com.eternal_search.geoip.BenchmarkData;
+import com.eternal_search.geoip.maxmind.MaxMindBlockParser;
+import com.eternal_search.geoip.maxmind.model.MaxMindBlock;
+import com.eternal_search.geoip.memory.GeoIPSnapshot;
+import com.eternal_search.geoip.mmdb.MmdbRecords;
+import com.eternal_search.geoip.mmdb.MmdbWriter;
+import com.eternal_search.geoip.model.GeoIPBlock;
+import com.eternal_search.geoip.model.dto.GeoIPAddressDTO;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Covers the storages that don't need a running database, the database storage is measured against a real server
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class GeoIPStorageBenchmark {
+	private static final int ADDRESS_COUNT = 4096;
+	private static final String LOCALE_CODE = "de";
+	private static final long CACHE_SIZE = 64L * 1024 * 1024;
+	private static final long IPV4_TABLE_SIZE = 64L * 1024 * 1024;
+	
+	@Param({"10000", "1000000"})
+	int blocks;
+	
+	@Param({"memory", "memory-ipv4-table", "mmdb", "memory-cached"})
+	String engine;
+	
+	@Param({
+			BenchmarkData.MIX_IPV4_HIT,
+			BenchmarkData.MIX_IPV4_MISS,
+			BenchmarkData.MIX_IPV6_HIT,
+			BenchmarkData.MIX_IPV6_MISS,
+			BenchmarkData.MIX_MIXED
+	})
+	String mix;
+	
+	private GeoIPMetrics metrics;
+	private GeoIPStorage storage;
+	private String[] addresses;
+	private Path mmdbFile;
+	private int next;
+	
+	@Setup
+	public void setUp() throws IOException {
+		BenchmarkData data = new BenchmarkData(blocks);
+		GeoIPSnapshot snapshot = data.snapshot();
+		addresses = data.addresses(mix, ADDRESS_COUNT);
+		// Lookups are timed in production as well, so the meters stay in
+		metrics = new GeoIPMetrics(new SimpleMeterRegistry());
+		GeoIPMemoryStorage memoryStorage = new GeoIPMemoryStorage();
+		memoryStorage.metrics = metrics;
+		if ("memory-ipv4-table".equals(engine)) {
+			memoryStorage.ipv4TableMaxMemory = IPV4_TABLE_SIZE;
+		}
+		memoryStorage.publish(snapshot);
+		switch (engine) {
+			case "memory":
+			case "memory-ipv4-table":
+				storage = memoryStorage;
+				break;
+			case "memory-cached":
+				storage = new GeoIPCachingStorage(memoryStorage, CACHE_SIZE);
+				break;
+			case "mmdb":
+				storage = openMmdb(data, snapshot);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown engine: " + engine);
+		}
+	}
+	
+	private GeoIPStorage openMmdb(BenchmarkData data, GeoIPSnapshot snapshot) throws IOException {
+		MmdbWriter writer = new MmdbWriter(MmdbRecords.DATABASE_TYPE, BenchmarkData.LOCALES, "Benchmark");
+		for (MaxMindBlock maxMindBlock : data.maxMindBlocks()) {
+			GeoIPBlock block = MaxMindBlockParser.parse(maxMindBlock);
+			writer.insert(
+					block.getStartHigh(), block.getStartLow(), block.getStopHigh(), block.getStopLow(),
+					MmdbRecords.toRecord(block, BenchmarkData.LOCALES, snapshot.getLocations())
+			);
+		}
+		mmdbFile = Files.createTempFile("geoip-benchmark", ".mmdb");
+		try (OutputStream output = Files.newOutputStream(mmdbFile)) {
+			writer.write(output);
+		}
+		GeoIPMmdbStorage mmdbStorage = new GeoIPMmdbStorage();
+		mmdbStorage.metrics = metrics;
+		mmdbStorage.path = mmdbFile.toString();
+		mmdbStorage.reload();
+		return mmdbStorage;
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		if (mmdbFile != null) {
+			Files.deleteIfExists(mmdbFile);
+		}
+	}
+	
+	@Benchmark
+	public GeoIPAddressDTO findAddress() {
+		return storage.findAddress(addresses[next++ & (ADDRESS_COUNT - 1)], LOCALE_CODE)
+				.await().indefinitely();
+	}
+}
@@ -0,0 +1,44 @@
+package com.eternal_search.geoip.util;
+
+import com.eternal_search.geoip.BenchmarkData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IPAddressParserBenchmark {
+	private static final int ADDRESS_COUNT = 4096;
+	
+	@Param({BenchmarkData.MIX_IPV4_HIT, BenchmarkData.MIX_IPV6_HIT})
+	String mix;
+	
+	private String[] addresses;
+	private final long[] key = new long[2];
+	private int next;
+	
+	@Setup
+	public void setUp() {
+		addresses = new BenchmarkData(100000).addresses(mix, ADDRESS_COUNT);
+	}
+	
+	@Benchmark
+	public long[] parse() {
+		IPAddressParser.parse(addresses[next++ & (ADDRESS_COUNT - 1)], key);
+		return key;
+	}
+}
@@ -0,0 +1,33 @@
+package com.eternal_search.geoip;
+
+import com.eternal_search.geoip.model.dto.GeoIPAddressDTO;
+import com.eternal_search.geoip.service.GeoIPMetrics;
+
+import javax.inject.Inject;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import java.io.IOException;
+import java.util.List;
+
+// Times the last lookup phase, writing single and batch lookup results as JSON
+@Provider
+public class GeoIPSerializationInterceptor implements WriterInterceptor {
+	@Inject
+	GeoIPMetrics metrics;
+	
+	@Override
+	public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+		Object entity = context.getEntity();
+		if (!(entity instanceof GeoIPAddressDTO) && !(entity instanceof List)) {
+			context.proceed();
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			context.proceed();
+		} finally {
+			metrics.recordPhase(GeoIPMetrics.Phase.SERIALIZATION, start);
+		}
+	}
+}
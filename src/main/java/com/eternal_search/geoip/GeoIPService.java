@@ -1,21 +1,27 @@
 package com.eternal_search.geoip;
 
+import com.eternal_search.geoip.model.dto.GeoIPAddressBatchDTO;
 import com.eternal_search.geoip.model.dto.GeoIPAddressDTO;
 import com.eternal_search.geoip.model.dto.GeoIPStatusDTO;
 import com.eternal_search.geoip.model.dto.GeoIPUpdateDTO;
+import com.eternal_search.geoip.service.GeoIPDatabase;
+import com.eternal_search.geoip.service.GeoIPMetrics;
 import com.eternal_search.geoip.service.GeoIPStorage;
 import com.eternal_search.geoip.service.GeoIPUpdater;
 import io.smallrye.mutiny.Multi;
 import io.smallrye.mutiny.Uni;
 import lombok.SneakyThrows;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.jboss.resteasy.annotations.jaxrs.PathParam;
 import org.jboss.resteasy.annotations.providers.multipart.MultipartForm;
 
 import javax.inject.Inject;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
 
 @Path("/geoip")
 @Produces(MediaType.APPLICATION_JSON)
@@ -26,16 +32,46 @@ public class GeoIPService {
 	@Inject
 	GeoIPUpdater geoIPUpdater;
 	
+	@Inject
+	GeoIPDatabase geoIPDatabase;
+	
+	@Inject
+	GeoIPMetrics metrics;
+	
+	@ConfigProperty(name = "geoip.batch.max-addresses", defaultValue = "10000")
+	int maxBatchAddresses;
+	
 	@GET
 	@Path("/address/{address}/{localeCode}")
 	public Uni<GeoIPAddressDTO> find(@PathParam String address, @PathParam String localeCode) {
+		long start = System.nanoTime();
 		return geoIPStorage.findAddress(address, localeCode)
+				.invoke(result -> metrics.recordLookup(address, result != null, start))
+				.onFailure(IllegalArgumentException.class)
+				.transform(error -> new WebApplicationException(error.getMessage(), 400))
 				.flatMap(result -> result != null ?
 					Uni.createFrom().item(result) :
 					Uni.createFrom().failure(new WebApplicationException("Address not found", 404))
 				);
 	}
 	
+	@POST
+	@Path("/addresses")
+	@Consumes(MediaType.APPLICATION_JSON)
+	public Uni<List<GeoIPAddressDTO>> findAll(GeoIPAddressBatchDTO batch) {
+		if (batch == null || batch.getAddresses() == null || batch.getLocaleCode() == null) {
+			return Uni.createFrom().failure(new WebApplicationException("Addresses and locale code are required", 400));
+		}
+		if (batch.getAddresses().size() > maxBatchAddresses) {
+			return Uni.createFrom().failure(new WebApplicationException(
+					"Too many addresses, at most " + maxBatchAddresses + " are allowed", 400
+			));
+		}
+		long start = System.nanoTime();
+		return geoIPStorage.findAddresses(batch.getAddresses(), batch.getLocaleCode())
+				.invoke(result -> metrics.recordBatchLookup(batch.getAddresses().size(), start));
+	}
+	
 	@GET
 	@Path("/locales")
 	public Multi<String> locales() {
@@ -57,6 +93,24 @@ public class GeoIPService {
 		geoIPUpdater.launchUpdate(update.getFile().getBody(InputStream.class, null));
 	}
 	
+	@POST
+	@Path("/update/rollback")
+	public Uni<Void> rollback() {
+		if (geoIPUpdater.isUpdating()) {
+			return Uni.createFrom().failure(new WebApplicationException("An update is in progress", 409));
+		}
+		return geoIPStorage.rollback()
+				.onFailure(IllegalStateException.class)
+				.transform(error -> new WebApplicationException(error.getMessage(), 409));
+	}
+	
+	@GET
+	@Path("/export/mmdb")
+	@Produces(MediaType.APPLICATION_OCTET_STREAM)
+	public StreamingOutput exportMmdb() {
+		return geoIPDatabase::exportMmdb;
+	}
+	
 	@GET
 	@Path("/status")
 	public Uni<GeoIPStatusDTO> status() {
@@ -64,6 +118,7 @@ public class GeoIPService {
 				GeoIPStatusDTO.builder()
 						.updatedAt(updatedAt)
 						.updating(geoIPUpdater.isUpdating())
+						.progress(geoIPUpdater.getProgress())
 						.build()
 		);
 	}
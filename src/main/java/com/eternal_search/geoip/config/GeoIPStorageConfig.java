@@ -0,0 +1,57 @@
+package com.eternal_search.geoip.config;
+
+import com.eternal_search.geoip.service.GeoIPCachingStorage;
+import com.eternal_search.geoip.service.GeoIPDatabase;
+import com.eternal_search.geoip.service.GeoIPMemoryStorage;
+import com.eternal_search.geoip.service.GeoIPMetrics;
+import com.eternal_search.geoip.service.GeoIPMmdbStorage;
+import com.eternal_search.geoip.service.GeoIPStorage;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Produces;
+
+@ApplicationScoped
+public class GeoIPStorageConfig {
+	public static final String DATABASE = "database";
+	public static final String MEMORY = "memory";
+	public static final String MMDB = "mmdb";
+	
+	@ConfigProperty(name = "geoip.storage", defaultValue = DATABASE)
+	String storage;
+	
+	@ConfigProperty(name = "geoip.cache.size", defaultValue = "67108864")
+	long cacheSize;
+	
+	@Produces
+	@ApplicationScoped
+	public GeoIPStorage geoIPStorage(
+			GeoIPDatabase database,
+			GeoIPMemoryStorage memoryStorage,
+			GeoIPMmdbStorage mmdbStorage,
+			GeoIPMetrics metrics
+	) {
+		GeoIPStorage backend = backend(database, memoryStorage, mmdbStorage);
+		if (cacheSize <= 0) return backend;
+		GeoIPCachingStorage cache = new GeoIPCachingStorage(backend, cacheSize);
+		metrics.bindCache(cache);
+		return cache;
+	}
+	
+	private GeoIPStorage backend(
+			GeoIPDatabase database,
+			GeoIPMemoryStorage memoryStorage,
+			GeoIPMmdbStorage mmdbStorage
+	) {
+		switch (storage) {
+			case DATABASE:
+				return database;
+			case MEMORY:
+				return memoryStorage;
+			case MMDB:
+				return mmdbStorage;
+			default:
+				throw new IllegalArgumentException("Unsupported GeoIP storage: " + storage);
+		}
+	}
+}
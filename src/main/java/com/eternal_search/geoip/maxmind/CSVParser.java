@@ -4,18 +4,23 @@ import io.smallrye.mutiny.Multi;
 import lombok.SneakyThrows;
 import lombok.extern.jbosslog.JBossLog;
 
-import java.lang.reflect.Constructor;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 @JBossLog
 @SuppressWarnings("CdiInjectionPointsInspection")
 public class CSVParser<T> {
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int MAX_COLUMNS = 256;
+	private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
 	private static final Map<Class<?>, ValueConverter> CONVERTERS = new HashMap<Class<?>, ValueConverter>() {{
 		put(Boolean.class, value -> !value.equals("0"));
 		put(Byte.class, Byte::valueOf);
@@ -27,33 +32,46 @@ public class CSVParser<T> {
 		put(String.class, value -> value);
 	}};
 	
-	private final Scanner scanner;
-	private final Constructor<T> constructor;
-	private final Method[] setters;
+	private final Reader reader;
+	private final char[] buffer = new char[BUFFER_SIZE];
+	private final StringBuilder fieldBuilder = new StringBuilder();
+	private int position;
+	private int limit;
+	private long recordNumber;
+	private final MethodHandle constructor;
+	private final MethodHandle[] setters;
 	private final ValueConverter[] converters;
+	private final String[] fields;
 	
-	public CSVParser(Scanner scanner, Class<T> cls) {
-		this.scanner = scanner;
+	@SneakyThrows(IOException.class)
+	public CSVParser(Reader reader, Class<T> cls) {
+		this.reader = reader;
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
 		try {
-			constructor = cls.getDeclaredConstructor();
-		} catch (NoSuchMethodException e) {
-			throw new RuntimeException("Entry class should have default constructor", e);
+			constructor = lookup.findConstructor(cls, MethodType.methodType(void.class))
+					.asType(MethodType.methodType(Object.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new RuntimeException("Entry class should have public default constructor", e);
 		}
-		String[] headers = scanner.nextLine().split(",");
-		setters = new Method[headers.length];
+		String[] headerFields = new String[MAX_COLUMNS];
+		int headerCount = Math.max(readRecord(headerFields), 0);
+		String[] headers = Arrays.copyOf(headerFields, Math.min(headerCount, MAX_COLUMNS));
+		fields = new String[headers.length];
+		setters = new MethodHandle[headers.length];
 		converters = new ValueConverter[headers.length];
 		for (int i = 0; i < headers.length; i++) {
 			String fieldName = snakeCaseToCamelCase(headers[i]);
 			String setterName = getSetterMethodName(fieldName);
 			Field field;
-			Method method;
+			MethodHandle setter;
 			try {
 				field = cls.getDeclaredField(fieldName);
-				method = cls.getDeclaredMethod(setterName, field.getType());
+				setter = lookup.findVirtual(cls, setterName, MethodType.methodType(void.class, field.getType()))
+						.asType(SETTER_TYPE);
 			} catch (NoSuchFieldException e) {
 				log.warnf("Class %s doesn't have field %s found in input stream", cls.getName(), fieldName);
 				continue;
-			} catch (NoSuchMethodException e) {
+			} catch (NoSuchMethodException | IllegalAccessException e) {
 				log.warnf("Class %s doesn't have setter for field %s", cls.getName(), fieldName);
 				continue;
 			}
@@ -65,69 +83,170 @@ public class CSVParser<T> {
 				);
 				continue;
 			}
-			setters[i] = method;
+			setters[i] = setter;
 			converters[i] = converter;
 		}
 	}
 	
-	private static final Pattern CSV_PATTERN = Pattern.compile(
-			"(?:^|,)\\s*(?:(?:(?=\")\"([^\"].*?)\")|(?:(?!\")(.*?)))(?=,|$)"
-	);
+	private boolean fill() throws IOException {
+		if (position < limit) return true;
+		position = 0;
+		limit = Math.max(reader.read(buffer, 0, buffer.length), 0);
+		return limit > 0;
+	}
+	
+	private static boolean isDelimiter(char c) {
+		return c == ',' || c == '\n' || c == '\r';
+	}
 	
-	private static String[] parseLine(String line) {
-		List<String> result = new ArrayList<>();
-		Matcher matcher = CSV_PATTERN.matcher(line);
-		while (matcher.find()) {
-			if (matcher.start(1) >= 0) {
-				result.add(matcher.group(1));
+	private String readUnquoted() throws IOException {
+		if (!fill()) return "";
+		int start = position;
+		while (position < limit) {
+			if (isDelimiter(buffer[position])) {
+				return position > start ? new String(buffer, start, position - start) : "";
+			}
+			position++;
+		}
+		fieldBuilder.setLength(0);
+		fieldBuilder.append(buffer, start, position - start);
+		while (fill() && !isDelimiter(buffer[position])) {
+			fieldBuilder.append(buffer[position++]);
+		}
+		return fieldBuilder.toString();
+	}
+	
+	private String readQuoted() throws IOException {
+		fieldBuilder.setLength(0);
+		position++;
+		while (fill()) {
+			char c = buffer[position++];
+			if (c == '"') {
+				if (fill() && buffer[position] == '"') {
+					fieldBuilder.append('"');
+					position++;
+				} else {
+					break;
+				}
 			} else {
-				result.add(matcher.group(2));
+				fieldBuilder.append(c);
 			}
 		}
-		return result.toArray(new String[0]);
+		while (fill() && !isDelimiter(buffer[position])) {
+			position++;
+		}
+		return fieldBuilder.toString();
 	}
 	
-	@SneakyThrows({
-			IllegalAccessException.class, IllegalArgumentException.class,
-			InstantiationException.class, InvocationTargetException.class
-	})
-	public T readEntry() {
-		String[] entry;
+	private int readRecord(String[] values) throws IOException {
+		while (fill() && (buffer[position] == '\n' || buffer[position] == '\r')) {
+			position++;
+		}
+		if (!fill()) return -1;
+		recordNumber++;
+		int count = 0;
+		while (true) {
+			String value = fill() && buffer[position] == '"' ? readQuoted() : readUnquoted();
+			if (count < values.length) {
+				values[count] = value;
+			}
+			count++;
+			if (!fill()) return count;
+			char delimiter = buffer[position++];
+			if (delimiter == ',') continue;
+			if (delimiter == '\r' && fill() && buffer[position] == '\n') {
+				position++;
+			}
+			return count;
+		}
+	}
+	
+	private boolean readFields(String[] values) throws IOException {
+		int count;
 		do {
-			if (!hasNextEntry()) return null;
-			String line = scanner.nextLine();
-			entry = parseLine(line);
-			if (entry.length != setters.length) {
-				log.warnf("Invalid line format: %s", line);
+			count = readRecord(values);
+			if (count < 0) return false;
+			if (count != values.length) {
+				log.warnf("Invalid record %s: expected %s fields, got %s", recordNumber, values.length, count);
 			}
-		} while (entry.length != setters.length);
-		T entryObj = constructor.newInstance();
-		for (int i = 0; i < entry.length; i++) {
-			if (entry[i].isEmpty()) continue;
+		} while (count != values.length);
+		return true;
+	}
+	
+	@SneakyThrows(IOException.class)
+	public T readEntry() {
+		return readFields(fields) ? toEntry(fields) : null;
+	}
+	
+	// Raw values of the next record, converting them with toEntry is thread-safe and can be done elsewhere
+	@SneakyThrows(IOException.class)
+	public String[] readValues() {
+		String[] values = new String[fields.length];
+		return readFields(values) ? values : null;
+	}
+	
+	@SneakyThrows(Throwable.class)
+	public T toEntry(String[] values) {
+		Object entryObj = (Object) constructor.invokeExact();
+		for (int i = 0; i < values.length; i++) {
+			if (values[i].isEmpty()) continue;
 			if (setters[i] == null || converters[i] == null) continue;
-			Object value = converters[i].convert(entry[i]);
-			setters[i].invoke(entryObj, value);
+			Object value = converters[i].convert(values[i]);
+			setters[i].invokeExact(entryObj, value);
 		}
-		return entryObj;
+		@SuppressWarnings("unchecked")
+		T entry = (T) entryObj;
+		return entry;
 	}
 	
+	@SneakyThrows(IOException.class)
 	public boolean hasNextEntry() {
-		return scanner.hasNextLine();
+		return fill();
 	}
 	
 	public Multi<T> multi() {
-		return Multi.createFrom().emitter(emitter -> {
-			AtomicBoolean isTerminated = new AtomicBoolean();
-			emitter.onTermination(() -> isTerminated.set(true));
-			while (!isTerminated.get() && hasNextEntry()) {
-				T value = readEntry();
-				if (value != null) {
-					emitter.emit(value);
+		return multi(this::readEntry);
+	}
+	
+	// Lazy and sequential, for pipelines that are easier to write with plain iterators
+	public Stream<T> stream() {
+		return StreamSupport.stream(
+				Spliterators.spliteratorUnknownSize(iterator(this::readEntry), Spliterator.ORDERED | Spliterator.NONNULL),
+				false
+		);
+	}
+	
+	public Multi<String[]> valuesMulti() {
+		return multi(this::readValues);
+	}
+	
+	private static <X> Multi<X> multi(Supplier<X> reader) {
+		return Multi.createFrom().iterable(() -> iterator(reader))
+				.onCompletion().invoke(() -> log.info("Reached the end of input"));
+	}
+	
+	private static <X> Iterator<X> iterator(Supplier<X> reader) {
+		return new Iterator<X>() {
+			private X next;
+			
+			@Override
+			public boolean hasNext() {
+				if (next == null) {
+					next = reader.get();
+				}
+				return next != null;
+			}
+			
+			@Override
+			public X next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
 				}
+				X result = next;
+				next = null;
+				return result;
 			}
-			log.info("Reached the end of input");
-			emitter.complete();
-		});
+		};
 	}
 	
 	private static String getSetterMethodName(String fieldName) {
@@ -0,0 +1,76 @@
+package com.eternal_search.geoip.maxmind;
+
+import com.eternal_search.geoip.model.GeoIPBlock;
+import lombok.Getter;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+// Coalesces neighbouring networks that resolve to the same thing into a single range.
+// Blocks have to come in address order, as they do in MaxMind files, and are modified in place.
+public class MaxMindBlockMerger implements Iterator<GeoIPBlock> {
+	private final Iterator<GeoIPBlock> source;
+	private GeoIPBlock pending;
+	
+	@Getter
+	private long inputCount;
+	
+	@Getter
+	private long outputCount;
+	
+	public MaxMindBlockMerger(Iterator<GeoIPBlock> source) {
+		this.source = source;
+	}
+	
+	@Override
+	public boolean hasNext() {
+		return pending != null || source.hasNext();
+	}
+	
+	@Override
+	public GeoIPBlock next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		GeoIPBlock current = pending != null ? pending : read();
+		pending = null;
+		while (source.hasNext()) {
+			GeoIPBlock block = read();
+			if (!isAdjacent(current, block) || !hasSamePayload(current, block)) {
+				pending = block;
+				break;
+			}
+			current.setStopHigh(block.getStopHigh());
+			current.setStopLow(block.getStopLow());
+		}
+		outputCount++;
+		return current;
+	}
+	
+	// Input blocks per stored block
+	public double getRatio() {
+		return outputCount > 0 ? (double) inputCount / outputCount : 1;
+	}
+	
+	private GeoIPBlock read() {
+		inputCount++;
+		return source.next();
+	}
+	
+	// Range halves are unsigned, the stop is incremented with a carry into the high half
+	private static boolean isAdjacent(GeoIPBlock previous, GeoIPBlock next) {
+		if (previous.getStopHigh() == -1L && previous.getStopLow() == -1L) return false;
+		long low = previous.getStopLow() + 1;
+		long high = low == 0 ? previous.getStopHigh() + 1 : previous.getStopHigh();
+		return high == next.getStartHigh() && low == next.getStartLow();
+	}
+	
+	private static boolean hasSamePayload(GeoIPBlock a, GeoIPBlock b) {
+		return Objects.equals(a.getLocationId(), b.getLocationId()) &&
+				Objects.equals(a.getPostalCode(), b.getPostalCode()) &&
+				Objects.equals(a.getLatitude(), b.getLatitude()) &&
+				Objects.equals(a.getLongitude(), b.getLongitude()) &&
+				Objects.equals(a.getAccuracyRadius(), b.getAccuracyRadius()) &&
+				Objects.equals(a.getIsAnonymousProxy(), b.getIsAnonymousProxy()) &&
+				Objects.equals(a.getIsSatelliteProvider(), b.getIsSatelliteProvider());
+	}
+}
@@ -4,23 +4,29 @@ import com.eternal_search.geoip.maxmind.model.MaxMindLocation;
 import com.eternal_search.geoip.model.GeoIPLocation;
 import com.eternal_search.geoip.model.GeoIPLocationLevel;
 import com.eternal_search.geoip.model.GeoIPTimezone;
+import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.Getter;
 
 import java.util.*;
 import java.util.function.BiConsumer;
 import java.util.function.BinaryOperator;
 import java.util.function.Function;
+import java.util.function.IntFunction;
 import java.util.function.Supplier;
 import java.util.stream.Collector;
-import java.util.stream.Collectors;
 
 public class MaxMindLocationParser implements Collector<
 		MaxMindLocation,
-		Map<String, MaxMindLocationParser.LocationTreeNode>,
+		MaxMindLocationParser.LocationTree,
 		MaxMindLocationParser.Result
 > {
 	private static final Set<Characteristics> CHARACTERISTICS = Collections.emptySet();
+	private static final GeoIPLocationLevel[] LEVELS = GeoIPLocationLevel.values();
+	// Ids stay within 53 bits, so that JSON clients reading them as doubles get them exactly
+	private static final long ID_MASK = (1L << 53) - 1;
+	// Listed in level order, so a node's level indexes its extractor
 	private static final List<LocationPathItemExtractor> PATH_ITEM_EXTRACTORS = Arrays.asList(
 			new LocationPathItemExtractor(
 					GeoIPLocationLevel.CONTINENT,
@@ -55,87 +61,23 @@ public class MaxMindLocationParser implements Collector<
 	);
 	
 	@Override
-	public Supplier<Map<String, LocationTreeNode>> supplier() {
-		return HashMap::new;
+	public Supplier<LocationTree> supplier() {
+		return LocationTree::new;
 	}
 	
 	@Override
-	public BiConsumer<Map<String, LocationTreeNode>, MaxMindLocation> accumulator() {
-		return (accumulator, location) -> {
-			StringBuilder pathBuilder = new StringBuilder();
-			LocationTreeNode current = null;
-			String currentPath = null;
-			for (LocationPathItemExtractor extractor : PATH_ITEM_EXTRACTORS) {
-				GeoIPLocationLevel level = extractor.getLevel();
-				String name = extractor.extractName(location);
-				String code = extractor.extractCode(location);
-				if (name == null && code == null) continue;
-				pathBuilder.append('/');
-				pathBuilder.append(name);
-				pathBuilder.append('|');
-				pathBuilder.append(code);
-				LocationTreeNode parent = current;
-				String parentPath = currentPath;
-				currentPath = pathBuilder.toString();
-				current = accumulator.computeIfAbsent(currentPath, path ->
-						new LocationTreeNode(
-								GeoIPLocation.builder()
-										.id((long) -Math.abs(path.hashCode()))
-										.localeCode(location.getLocaleCode())
-										.level(level)
-										.name(name)
-										.code(code)
-										.build(),
-								parent,
-								parentPath,
-								location.getTimeZone()
-						)
-				);
-			}
-			assert current != null;
-			GeoIPLocation geoIPLocation = current.getLocation();
-			geoIPLocation.setId(location.getGeonameId());
-			geoIPLocation.setIsInEuropeanUnion(location.getIsInEuropeanUnion());
-		};
+	public BiConsumer<LocationTree, MaxMindLocation> accumulator() {
+		return LocationTree::add;
 	}
 	
 	@Override
-	public BinaryOperator<Map<String, LocationTreeNode>> combiner() {
-		return (target, source) -> {
-			for (Map.Entry<String, LocationTreeNode> entry : source.entrySet()) {
-				if (target.containsKey(entry.getKey())) continue;
-				LocationTreeNode node = entry.getValue();
-				LocationTreeNode existingParent = target.get(node.getParentPath());
-				if (existingParent != null) {
-					node.setParent(existingParent);
-				}
-				target.put(entry.getKey(), node);
-			}
-			return target;
-		};
+	public BinaryOperator<LocationTree> combiner() {
+		return LocationTree::merge;
 	}
 	
 	@Override
-	public Function<Map<String, LocationTreeNode>, Result> finisher() {
-		return accumulator -> {
-			Set<String> timezones = new HashSet<>();
-			List<GeoIPLocation> locations = accumulator.values().stream().map(node -> {
-				if (node.getParent() != null) {
-					node.getLocation().setParentId(node.getParent().getLocation().getId());
-				}
-				if (node.getTimezone() != null) {
-					timezones.add(node.getTimezone());
-					node.getLocation().setTimezoneId((long) Math.abs(node.getTimezone().hashCode()));
-				}
-				return node.getLocation();
-			}).collect(Collectors.toList());
-			return new Result(locations, timezones.stream().map(name ->
-					GeoIPTimezone.builder()
-							.id((long) Math.abs(name.hashCode()))
-							.name(name)
-							.build()
-			).collect(Collectors.toList()));
-		};
+	public Function<LocationTree, Result> finisher() {
+		return LocationTree::build;
 	}
 	
 	@Override
@@ -143,20 +85,441 @@ public class MaxMindLocationParser implements Collector<
 		return CHARACTERISTICS;
 	}
 	
-	@Data
-	@AllArgsConstructor
-	public static class LocationTreeNode {
-		private GeoIPLocation location;
-		private LocationTreeNode parent;
-		private String parentPath;
-		private String timezone;
+	// Nodes are kept in parallel arrays and keyed by parent, level, name and code, with strings interned to ids,
+	// so a row costs a few table probes instead of path strings and per node objects.
+	// Every node is added after its parent, merge and build rely on that.
+	public static class LocationTree {
+		private static final int NONE = -1;
+		private static final int INITIAL_CAPACITY = 1024;
+		private static final byte EU_UNKNOWN = 2;
+		private static final long ROOT_KEY = 0x6C6F636174696F6EL;
+		private static final long OWN_ROW = Long.MIN_VALUE;
+		
+		private final Map<String, Integer> stringIds = new HashMap<>();
+		private final List<String> strings = new ArrayList<>();
+		private String localeCode;
+		
+		private int size;
+		private int[] slots = newSlots(INITIAL_CAPACITY * 2);
+		private int[] parents = new int[INITIAL_CAPACITY];
+		private byte[] levels = new byte[INITIAL_CAPACITY];
+		private int[] names = new int[INITIAL_CAPACITY];
+		private int[] codes = new int[INITIAL_CAPACITY];
+		// Smallest geoname id of the rows at or below the node, it keys nodes without a code
+		private long[] firstRows = new long[INITIAL_CAPACITY];
+		private int[] firstRowTimezones = new int[INITIAL_CAPACITY];
+		// Geoname id of the row describing the node itself, 0 if there is none and the id is synthetic
+		private long[] claims = new long[INITIAL_CAPACITY];
+		private byte[] claimEu = new byte[INITIAL_CAPACITY];
+		private int[] claimTimezones = new int[INITIAL_CAPACITY];
+		
+		// Rows with the same path as a row with a smaller geoname id, emitted as siblings of the claimed node
+		private int duplicateCount;
+		private final Set<Long> duplicateIdSet = new HashSet<>();
+		private long[] duplicateIds = new long[16];
+		private int[] duplicateNodes = new int[16];
+		private byte[] duplicateEu = new byte[16];
+		private int[] duplicateTimezones = new int[16];
+		
+		// Set by build, names of other locales are resolved against them
+		private long[] ids;
+		private Map<Integer, Long> timezoneIds;
+		private Map<Long, Integer> rowNodes;
+		
+		public void add(MaxMindLocation location) {
+			if (location.getGeonameId() == null) return;
+			if (localeCode == null) localeCode = location.getLocaleCode();
+			long geonameId = location.getGeonameId();
+			int timezone = intern(location.getTimeZone());
+			int node = NONE;
+			for (LocationPathItemExtractor extractor : PATH_ITEM_EXTRACTORS) {
+				String name = extractor.extractName(location);
+				String code = extractor.extractCode(location);
+				if (name == null && code == null) continue;
+				node = findOrAdd(node, extractor.getLevel().ordinal(), intern(name), intern(code));
+				if (geonameId < firstRows[node]) {
+					firstRows[node] = geonameId;
+					firstRowTimezones[node] = timezone;
+				}
+			}
+			if (node == NONE) return;
+			claim(node, geonameId, toEu(location.getIsInEuropeanUnion()), timezone);
+		}
+		
+		// The outcome doesn't depend on the order rows arrived in, smaller geoname ids always win
+		public LocationTree merge(LocationTree other) {
+			if (localeCode == null) localeCode = other.localeCode;
+			int[] stringMap = new int[other.strings.size()];
+			for (int i = 0; i < stringMap.length; i++) {
+				stringMap[i] = intern(other.strings.get(i));
+			}
+			int[] nodeMap = new int[other.size];
+			for (int i = 0; i < other.size; i++) {
+				int node = findOrAdd(
+						other.parents[i] != NONE ? nodeMap[other.parents[i]] : NONE,
+						other.levels[i],
+						remap(stringMap, other.names[i]),
+						remap(stringMap, other.codes[i])
+				);
+				nodeMap[i] = node;
+				if (other.firstRows[i] < firstRows[node]) {
+					firstRows[node] = other.firstRows[i];
+					firstRowTimezones[node] = remap(stringMap, other.firstRowTimezones[i]);
+				}
+				if (other.claims[i] != 0) {
+					claim(node, other.claims[i], other.claimEu[i], remap(stringMap, other.claimTimezones[i]));
+				}
+			}
+			for (int i = 0; i < other.duplicateCount; i++) {
+				claim(
+						nodeMap[other.duplicateNodes[i]],
+						other.duplicateIds[i],
+						other.duplicateEu[i],
+						remap(stringMap, other.duplicateTimezones[i])
+				);
+			}
+			return this;
+		}
+		
+		// Ids are only known once every row has been seen, a country row may come after its cities.
+		// Locations are materialized while the result is iterated, so they never all exist at once.
+		public Result build() {
+			slots = null;
+			stringIds.clear();
+			ids = syntheticIds();
+			timezoneIds = timezoneIds();
+			List<GeoIPTimezone> timezones = new ArrayList<>(timezoneIds.size());
+			for (Map.Entry<Integer, Long> entry : timezoneIds.entrySet()) {
+				timezones.add(GeoIPTimezone.builder()
+						.id(entry.getValue())
+						.name(strings.get(entry.getKey()))
+						.build());
+			}
+			return new Result(
+					locations(localeCode, node -> string(names[node]), duplicate -> string(names[duplicateNodes[duplicate]])),
+					timezones,
+					this
+			);
+		}
+		
+		private Collection<GeoIPLocation> locations(
+				String localeCode,
+				IntFunction<String> nodeNames,
+				IntFunction<String> duplicateNames
+		) {
+			return new AbstractCollection<GeoIPLocation>() {
+				@Override
+				public Iterator<GeoIPLocation> iterator() {
+					return new Iterator<GeoIPLocation>() {
+						private int index;
+						
+						@Override
+						public boolean hasNext() {
+							return index < size + duplicateCount;
+						}
+						
+						@Override
+						public GeoIPLocation next() {
+							if (!hasNext()) throw new NoSuchElementException();
+							int row = index++;
+							return row < size ?
+									toLocation(row, ids[row], localeCode, nodeNames.apply(row),
+											claims[row] != 0 ? claimEu[row] : EU_UNKNOWN,
+											claims[row] != 0 ? claimTimezones[row] : firstRowTimezones[row]) :
+									toLocation(duplicateNodes[row - size], duplicateIds[row - size], localeCode,
+											duplicateNames.apply(row - size), duplicateEu[row - size],
+											duplicateTimezones[row - size]);
+						}
+					};
+				}
+				
+				@Override
+				public int size() {
+					return size + duplicateCount;
+				}
+			};
+		}
+		
+		private GeoIPLocation toLocation(int node, long id, String localeCode, String name, byte eu, int timezone) {
+			return GeoIPLocation.builder()
+					.id(id)
+					.localeCode(localeCode)
+					.parentId(parents[node] != NONE ? ids[parents[node]] : null)
+					.level(LEVELS[levels[node]])
+					.name(name)
+					.code(string(codes[node]))
+					.isInEuropeanUnion(eu != EU_UNKNOWN ? eu != 0 : null)
+					.timezoneId(timezone != NONE ? timezoneIds.get(timezone) : null)
+					.build();
+		}
+		
+		// Synthetic ids hash the path of codes, falling back to the smallest geoname id below nodes without one,
+		// so they don't depend on the locale or the row order and stay the same between releases.
+		// Collisions are probed in key order, which is stable too.
+		private long[] syntheticIds() {
+			long[] keys = new long[size];
+			long[] ids = new long[size];
+			List<Integer> synthetic = new ArrayList<>();
+			for (int i = 0; i < size; i++) {
+				long parentKey = parents[i] != NONE ? keys[parents[i]] : ROOT_KEY;
+				keys[i] = mix(mix(parentKey + levels[i]) ^ (codes[i] != NONE ? hash(strings.get(codes[i])) : firstRows[i]));
+				if (claims[i] != 0) {
+					ids[i] = claims[i];
+				} else {
+					synthetic.add(i);
+				}
+			}
+			synthetic.sort(Comparator.<Integer>comparingLong(i -> keys[i]).thenComparingLong(i -> firstRows[i]));
+			Set<Long> used = new HashSet<>();
+			for (int i : synthetic) {
+				long key = keys[i];
+				while (!used.add(-(key & ID_MASK) - 1)) {
+					key = mix(key + 1);
+				}
+				ids[i] = -(key & ID_MASK) - 1;
+			}
+			return ids;
+		}
+		
+		// Only built for the trees other locales are resolved against
+		private synchronized Map<Long, Integer> rowNodes() {
+			if (rowNodes == null) {
+				rowNodes = new HashMap<>();
+				for (int i = 0; i < size; i++) {
+					if (claims[i] != 0) rowNodes.put(claims[i], i);
+				}
+				for (int i = 0; i < duplicateCount; i++) {
+					rowNodes.put(duplicateIds[i], size + i);
+				}
+			}
+			return rowNodes;
+		}
+		
+		private Map<Integer, Long> timezoneIds() {
+			Set<Integer> referenced = new HashSet<>();
+			for (int i = 0; i < size; i++) {
+				referenced.add(claims[i] != 0 ? claimTimezones[i] : firstRowTimezones[i]);
+			}
+			for (int i = 0; i < duplicateCount; i++) {
+				referenced.add(duplicateTimezones[i]);
+			}
+			referenced.remove(NONE);
+			List<Integer> sorted = new ArrayList<>(referenced);
+			sorted.sort(Comparator.comparing(strings::get));
+			Map<Integer, Long> ids = new HashMap<>();
+			Set<Long> used = new HashSet<>();
+			for (int timezone : sorted) {
+				long key = hash(strings.get(timezone));
+				while (!used.add(key & ID_MASK)) {
+					key = mix(key + 1);
+				}
+				ids.put(timezone, key & ID_MASK);
+			}
+			return ids;
+		}
+		
+		private void claim(int node, long geonameId, byte eu, int timezone) {
+			if (claims[node] == geonameId) return;
+			if (claims[node] != 0 && claims[node] < geonameId) {
+				addDuplicate(node, geonameId, eu, timezone);
+				return;
+			}
+			if (claims[node] != 0) {
+				addDuplicate(node, claims[node], claimEu[node], claimTimezones[node]);
+			}
+			claims[node] = geonameId;
+			claimEu[node] = eu;
+			claimTimezones[node] = timezone;
+		}
+		
+		private void addDuplicate(int node, long geonameId, byte eu, int timezone) {
+			if (!duplicateIdSet.add(geonameId)) return;
+			if (duplicateCount == duplicateIds.length) {
+				int capacity = duplicateCount * 2;
+				duplicateIds = Arrays.copyOf(duplicateIds, capacity);
+				duplicateNodes = Arrays.copyOf(duplicateNodes, capacity);
+				duplicateEu = Arrays.copyOf(duplicateEu, capacity);
+				duplicateTimezones = Arrays.copyOf(duplicateTimezones, capacity);
+			}
+			duplicateIds[duplicateCount] = geonameId;
+			duplicateNodes[duplicateCount] = node;
+			duplicateEu[duplicateCount] = eu;
+			duplicateTimezones[duplicateCount] = timezone;
+			duplicateCount++;
+		}
+		
+		private int findOrAdd(int parent, int level, int name, int code) {
+			int mask = slots.length - 1;
+			int slot = slotHash(parent, level, name, code) & mask;
+			for (int node = slots[slot]; node != NONE; node = slots[slot]) {
+				if (parents[node] == parent && levels[node] == level && names[node] == name && codes[node] == code) {
+					return node;
+				}
+				slot = (slot + 1) & mask;
+			}
+			if (size == parents.length) grow();
+			int node = size++;
+			parents[node] = parent;
+			levels[node] = (byte) level;
+			names[node] = name;
+			codes[node] = code;
+			firstRows[node] = Long.MAX_VALUE;
+			firstRowTimezones[node] = NONE;
+			claimTimezones[node] = NONE;
+			slots[slot] = node;
+			if (size * 2 > slots.length) rehash();
+			return node;
+		}
+		
+		private void grow() {
+			int capacity = parents.length * 2;
+			parents = Arrays.copyOf(parents, capacity);
+			levels = Arrays.copyOf(levels, capacity);
+			names = Arrays.copyOf(names, capacity);
+			codes = Arrays.copyOf(codes, capacity);
+			firstRows = Arrays.copyOf(firstRows, capacity);
+			firstRowTimezones = Arrays.copyOf(firstRowTimezones, capacity);
+			claims = Arrays.copyOf(claims, capacity);
+			claimEu = Arrays.copyOf(claimEu, capacity);
+			claimTimezones = Arrays.copyOf(claimTimezones, capacity);
+		}
+		
+		private void rehash() {
+			slots = newSlots(slots.length * 2);
+			int mask = slots.length - 1;
+			for (int node = 0; node < size; node++) {
+				int slot = slotHash(parents[node], levels[node], names[node], codes[node]) & mask;
+				while (slots[slot] != NONE) {
+					slot = (slot + 1) & mask;
+				}
+				slots[slot] = node;
+			}
+		}
+		
+		private int intern(String value) {
+			if (value == null) return NONE;
+			Integer id = stringIds.get(value);
+			if (id == null) {
+				id = strings.size();
+				strings.add(value);
+				stringIds.put(value, id);
+			}
+			return id;
+		}
+		
+		private String string(int id) {
+			return id != NONE ? strings.get(id) : null;
+		}
+		
+		private static int remap(int[] stringMap, int id) {
+			return id != NONE ? stringMap[id] : NONE;
+		}
+		
+		private static byte toEu(Boolean isInEuropeanUnion) {
+			return isInEuropeanUnion == null ? EU_UNKNOWN : isInEuropeanUnion ? (byte) 1 : (byte) 0;
+		}
+		
+		private static int[] newSlots(int count) {
+			int[] slots = new int[count];
+			Arrays.fill(slots, NONE);
+			return slots;
+		}
+		
+		private static int slotHash(int parent, int level, int name, int code) {
+			return (int) mix(((long) parent << 32 | (name & 0xFFFFFFFFL)) * 31 + ((long) level << 32 | (code & 0xFFFFFFFFL)));
+		}
+		
+		// Names of another locale for the nodes of a built tree, found by geoname id, so the locale can't change
+		// the structure. A row without a name in this locale still names its own node (with null) instead of
+		// landing on an ancestor. Ancestors take the names of their own row, or else of the smallest geoname id below.
+		public class LocaleNames {
+			private final String localeCode;
+			private final Map<Long, Integer> rowNodes = rowNodes();
+			private final String[] nodeNames = new String[size];
+			private final long[] nodeNameRows = new long[size];
+			private final String[] duplicateNames = new String[duplicateCount];
+			@Getter
+			private long unknownRows;
+			
+			private LocaleNames(String localeCode) {
+				this.localeCode = localeCode;
+				Arrays.fill(nodeNameRows, Long.MAX_VALUE);
+			}
+			
+			public void add(MaxMindLocation location) {
+				Integer row = location.getGeonameId() != null ? rowNodes.get(location.getGeonameId()) : null;
+				if (row == null) {
+					unknownRows++;
+					return;
+				}
+				int node = row < size ? row : duplicateNodes[row - size];
+				String name = PATH_ITEM_EXTRACTORS.get(levels[node]).extractName(location);
+				if (row < size) {
+					setName(node, name, OWN_ROW);
+				} else {
+					duplicateNames[row - size] = name;
+				}
+				for (int parent = parents[node]; parent != NONE; parent = parents[parent]) {
+					setName(parent, PATH_ITEM_EXTRACTORS.get(levels[parent]).extractName(location), location.getGeonameId());
+				}
+			}
+			
+			public LocaleNames merge(LocaleNames other) {
+				for (int i = 0; i < nodeNames.length; i++) {
+					if (other.nodeNameRows[i] < nodeNameRows[i]) {
+						nodeNames[i] = other.nodeNames[i];
+						nodeNameRows[i] = other.nodeNameRows[i];
+					}
+				}
+				for (int i = 0; i < duplicateNames.length; i++) {
+					if (duplicateNames[i] == null) duplicateNames[i] = other.duplicateNames[i];
+				}
+				unknownRows += other.unknownRows;
+				return this;
+			}
+			
+			// Every location of the tree, with the structure of the tree and the names of this locale
+			public Collection<GeoIPLocation> getLocations() {
+				return locations(localeCode, node -> nodeNames[node], duplicate -> duplicateNames[duplicate]);
+			}
+			
+			private void setName(int node, String name, long row) {
+				if (name != null && row < nodeNameRows[node]) {
+					nodeNames[node] = name;
+					nodeNameRows[node] = row;
+				}
+			}
+		}
 	}
 	
-	@Data
-	@AllArgsConstructor
+	private static long mix(long value) {
+		value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+		value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+		return value ^ (value >>> 31);
+	}
+	
+	// String.hashCode is only 32 bits wide, FNV-1a is spelled out so ids don't depend on the JVM either
+	private static long hash(String value) {
+		long hash = 0xCBF29CE484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= 0x100000001B3L;
+		}
+		return mix(hash);
+	}
+	
+	@Getter
+	@AllArgsConstructor(access = AccessLevel.PRIVATE)
 	public static class Result {
-		private Collection<GeoIPLocation> locations;
-		private Collection<GeoIPTimezone> timezones;
+		private final Collection<GeoIPLocation> locations;
+		private final Collection<GeoIPTimezone> timezones;
+		@Getter(AccessLevel.NONE)
+		private final LocationTree tree;
+		
+		// Other locales only contribute names, the structure always comes from this result
+		public LocationTree.LocaleNames localeNames(String localeCode) {
+			return tree.new LocaleNames(localeCode);
+		}
 	}
 	
 	@Data
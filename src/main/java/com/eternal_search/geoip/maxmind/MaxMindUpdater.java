@@ -2,15 +2,19 @@ package com.eternal_search.geoip.maxmind;
 
 import com.eternal_search.geoip.maxmind.model.MaxMindBlock;
 import com.eternal_search.geoip.maxmind.model.MaxMindLocation;
+import com.eternal_search.geoip.model.GeoIPArchive;
+import com.eternal_search.geoip.model.GeoIPImportPhase;
+import com.eternal_search.geoip.model.dto.GeoIPImportProgressDTO;
+import com.eternal_search.geoip.service.GeoIPImportProgress;
+import com.eternal_search.geoip.service.GeoIPMetrics;
 import com.eternal_search.geoip.service.GeoIPStorage;
 import com.eternal_search.geoip.service.GeoIPUpdater;
+import io.micrometer.core.instrument.Counter;
 import io.quarkus.runtime.ShutdownEvent;
 import io.smallrye.mutiny.Multi;
 import io.smallrye.mutiny.Uni;
-import io.smallrye.mutiny.subscription.BackPressureStrategy;
 import io.smallrye.mutiny.subscription.Cancellable;
-import io.smallrye.mutiny.subscription.MultiEmitter;
-import io.smallrye.mutiny.tuples.Tuple2;
+import lombok.AllArgsConstructor;
 import lombok.SneakyThrows;
 import lombok.extern.jbosslog.JBossLog;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
@@ -20,53 +24,86 @@ import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.event.Observes;
 import javax.inject.Inject;
 import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Optional;
-import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 
 @ApplicationScoped
 @JBossLog
 public class MaxMindUpdater implements GeoIPUpdater {
+	private static final int LOCATION_CHUNK_SIZE = 4096;
+	private static final String CANONICAL_LOCALE = "en";
+	
 	@ConfigProperty(name = "maxmind.download-url")
 	String downloadUrl;
 	
 	@ConfigProperty(name = "maxmind.licence-key")
 	Optional<String> licenceKey;
 	
+	@ConfigProperty(name = "maxmind.import-threads")
+	Optional<Integer> importThreads;
+	
+	// In copy mode every file being imported holds a pooled connection and the update transaction holds one more
+	@ConfigProperty(name = "quarkus.datasource.jdbc.max-size", defaultValue = "20")
+	int connectionPoolSize;
+	
 	@Inject
 	GeoIPStorage storage;
 	
+	@Inject
+	GeoIPMetrics metrics;
+	
+	@Inject
+	GeoIPImportProgress progress;
+	
 	private final AtomicReference<Cancellable> updateCancellable = new AtomicReference<>();
 	
 	private final AtomicReference<Executor> updateExecutor = new AtomicReference<>();
 	
+	private final AtomicReference<ForkJoinPool> parsePool = new AtomicReference<>();
+	
 	@Override
 	public void launchUpdate() {
-		if (updateCancellable.compareAndSet(null, () -> {})) {
-			updateCancellable.set(doLaunchUpdate(null));
-		} else {
-			log.info("Update is already running");
-		}
+		launchUpdate(null);
 	}
 	
+	// An update that finishes before subscribe returns has already cleared the placeholder, it must stay cleared
 	@Override
 	public void launchUpdate(InputStream inputStream) {
-		if (updateCancellable.compareAndSet(null, () -> {})) {
-			updateCancellable.set(doLaunchUpdate(inputStream));
+		Cancellable placeholder = () -> {};
+		if (updateCancellable.compareAndSet(null, placeholder)) {
+			updateCancellable.compareAndSet(placeholder, doLaunchUpdate(inputStream));
 		} else {
 			log.info("Update is already running");
 		}
@@ -77,6 +114,11 @@ public class MaxMindUpdater implements GeoIPUpdater {
 		return updateCancellable.get() != null;
 	}
 	
+	@Override
+	public GeoIPImportProgressDTO getProgress() {
+		return progress.snapshot();
+	}
+	
 	void onStop(@Observes ShutdownEvent event) {
 		Optional.ofNullable(updateCancellable.get()).ifPresent(Cancellable::cancel);
 	}
@@ -86,58 +128,111 @@ public class MaxMindUpdater implements GeoIPUpdater {
 		return new URL(licenceKey.map(key -> downloadUrl.replace("@", key)).orElse(downloadUrl));
 	}
 	
-	private InputStream openDownloadStream() throws IOException {
+	// Returns null when the server reports that the archive of the current generation is still the latest one
+	private InputStream openDownloadStream(
+			GeoIPArchive previous,
+			GeoIPArchive.GeoIPArchiveBuilder archive
+	) throws IOException {
 		URL url = buildDownloadUrl();
 		log.infof("Downloading %s...", url);
-		return new BufferedInputStream(url.openStream());
+		URLConnection connection = url.openConnection();
+		if (previous != null && previous.getEtag() != null) {
+			connection.setRequestProperty("If-None-Match", previous.getEtag());
+		}
+		if (previous != null && previous.getLastModified() != null) {
+			connection.setRequestProperty("If-Modified-Since", previous.getLastModified());
+		}
+		if (connection instanceof HttpURLConnection &&
+				((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			((HttpURLConnection) connection).disconnect();
+			return null;
+		}
+		archive
+				.etag(connection.getHeaderField("ETag"))
+				.lastModified(connection.getHeaderField("Last-Modified"));
+		progress.setBytesTotal(connection.getContentLengthLong());
+		return new BufferedInputStream(connection.getInputStream());
 	}
 	
 	@SneakyThrows(IOException.class)
-	private Path downloadArchive(Path filePath, InputStream inputStream) {
-		Files.copy(
-				inputStream != null ? inputStream : openDownloadStream(),
-				filePath,
-				StandardCopyOption.REPLACE_EXISTING
-		);
+	private GeoIPArchive downloadArchive(Path filePath, InputStream inputStream, GeoIPArchive previous) {
+		GeoIPArchive.GeoIPArchiveBuilder archive = GeoIPArchive.builder();
+		InputStream source = inputStream != null ? inputStream : openDownloadStream(previous, archive);
+		if (source == null) {
+			log.info("Archive is not modified since the last update");
+			return null;
+		}
+		MessageDigest digest = createDigest();
+		try (InputStream digestStream = new DigestInputStream(new CountingInputStream(source, progress), digest)) {
+			Files.copy(digestStream, filePath, StandardCopyOption.REPLACE_EXISTING);
+		}
 		log.infof("Using archive file %s", filePath.toAbsolutePath());
-		return filePath;
+		return archive.sha256(String.format("%064x", new BigInteger(1, digest.digest()))).build();
 	}
 	
-	@SneakyThrows(IOException.class)
-	private static void emitZipEntries(
-			ZipInputStream zipStream,
-			MultiEmitter<? super Tuple2<ZipEntry, InputStream>> emitter
-	) {
-		AtomicBoolean isTerminated = new AtomicBoolean();
-		emitter.onTermination(() -> isTerminated.set(true));
-		ZipEntry zipEntry;
-		while (!isTerminated.get() && (zipEntry = zipStream.getNextEntry()) != null) {
-			log.infof("Found: %s", zipEntry.getName());
-			emitter.emit(Tuple2.of(zipEntry, zipStream));
-		}
-		emitter.complete();
+	@SneakyThrows(NoSuchAlgorithmException.class)
+	private static MessageDigest createDigest() {
+		return MessageDigest.getInstance("SHA-256");
 	}
 	
-	private static Multi<Tuple2<ZipEntry, InputStream>> zipInputStreamToMulti(ZipInputStream zipStream) {
-		return Multi.createFrom().emitter(
-				emitter -> emitZipEntries(zipStream, emitter),
-				BackPressureStrategy.ERROR
-		);
+	// Servers without conditional request support still send the same bytes, the checksum catches those
+	private static boolean isUnchanged(GeoIPArchive archive, GeoIPArchive previous) {
+		return archive == null || previous != null && archive.getSha256().equals(previous.getSha256());
+	}
+	
+	@SneakyThrows(IOException.class)
+	private static void deleteArchive(Path filePath) {
+		Files.deleteIfExists(filePath);
 	}
 	
-	private Uni<Void> processBlocks(Scanner scanner, String type, GeoIPStorage.Updater updater) {
-		return new CSVParser<>(scanner, MaxMindBlock.class)
-				.multi()
+	private Uni<Void> processBlocks(Reader reader, String type, GeoIPStorage.Updater updater) {
+		Counter rows = metrics.importedRows("blocks", type);
+		Counter storedRows = metrics.storedBlocks(type);
+		LongAdder progressRows = progress.rows(GeoIPImportProgress.BLOCKS);
+		progress.beginFile(GeoIPImportProgress.BLOCKS);
+		MaxMindBlockMerger merger = new MaxMindBlockMerger(new CSVParser<>(reader, MaxMindBlock.class).stream()
+				.peek(block -> {
+					rows.increment();
+					progressRows.increment();
+				})
 				.map(MaxMindBlockParser::parse)
-				.onCompletion().invoke(() -> log.infof("Finished parsing %s blocks", type))
+				.iterator());
+		return Multi.createFrom().iterable(() -> merger)
+				.onItem().invoke(block -> storedRows.increment())
+				.onCompletion().invoke(() -> log.infof(
+						"Finished parsing %s blocks, merged %s networks into %s ranges (%.2f:1)",
+						type, merger.getInputCount(), merger.getOutputCount(), merger.getRatio()
+				))
+				.onTermination().invoke((failure, cancelled) -> progress.endFile(GeoIPImportProgress.BLOCKS))
 				.stage(updater::insertBlocks)
 				.invoke(count -> log.infof("Imported %s %s blocks", count, type))
 				.flatMap(count -> Uni.createFrom().voidItem());
 	}
 	
-	private Uni<Void> processLocations(Scanner scanner, String localeCode, GeoIPStorage.Updater updater) {
-		return new CSVParser<>(scanner, MaxMindLocation.class).multi()
-				.collectItems().with(new MaxMindLocationParser())
+	// The structure comes from the canonical locale file only, the other locale files wait for it and resolve
+	// their names against it by geoname id. GeoLite2 leaves many city names empty outside English,
+	// a tree of their own would put those cities onto their subdivisions.
+	private Uni<Void> processLocations(
+			Reader reader,
+			String localeCode,
+			GeoIPStorage.Updater updater,
+			String canonicalLocale,
+			CompletableFuture<MaxMindLocationParser.Result> structure
+	) {
+		if (!localeCode.equals(canonicalLocale)) {
+			return processLocationNames(reader, localeCode, updater, canonicalLocale, structure);
+		}
+		MaxMindLocationParser locationParser = new MaxMindLocationParser();
+		return parseLocations(
+				reader,
+				localeCode,
+				locationParser.supplier(),
+				locationParser.accumulator(),
+				locationParser.combiner()
+		)
+				.map(locationParser.finisher())
+				.invoke(structure::complete)
+				.onFailure().invoke(structure::completeExceptionally)
 				.flatMap(result -> {
 					log.infof(
 							"Parsed %s locations and %s timezones",
@@ -153,71 +248,226 @@ public class MaxMindUpdater implements GeoIPUpdater {
 									updater.insertLocations(Multi.createFrom().iterable(result.getLocations()))
 											.invoke(count -> log.infof("Imported %s locations", count))
 							)
+							.flatMap(cnt ->
+									updater.insertLocationNames(Multi.createFrom().iterable(result.getLocations()))
+											.invoke(count -> log.infof("Imported %s %s location names", count, localeCode))
+							)
 							.flatMap(cnt -> Uni.createFrom().voidItem());
 				});
 	}
 	
-	private Uni<Void> processFile(String filePath, InputStream inputStream, GeoIPStorage.Updater updater) {
-		int fileNameStart = filePath.lastIndexOf("/");
-		String fileName = fileNameStart >= 0 ? filePath.substring(fileNameStart + 1) : filePath;
-		if (!fileName.toLowerCase().endsWith(".csv")) return Uni.createFrom().voidItem();
-		log.infof("Processing: %s", fileName);
-		String fileNameWithoutExt = fileName.substring(0, fileName.length() - 4);
-		String[] fileNameParts = fileNameWithoutExt.split("-", 4);
-		if (fileNameParts.length < 4) return Uni.createFrom().voidItem();
+	// Every file gets its own copy of the future, so that cancelling one of them doesn't cancel the others
+	private Uni<Void> processLocationNames(
+			Reader reader,
+			String localeCode,
+			GeoIPStorage.Updater updater,
+			String canonicalLocale,
+			CompletableFuture<MaxMindLocationParser.Result> structure
+	) {
+		return Uni.createFrom().completionStage(structure.thenApply(Function.identity()))
+				.emitOn(updateExecutor.get())
+				.flatMap(result -> parseLocations(
+						reader,
+						localeCode,
+						() -> result.localeNames(localeCode),
+						MaxMindLocationParser.LocationTree.LocaleNames::add,
+						MaxMindLocationParser.LocationTree.LocaleNames::merge
+				))
+				.flatMap(names -> {
+					if (names.getUnknownRows() > 0) {
+						log.warnf(
+								"Skipped %s %s locations missing from the %s file",
+								names.getUnknownRows(), localeCode, canonicalLocale
+						);
+					}
+					return updater.insertLocales(Multi.createFrom().item(localeCode))
+							.flatMap(cnt ->
+									updater.insertLocationNames(Multi.createFrom().iterable(names.getLocations()))
+											.invoke(count -> log.infof("Imported %s %s location names", count, localeCode))
+							)
+							.flatMap(cnt -> Uni.createFrom().voidItem());
+				});
+	}
+	
+	// Values are read sequentially, converting and adding them to partial results is done in chunks
+	// on the parse pool, partial results are merged there as well, in whatever order they complete,
+	// which doesn't change the outcome
+	private <T> Uni<T> parseLocations(
+			Reader reader,
+			String localeCode,
+			Supplier<T> supplier,
+			BiConsumer<T, MaxMindLocation> accumulator,
+			BinaryOperator<T> merge
+	) {
+		Counter rows = metrics.importedRows("locations", localeCode);
+		LongAdder progressRows = progress.rows(GeoIPImportProgress.LOCATIONS);
+		progress.beginFile(GeoIPImportProgress.LOCATIONS);
+		CSVParser<MaxMindLocation> parser = new CSVParser<>(reader, MaxMindLocation.class);
+		return parser.valuesMulti()
+				.groupItems().intoLists().of(LOCATION_CHUNK_SIZE)
+				.onItem().transformToUni(chunk ->
+						Uni.createFrom().item(chunk)
+								.emitOn(parsePool.get())
+								.map(values -> {
+									T part = supplier.get();
+									for (String[] value : values) {
+										accumulator.accept(part, parser.toEntry(value));
+									}
+									rows.increment(values.size());
+									progressRows.add(values.size());
+									return part;
+								})
+				)
+				.merge(getImportThreads())
+				.onTermination().invoke((failure, cancelled) -> progress.endFile(GeoIPImportProgress.LOCATIONS))
+				.collectItems().asList()
+				.emitOn(updateExecutor.get())
+				.map(parts -> mergeAll(parsePool.get(), parts, merge, supplier));
+	}
+	
+	// Merges pairwise with both halves of the list in parallel, the calling thread waits for the result
+	static <T> T mergeAll(ForkJoinPool pool, List<T> parts, BinaryOperator<T> merge, Supplier<T> empty) {
+		return parts.isEmpty() ? empty.get() : pool.invoke(new MergeTask<>(parts, 0, parts.size(), merge));
+	}
+	
+	private Uni<Void> processFile(
+			String filePath,
+			InputStream inputStream,
+			GeoIPStorage.Updater updater,
+			String canonicalLocale,
+			CompletableFuture<MaxMindLocationParser.Result> structure
+	) {
+		String[] fileNameParts = fileNameParts(filePath);
+		if (fileNameParts == null) return Uni.createFrom().voidItem();
+		log.infof("Processing: %s", filePath);
 		String type = fileNameParts[2];
 		String subtype = fileNameParts[3];
-		Scanner scanner = new Scanner(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+		Reader reader = new InputStreamReader(inputStream, StandardCharsets.UTF_8);
 		switch (type) {
 			case "Blocks":
-				return processBlocks(scanner, subtype, updater);
+				return processBlocks(reader, subtype, updater);
 			case "Locations":
-				return processLocations(scanner, subtype, updater);
+				return processLocations(reader, subtype, updater, canonicalLocale, structure);
 			default:
 				log.warnf("Unsupported data type: %s", type);
 				return Uni.createFrom().voidItem();
 		}
 	}
 	
+	// GeoLite2-City-Locations-en.csv gives GeoLite2, City, Locations and en, other files give null
+	private static String[] fileNameParts(String filePath) {
+		int fileNameStart = filePath.lastIndexOf("/");
+		String fileName = fileNameStart >= 0 ? filePath.substring(fileNameStart + 1) : filePath;
+		if (!fileName.toLowerCase().endsWith(".csv")) return null;
+		String[] fileNameParts = fileName.substring(0, fileName.length() - 4).split("-", 4);
+		return fileNameParts.length == 4 ? fileNameParts : null;
+	}
+	
+	private static boolean isLocations(ZipEntry entry, String localeCode) {
+		String[] fileNameParts = fileNameParts(entry.getName());
+		return fileNameParts != null && "Locations".equals(fileNameParts[2]) &&
+				(localeCode == null || localeCode.equals(fileNameParts[3]));
+	}
+	
+	// English unless the archive doesn't have it, then whichever locale sorts first
+	private static String canonicalLocale(List<ZipEntry> entries) {
+		return entries.stream()
+				.filter(entry -> isLocations(entry, null))
+				.map(entry -> fileNameParts(entry.getName())[3])
+				.min(Comparator.<String, Boolean>comparing(localeCode -> !CANONICAL_LOCALE.equals(localeCode))
+						.thenComparing(Comparator.naturalOrder()))
+				.orElse(null);
+	}
+	
 	@SneakyThrows(IOException.class)
-	private void closeAndDeleteArchive(ZipInputStream zipStream, Path path) {
+	private void closeAndDeleteArchive(ZipFile zipFile, Path path) {
 		log.info("Closing archive");
-		zipStream.close();
+		zipFile.close();
 		Files.deleteIfExists(path);
 	}
 	
+	@SneakyThrows(IOException.class)
+	private InputStream openEntry(ZipFile zipFile, ZipEntry entry) {
+		return new BufferedInputStream(new CountingInputStream(zipFile.getInputStream(entry), progress));
+	}
+	
 	@SneakyThrows(IOException.class)
 	private Uni<Void> performUpdate(Path filePath, GeoIPStorage.Updater updater) {
-		ZipInputStream zipStream = new ZipInputStream(new BufferedInputStream(Files.newInputStream(filePath)));
-		return Multi.createFrom().item(zipStream)
-				.emitOn(updateExecutor.get())
-				.flatMap(MaxMindUpdater::zipInputStreamToMulti)
-				.flatMap(entry ->
-						processFile(entry.getItem1().getName(), entry.getItem2(), updater)
+		ZipFile zipFile = new ZipFile(filePath.toFile());
+		// Uncompressed sizes come from the central directory, progress is measured against them
+		progress.startParsing(Collections.list(zipFile.entries()).stream()
+				.filter(entry -> entry.getName().toLowerCase().endsWith(".csv") && entry.getSize() > 0)
+				.mapToLong(ZipEntry::getSize)
+				.sum());
+		List<ZipEntry> entries = Collections.list(zipFile.entries());
+		String canonicalLocale = canonicalLocale(entries);
+		// Other locale files wait for the canonical one, it goes first so that it never waits for a free slot
+		entries.sort(Comparator.comparing(entry -> !isLocations(entry, canonicalLocale)));
+		CompletableFuture<MaxMindLocationParser.Result> structure = new CompletableFuture<>();
+		return Multi.createFrom().iterable(entries)
+				.onItem().invoke(entry -> log.infof("Found: %s", entry.getName()))
+				.onItem().transformToUni(entry ->
+						Uni.createFrom().item(entry)
+								.emitOn(updateExecutor.get())
+								.flatMap(item -> processFile(
+										item.getName(),
+										openEntry(zipFile, item),
+										updater,
+										canonicalLocale,
+										structure
+								))
 								.onItemOrFailure().invoke(() ->
-									log.infof("Finished processing: %s", entry.getItem1().getName())
+									log.infof("Finished processing: %s", entry.getName())
 								)
-								.toMulti()
 				)
+				.merge(getFileConcurrency())
 				.collectItems().asList()
 				.<Void>map(entry -> null)
-				.onItemOrFailure().invoke(() -> closeAndDeleteArchive(zipStream, filePath));
+				.onTermination().invoke(() -> closeAndDeleteArchive(zipFile, filePath));
+	}
+	
+	private int getImportThreads() {
+		return importThreads.orElse(Runtime.getRuntime().availableProcessors());
+	}
+	
+	// Leaves a connection for the update transaction and one for everything else, files beyond that would just wait
+	private int getFileConcurrency() {
+		int concurrency = Math.max(1, Math.min(getImportThreads(), connectionPoolSize - 2));
+		if (concurrency < getImportThreads()) {
+			log.warnf(
+					"Importing %s files at a time, quarkus.datasource.jdbc.max-size should be at least %s for %s threads",
+					concurrency, getImportThreads() + 2, getImportThreads()
+			);
+		}
+		return concurrency;
 	}
 	
 	@SneakyThrows(IOException.class)
 	private Cancellable doLaunchUpdate(InputStream inputStream) {
+		progress.start();
 		updateExecutor.set(
 				ManagedExecutor.builder()
-						.maxAsync(1)
-						.maxQueued(1)
+						.maxAsync(getImportThreads())
+						.maxQueued(-1)
 						.build()
 		);
-		return Uni.createFrom().item(Files.createTempFile("maxmind_", ".zip"))
+		parsePool.set(new ForkJoinPool(getImportThreads()));
+		Path filePath = Files.createTempFile("maxmind_", ".zip");
+		return storage.findArchive()
 				.emitOn(updateExecutor.get())
-				.map(path -> downloadArchive(path, inputStream))
-				.flatMap(filePath -> storage.update(updater -> performUpdate(filePath, updater)))
+				.flatMap(previous -> {
+					GeoIPArchive archive = downloadArchive(filePath, inputStream, previous);
+					if (isUnchanged(archive, previous)) {
+						log.info("Archive is the same as the current generation, skipping the import");
+						return Uni.createFrom().voidItem();
+					}
+					return storage.update(archive, updater -> performUpdate(filePath, updater));
+				})
 				.onTermination().invoke(() -> {
+					deleteArchive(filePath);
 					((ExecutorService) updateExecutor.getAndSet(null)).shutdownNow();
+					parsePool.getAndSet(null).shutdownNow();
+					progress.finish();
 					updateCancellable.set(null);
 					log.info("Update executor service terminated");
 				})
@@ -227,4 +477,49 @@ public class MaxMindUpdater implements GeoIPUpdater {
 						error -> log.error("Update failed", error)
 				);
 	}
+	
+	@AllArgsConstructor
+	private static class MergeTask<T> extends RecursiveTask<T> {
+		private final List<T> parts;
+		private final int from;
+		private final int to;
+		private final BinaryOperator<T> merge;
+		
+		@Override
+		protected T compute() {
+			if (to - from == 1) return parts.get(from);
+			int middle = (from + to) >>> 1;
+			MergeTask<T> left = new MergeTask<>(parts, from, middle, merge);
+			left.fork();
+			T right = new MergeTask<>(parts, middle, to, merge).compute();
+			return merge.apply(left.join(), right);
+		}
+	}
+	
+	private static class CountingInputStream extends FilterInputStream {
+		private final GeoIPImportProgress progress;
+		
+		CountingInputStream(InputStream inputStream, GeoIPImportProgress progress) {
+			super(inputStream);
+			this.progress = progress;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int result = super.read();
+			if (result >= 0) {
+				progress.addBytesRead(1);
+			}
+			return result;
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int count = super.read(buffer, offset, length);
+			if (count > 0) {
+				progress.addBytesRead(count);
+			}
+			return count;
+		}
+	}
 }
@@ -0,0 +1,259 @@
+package com.eternal_search.geoip.memory;
+
+import com.eternal_search.geoip.model.GeoIPBlock;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class GeoIPBlockIndex {
+	private static final int FLAG_ANONYMOUS_PROXY = 1;
+	private static final int FLAG_SATELLITE_PROVIDER = 1 << 1;
+	private static final int FLAG_HAS_COORDINATES = 1 << 2;
+	private static final int FLAG_HAS_ACCURACY_RADIUS = 1 << 3;
+	private static final int FLAG_HAS_LOCATION = 1 << 4;
+	// Columns are stored in snapshot files as is, so their byte order must not depend on the platform
+	static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+	static final int[] COLUMN_SIZES = {
+			Long.BYTES, Long.BYTES, Long.BYTES, Long.BYTES, Long.BYTES, Long.BYTES, Integer.BYTES, Integer.BYTES
+	};
+	
+	private final int size;
+	// Range bounds are unsigned 128-bit addresses split into high and low halves
+	private final ByteBuffer startHigh;
+	private final ByteBuffer startLow;
+	private final ByteBuffer stopHigh;
+	private final ByteBuffer stopLow;
+	private final ByteBuffer locationIds;
+	private final ByteBuffer coordinates;
+	private final ByteBuffer details;
+	private final ByteBuffer postalCodeIds;
+	private final String[] postalCodes;
+	
+	private GeoIPBlockIndex(int size, ByteBuffer[] columns, String[] postalCodes) {
+		this.size = size;
+		startHigh = columns[0];
+		startLow = columns[1];
+		stopHigh = columns[2];
+		stopLow = columns[3];
+		locationIds = columns[4];
+		coordinates = columns[5];
+		details = columns[6];
+		postalCodeIds = columns[7];
+		this.postalCodes = postalCodes;
+	}
+	
+	static GeoIPBlockIndex wrap(int size, ByteBuffer[] columns, String[] postalCodes) {
+		if (columns.length != COLUMN_SIZES.length) {
+			throw new IllegalArgumentException("Expected " + COLUMN_SIZES.length + " columns");
+		}
+		for (int i = 0; i < columns.length; i++) {
+			if (columns[i].capacity() < size * COLUMN_SIZES[i]) {
+				throw new IllegalArgumentException("Column " + i + " is too short for " + size + " blocks");
+			}
+			columns[i] = columns[i].order(BYTE_ORDER);
+		}
+		return new GeoIPBlockIndex(size, columns, postalCodes);
+	}
+	
+	ByteBuffer[] columns() {
+		return new ByteBuffer[] {
+				startHigh, startLow, stopHigh, stopLow, locationIds, coordinates, details, postalCodeIds
+		};
+	}
+	
+	String[] postalCodes() {
+		return postalCodes;
+	}
+	
+	public static Builder builder(int capacity) {
+		return new Builder(capacity);
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	// Derived from the column layout, so that a new column can't be left out of the count
+	public long getMemoryUsage() {
+		long usage = 0;
+		for (int columnSize : COLUMN_SIZES) {
+			usage += (long) size * columnSize;
+		}
+		return usage;
+	}
+	
+	public int find(long addressHigh, long addressLow) {
+		return find(addressHigh, addressLow, 0, size - 1);
+	}
+	
+	// Searches positions from..to only, the address must not be covered by a block outside of them
+	public int find(long addressHigh, long addressLow, int from, int to) {
+		int low = from;
+		int high = to;
+		int found = -1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (compare(startHigh(middle), startLow(middle), addressHigh, addressLow) <= 0) {
+				found = middle;
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		if (found < 0 || compare(addressHigh, addressLow, stopHigh(found), stopLow(found)) > 0) {
+			return -1;
+		}
+		return found;
+	}
+	
+	public long startHigh(int position) {
+		return startHigh.getLong(position * Long.BYTES);
+	}
+	
+	public long startLow(int position) {
+		return startLow.getLong(position * Long.BYTES);
+	}
+	
+	public long stopHigh(int position) {
+		return stopHigh.getLong(position * Long.BYTES);
+	}
+	
+	public long stopLow(int position) {
+		return stopLow.getLong(position * Long.BYTES);
+	}
+	
+	public Long getLocationId(int position) {
+		return hasFlag(position, FLAG_HAS_LOCATION) ? locationIds.getLong(position * Long.BYTES) : null;
+	}
+	
+	public String getPostalCode(int position) {
+		int id = postalCodeIds.getInt(position * Integer.BYTES);
+		return id >= 0 ? postalCodes[id] : null;
+	}
+	
+	public Double getLatitude(int position) {
+		return hasFlag(position, FLAG_HAS_COORDINATES) ?
+				(double) Float.intBitsToFloat((int) (coordinates.getLong(position * Long.BYTES) >>> 32)) :
+				null;
+	}
+	
+	public Double getLongitude(int position) {
+		return hasFlag(position, FLAG_HAS_COORDINATES) ?
+				(double) Float.intBitsToFloat((int) coordinates.getLong(position * Long.BYTES)) :
+				null;
+	}
+	
+	public Integer getAccuracyRadius(int position) {
+		return hasFlag(position, FLAG_HAS_ACCURACY_RADIUS) ? details(position) >>> 8 : null;
+	}
+	
+	public boolean isAnonymousProxy(int position) {
+		return hasFlag(position, FLAG_ANONYMOUS_PROXY);
+	}
+	
+	public boolean isSatelliteProvider(int position) {
+		return hasFlag(position, FLAG_SATELLITE_PROVIDER);
+	}
+	
+	private int details(int position) {
+		return details.getInt(position * Integer.BYTES);
+	}
+	
+	private boolean hasFlag(int position, int flag) {
+		return (details(position) & flag) != 0;
+	}
+	
+	static int compare(long high1, long low1, long high2, long low2) {
+		int result = Long.compareUnsigned(high1, high2);
+		return result != 0 ? result : Long.compareUnsigned(low1, low2);
+	}
+	
+	private static ByteBuffer allocate(int count, int itemSize) {
+		return ByteBuffer.allocateDirect(Math.max(count, 1) * itemSize).order(BYTE_ORDER);
+	}
+	
+	public static class Builder {
+		private final int capacity;
+		private final ByteBuffer startHigh;
+		private final ByteBuffer startLow;
+		private final ByteBuffer stopHigh;
+		private final ByteBuffer stopLow;
+		private final ByteBuffer locationIds;
+		private final ByteBuffer coordinates;
+		private final ByteBuffer details;
+		private final ByteBuffer postalCodeIds;
+		private final List<String> postalCodes = new ArrayList<>();
+		private final Map<String, Integer> postalCodeMap = new HashMap<>();
+		private int size;
+		
+		private Builder(int capacity) {
+			this.capacity = capacity;
+			startHigh = allocate(capacity, Long.BYTES);
+			startLow = allocate(capacity, Long.BYTES);
+			stopHigh = allocate(capacity, Long.BYTES);
+			stopLow = allocate(capacity, Long.BYTES);
+			locationIds = allocate(capacity, Long.BYTES);
+			coordinates = allocate(capacity, Long.BYTES);
+			details = allocate(capacity, Integer.BYTES);
+			postalCodeIds = allocate(capacity, Integer.BYTES);
+		}
+		
+		public Builder add(long startHigh, long startLow, long stopHigh, long stopLow, GeoIPBlock block) {
+			if (size >= capacity) {
+				throw new IllegalStateException("Block index capacity exceeded: " + capacity);
+			}
+			if (size > 0 && compare(
+					this.stopHigh.getLong((size - 1) * Long.BYTES), this.stopLow.getLong((size - 1) * Long.BYTES),
+					startHigh, startLow
+			) >= 0) {
+				throw new IllegalArgumentException("Blocks must be sorted and must not overlap");
+			}
+			int flags = 0;
+			if (Boolean.TRUE.equals(block.getIsAnonymousProxy())) flags |= FLAG_ANONYMOUS_PROXY;
+			if (Boolean.TRUE.equals(block.getIsSatelliteProvider())) flags |= FLAG_SATELLITE_PROVIDER;
+			long packedCoordinates = 0;
+			if (block.getLatitude() != null && block.getLongitude() != null) {
+				flags |= FLAG_HAS_COORDINATES;
+				packedCoordinates = ((long) Float.floatToIntBits(block.getLatitude().floatValue()) << 32) |
+						(Float.floatToIntBits(block.getLongitude().floatValue()) & 0xFFFFFFFFL);
+			}
+			int accuracyRadius = 0;
+			if (block.getAccuracyRadius() != null) {
+				flags |= FLAG_HAS_ACCURACY_RADIUS;
+				accuracyRadius = block.getAccuracyRadius();
+			}
+			long locationId = 0;
+			if (block.getLocationId() != null) {
+				flags |= FLAG_HAS_LOCATION;
+				locationId = block.getLocationId();
+			}
+			int postalCodeId = -1;
+			if (block.getPostalCode() != null) {
+				postalCodeId = postalCodeMap.computeIfAbsent(block.getPostalCode(), postalCode -> {
+					postalCodes.add(postalCode);
+					return postalCodes.size() - 1;
+				});
+			}
+			this.startHigh.putLong(size * Long.BYTES, startHigh);
+			this.startLow.putLong(size * Long.BYTES, startLow);
+			this.stopHigh.putLong(size * Long.BYTES, stopHigh);
+			this.stopLow.putLong(size * Long.BYTES, stopLow);
+			locationIds.putLong(size * Long.BYTES, locationId);
+			coordinates.putLong(size * Long.BYTES, packedCoordinates);
+			details.putInt(size * Integer.BYTES, (accuracyRadius << 8) | flags);
+			postalCodeIds.putInt(size * Integer.BYTES, postalCodeId);
+			size++;
+			return this;
+		}
+		
+		public GeoIPBlockIndex build() {
+			return new GeoIPBlockIndex(size, new ByteBuffer[] {
+					startHigh, startLow, stopHigh, stopLow, locationIds, coordinates, details, postalCodeIds
+			}, postalCodes.toArray(new String[0]));
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.eternal_search.geoip.memory;
+
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+
+// Direct-mapped table in front of the block index, one slot per IPv4 prefix (/24 at most).
+// A slot holds the first block that doesn't end before the prefix, with the high bit set when that block
+// covers the whole prefix. Other prefixes are searched between their slot and the next one,
+// that window of the index is the prefix's sub-range list, so it costs no memory of its own.
+public class GeoIPIPv4Table {
+	public static final int MAX_PREFIX_BITS = 24;
+	public static final int MIN_PREFIX_BITS = 8;
+	private static final long IPV4_MAPPED_PREFIX = 0xFFFFL << 32;
+	private static final int UNIFORM = Integer.MIN_VALUE;
+	
+	@Getter
+	private final GeoIPBlockIndex blockIndex;
+	@Getter
+	private final int prefixBits;
+	@Getter
+	private final int uniformPrefixes;
+	private final int shift;
+	private final ByteBuffer slots;
+	
+	private GeoIPIPv4Table(GeoIPBlockIndex blockIndex, int prefixBits) {
+		this.blockIndex = blockIndex;
+		this.prefixBits = prefixBits;
+		shift = Integer.SIZE - prefixBits;
+		int prefixes = 1 << prefixBits;
+		slots = ByteBuffer.allocateDirect(prefixes * Integer.BYTES).order(GeoIPBlockIndex.BYTE_ORDER);
+		int size = blockIndex.size();
+		int position = 0;
+		int uniform = 0;
+		for (int prefix = 0; prefix < prefixes; prefix++) {
+			long first = IPV4_MAPPED_PREFIX | ((long) prefix << shift);
+			long last = first | ((1L << shift) - 1);
+			while (position < size &&
+					GeoIPBlockIndex.compare(blockIndex.stopHigh(position), blockIndex.stopLow(position), 0, first) < 0) {
+				position++;
+			}
+			int slot = position;
+			if (position < size &&
+					GeoIPBlockIndex.compare(blockIndex.startHigh(position), blockIndex.startLow(position), 0, first) <= 0 &&
+					GeoIPBlockIndex.compare(0, last, blockIndex.stopHigh(position), blockIndex.stopLow(position)) <= 0) {
+				slot |= UNIFORM;
+				uniform++;
+			}
+			slots.putInt(prefix * Integer.BYTES, slot);
+		}
+		uniformPrefixes = uniform;
+	}
+	
+	// Picks the longest prefix that fits, returns null when the budget doesn't fit even the shortest one
+	public static GeoIPIPv4Table build(GeoIPBlockIndex blockIndex, long maxMemory) {
+		int prefixBits = maxMemory >= Integer.BYTES ?
+				Math.min(MAX_PREFIX_BITS, 63 - Long.numberOfLeadingZeros(maxMemory / Integer.BYTES)) :
+				-1;
+		return prefixBits >= MIN_PREFIX_BITS ? new GeoIPIPv4Table(blockIndex, prefixBits) : null;
+	}
+	
+	public long getMemoryUsage() {
+		return (long) slots.capacity();
+	}
+	
+	// Same result as GeoIPBlockIndex.find, IPv6 addresses go straight to the range search
+	public int find(long addressHigh, long addressLow) {
+		if (addressHigh != 0 || (addressLow & ~0xFFFFFFFFL) != IPV4_MAPPED_PREFIX) {
+			return blockIndex.find(addressHigh, addressLow);
+		}
+		int prefix = (int) ((addressLow & 0xFFFFFFFFL) >>> shift);
+		int slot = slots.getInt(prefix * Integer.BYTES);
+		if (slot < 0) return slot & ~UNIFORM;
+		int to = prefix + 1 < slots.capacity() / Integer.BYTES ?
+				slots.getInt((prefix + 1) * Integer.BYTES) & ~UNIFORM :
+				blockIndex.size() - 1;
+		return blockIndex.find(addressHigh, addressLow, slot, Math.min(to, blockIndex.size() - 1));
+	}
+}
@@ -0,0 +1,200 @@
+package com.eternal_search.geoip.memory;
+
+import com.eternal_search.geoip.model.GeoIPLocationLevel;
+import com.eternal_search.geoip.model.dto.GeoIPAddressDTO;
+import com.eternal_search.geoip.model.dto.GeoIPLocationDTO;
+import lombok.Value;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class GeoIPLocationStore {
+	private final Map<String, LocaleTable> locales;
+	private final int size;
+	
+	private GeoIPLocationStore(Map<String, LocaleTable> locales, int size) {
+		this.locales = locales;
+		this.size = size;
+	}
+	
+	public static Builder builder() {
+		return new Builder();
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public Entry find(String localeCode, long locationId) {
+		LocaleTable table = locales.get(localeCode);
+		return table != null ? table.find(locationId) : null;
+	}
+	
+	public GeoIPAddressDTO.GeoIPAddressDTOBuilder apply(
+			GeoIPAddressDTO.GeoIPAddressDTOBuilder address,
+			Long locationId,
+			String localeCode
+	) {
+		Entry entry = locationId != null ? find(localeCode, locationId) : null;
+		if (entry != null) {
+			address
+					.isInEuropeanUnion(entry.getIsInEuropeanUnion())
+					.timezone(entry.getTimezone())
+					.location(entry.getLocation());
+		}
+		return address;
+	}
+	
+	Set<String> localeCodes() {
+		return locales.keySet();
+	}
+	
+	void forEach(EntryVisitor visitor) {
+		for (Map.Entry<String, LocaleTable> locale : locales.entrySet()) {
+			LocaleTable table = locale.getValue();
+			for (int slot = 0; slot < table.entries.length; slot++) {
+				if (table.entries[slot] != null) {
+					visitor.visit(locale.getKey(), table.ids[slot], table.entries[slot]);
+				}
+			}
+		}
+	}
+	
+	interface EntryVisitor {
+		void visit(String localeCode, long id, Entry entry);
+	}
+	
+	@Value
+	public static class Entry {
+		// Chains are shared between all entries of the same locale and must not be modified
+		GeoIPLocationDTO location;
+		Boolean isInEuropeanUnion;
+		String timezone;
+	}
+	
+	// Open addressing table keyed by primitive location ids
+	private static class LocaleTable {
+		private final long[] ids;
+		private final Entry[] entries;
+		private final int mask;
+		
+		LocaleTable(Collection<Node> nodes) {
+			int capacity = Integer.highestOneBit(Math.max(nodes.size(), 1) * 2 - 1) << 1;
+			ids = new long[capacity];
+			entries = new Entry[capacity];
+			mask = capacity - 1;
+			for (Node node : nodes) {
+				int slot = slot(node.id);
+				while (entries[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				ids[slot] = node.id;
+				entries[slot] = new Entry(node.location, node.isInEuropeanUnion, node.timezone);
+			}
+		}
+		
+		Entry find(long id) {
+			for (int slot = slot(id); entries[slot] != null; slot = (slot + 1) & mask) {
+				if (ids[slot] == id) return entries[slot];
+			}
+			return null;
+		}
+		
+		private int slot(long id) {
+			long hash = id * 0x9E3779B97F4A7C15L;
+			return (int) (hash ^ (hash >>> 32)) & mask;
+		}
+	}
+	
+	private static class Node {
+		final long id;
+		final Long parentId;
+		final GeoIPLocationLevel level;
+		final String name;
+		final String code;
+		final Boolean isInEuropeanUnion;
+		final String timezone;
+		GeoIPLocationDTO location;
+		boolean resolving;
+		
+		Node(
+				long id,
+				Long parentId,
+				GeoIPLocationLevel level,
+				String name,
+				String code,
+				Boolean isInEuropeanUnion,
+				String timezone
+		) {
+			this.id = id;
+			this.parentId = parentId;
+			this.level = level;
+			this.name = name;
+			this.code = code;
+			this.isInEuropeanUnion = isInEuropeanUnion;
+			this.timezone = timezone;
+		}
+	}
+	
+	public static class Builder {
+		private final Map<String, Map<Long, Node>> locales = new HashMap<>();
+		// Codes and timezone names repeat across locations and locales, keep a single copy of each
+		private final Map<String, String> strings = new HashMap<>();
+		
+		private Builder() {
+		}
+		
+		public Builder add(
+				String localeCode,
+				long id,
+				Long parentId,
+				GeoIPLocationLevel level,
+				String name,
+				String code,
+				Boolean isInEuropeanUnion,
+				String timezone
+		) {
+			locales.computeIfAbsent(dedup(localeCode), locale -> new HashMap<>()).put(id, new Node(
+					id, parentId, level, dedup(name), dedup(code), isInEuropeanUnion, dedup(timezone)
+			));
+			return this;
+		}
+		
+		public GeoIPLocationStore build() {
+			Map<String, LocaleTable> tables = new HashMap<>();
+			int size = 0;
+			for (Map.Entry<String, Map<Long, Node>> locale : locales.entrySet()) {
+				for (Node node : locale.getValue().values()) {
+					resolve(locale.getValue(), node);
+				}
+				tables.put(locale.getKey(), new LocaleTable(locale.getValue().values()));
+				size += locale.getValue().size();
+			}
+			return new GeoIPLocationStore(tables, size);
+		}
+		
+		private static GeoIPLocationDTO resolve(Map<Long, Node> nodes, Node node) {
+			if (node.location != null) return node.location;
+			if (node.resolving) {
+				throw new IllegalStateException("Location " + node.id + " is its own ancestor");
+			}
+			node.resolving = true;
+			Node parent = node.parentId != null ? nodes.get(node.parentId) : null;
+			node.location = GeoIPLocationDTO.builder()
+					.id(node.id)
+					.level(node.level)
+					.name(node.name)
+					.code(node.code)
+					.parent(parent != null ? resolve(nodes, parent) : null)
+					.build();
+			node.resolving = false;
+			return node.location;
+		}
+		
+		private String dedup(String value) {
+			return value != null ? strings.computeIfAbsent(value, key -> key) : null;
+		}
+	}
+}
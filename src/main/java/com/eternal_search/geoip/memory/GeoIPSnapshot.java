@@ -0,0 +1,281 @@
+package com.eternal_search.geoip.memory;
+
+import com.eternal_search.geoip.model.GeoIPLocationLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Self-contained copy of one generation, lets a node start without touching the database.
+// Layout: header (magic, version, payload length, CRC32 of the payload) followed by the little-endian payload,
+// block index columns are 8-byte aligned and get mapped straight from the file.
+@Getter
+@RequiredArgsConstructor
+public class GeoIPSnapshot {
+	private static final long MAGIC = 0x504E5350494F4547L; // "GEOIPSNP"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+	private static final byte NULL_BOOLEAN = 2;
+	private static final GeoIPLocationLevel[] LEVELS = GeoIPLocationLevel.values();
+	
+	private final GeoIPBlockIndex blockIndex;
+	private final GeoIPLocationStore locations;
+	private final List<String> locales;
+	private final Instant updatedAt;
+	
+	// The file is replaced atomically, so readers never see a partially written snapshot
+	public void write(Path path) throws IOException {
+		Path target = path.toAbsolutePath();
+		Path temporary = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+				Output output = new Output(channel);
+				writePayload(output);
+				output.flush();
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(GeoIPBlockIndex.BYTE_ORDER);
+				header.putLong(MAGIC).putInt(VERSION).putInt(0).putLong(output.length).putLong(output.crc.getValue());
+				header.flip();
+				channel.write(header, 0);
+				channel.force(true);
+			}
+			Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+	
+	private void writePayload(Output output) {
+		output.putLong(updatedAt != null ? updatedAt.toEpochMilli() : NO_TIMESTAMP);
+		output.putInt(locales.size());
+		for (String locale : locales) {
+			output.putString(locale);
+		}
+		String[] postalCodes = blockIndex.postalCodes();
+		output.putInt(blockIndex.size());
+		output.putInt(postalCodes.length);
+		for (String postalCode : postalCodes) {
+			output.putString(postalCode);
+		}
+		ByteBuffer[] columns = blockIndex.columns();
+		for (int i = 0; i < columns.length; i++) {
+			output.align();
+			output.putColumn(columns[i], blockIndex.size() * GeoIPBlockIndex.COLUMN_SIZES[i]);
+		}
+		List<String> localeCodes = new ArrayList<>(locations.localeCodes());
+		Map<String, Integer> localeIndexes = new HashMap<>();
+		output.putInt(localeCodes.size());
+		for (String localeCode : localeCodes) {
+			localeIndexes.put(localeCode, localeIndexes.size());
+			output.putString(localeCode);
+		}
+		// Chains are stored as parent references and rebuilt on load
+		output.putInt(locations.size());
+		locations.forEach((localeCode, id, entry) -> {
+			Long parentId = entry.getLocation().getParent() != null ? entry.getLocation().getParent().getId() : null;
+			output.putInt(localeIndexes.get(localeCode));
+			output.putLong(id);
+			output.putByte((byte) (parentId != null ? 1 : 0));
+			output.putLong(parentId != null ? parentId : 0);
+			output.putByte((byte) entry.getLocation().getLevel().ordinal());
+			output.putString(entry.getLocation().getName());
+			output.putString(entry.getLocation().getCode());
+			output.putByte(entry.getIsInEuropeanUnion() != null ?
+					(byte) (entry.getIsInEuropeanUnion() ? 1 : 0) :
+					NULL_BOOLEAN);
+			output.putString(entry.getTimezone());
+		});
+	}
+	
+	public static GeoIPSnapshot read(Path path) throws IOException {
+		ByteBuffer file;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Snapshot files larger than 2 GiB are not supported: " + path);
+			}
+			if (channel.size() < HEADER_SIZE) {
+				throw new IOException("Snapshot file is truncated: " + path);
+			}
+			file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(GeoIPBlockIndex.BYTE_ORDER);
+		}
+		if (file.getLong(0) != MAGIC) {
+			throw new IOException("Not a snapshot file: " + path);
+		}
+		int version = file.getInt(8);
+		if (version != VERSION) {
+			throw new IOException("Unsupported snapshot version " + version + ": " + path);
+		}
+		long length = file.getLong(16);
+		if (length != file.capacity() - HEADER_SIZE) {
+			throw new IOException("Snapshot file is truncated: " + path);
+		}
+		file.position(HEADER_SIZE);
+		ByteBuffer payload = file.slice().order(GeoIPBlockIndex.BYTE_ORDER);
+		CRC32 crc = new CRC32();
+		crc.update(payload.duplicate());
+		if (crc.getValue() != file.getLong(24)) {
+			throw new IOException("Snapshot checksum mismatch: " + path);
+		}
+		try {
+			return readPayload(payload);
+		} catch (RuntimeException e) {
+			throw new IOException("Malformed snapshot file: " + path, e);
+		}
+	}
+	
+	private static GeoIPSnapshot readPayload(ByteBuffer payload) {
+		long timestamp = payload.getLong();
+		Instant updatedAt = timestamp != NO_TIMESTAMP ? Instant.ofEpochMilli(timestamp) : null;
+		List<String> locales = new ArrayList<>();
+		for (int i = payload.getInt(); i > 0; i--) {
+			locales.add(getString(payload));
+		}
+		int size = payload.getInt();
+		String[] postalCodes = new String[payload.getInt()];
+		for (int i = 0; i < postalCodes.length; i++) {
+			postalCodes[i] = getString(payload);
+		}
+		ByteBuffer[] columns = new ByteBuffer[GeoIPBlockIndex.COLUMN_SIZES.length];
+		for (int i = 0; i < columns.length; i++) {
+			payload.position(align(payload.position()));
+			int bytes = size * GeoIPBlockIndex.COLUMN_SIZES[i];
+			ByteBuffer column = payload.slice();
+			column.limit(bytes);
+			columns[i] = column.slice();
+			payload.position(payload.position() + bytes);
+		}
+		GeoIPBlockIndex blockIndex = GeoIPBlockIndex.wrap(size, columns, postalCodes);
+		String[] localeCodes = new String[payload.getInt()];
+		for (int i = 0; i < localeCodes.length; i++) {
+			localeCodes[i] = getString(payload);
+		}
+		GeoIPLocationStore.Builder builder = GeoIPLocationStore.builder();
+		for (int i = payload.getInt(); i > 0; i--) {
+			String localeCode = localeCodes[payload.getInt()];
+			long id = payload.getLong();
+			boolean hasParent = payload.get() != 0;
+			long parentId = payload.getLong();
+			GeoIPLocationLevel level = LEVELS[payload.get()];
+			String name = getString(payload);
+			String code = getString(payload);
+			byte isInEuropeanUnion = payload.get();
+			builder.add(
+					localeCode,
+					id,
+					hasParent ? parentId : null,
+					level,
+					name,
+					code,
+					isInEuropeanUnion != NULL_BOOLEAN ? isInEuropeanUnion != 0 : null,
+					getString(payload)
+			);
+		}
+		return new GeoIPSnapshot(blockIndex, builder.build(), Collections.unmodifiableList(locales), updatedAt);
+	}
+	
+	private static String getString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) return null;
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	// Payload offsets are aligned, the header size keeps them aligned within the file as well
+	private static int align(int position) {
+		return (position + Long.BYTES - 1) & -Long.BYTES;
+	}
+	
+	private static class Output {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(GeoIPBlockIndex.BYTE_ORDER);
+		private final CRC32 crc = new CRC32();
+		private long length;
+		
+		Output(FileChannel channel) throws IOException {
+			this.channel = channel;
+			channel.position(HEADER_SIZE);
+		}
+		
+		void putByte(byte value) {
+			ensure(1);
+			buffer.put(value);
+		}
+		
+		void putInt(int value) {
+			ensure(Integer.BYTES);
+			buffer.putInt(value);
+		}
+		
+		void putLong(long value) {
+			ensure(Long.BYTES);
+			buffer.putLong(value);
+		}
+		
+		void putString(String value) {
+			if (value == null) {
+				putInt(-1);
+				return;
+			}
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			putInt(bytes.length);
+			for (int offset = 0; offset < bytes.length; ) {
+				ensure(1);
+				int count = Math.min(buffer.remaining(), bytes.length - offset);
+				buffer.put(bytes, offset, count);
+				offset += count;
+			}
+		}
+		
+		void align() {
+			while (((length + buffer.position()) & (Long.BYTES - 1)) != 0) {
+				putByte((byte) 0);
+			}
+		}
+		
+		@SneakyThrows(IOException.class)
+		void putColumn(ByteBuffer column, int bytes) {
+			flush();
+			ByteBuffer data = column.duplicate();
+			data.clear().limit(bytes);
+			crc.update(data.duplicate());
+			while (data.hasRemaining()) {
+				channel.write(data);
+			}
+			length += bytes;
+		}
+		
+		@SneakyThrows(IOException.class)
+		void flush() {
+			buffer.flip();
+			crc.update(buffer.duplicate());
+			length += buffer.remaining();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+		
+		private void ensure(int bytes) {
+			if (buffer.remaining() < bytes) {
+				flush();
+			}
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package com.eternal_search.geoip.mmdb;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class MmdbReader {
+	static final byte[] METADATA_MARKER = {
+			(byte) 0xAB, (byte) 0xCD, (byte) 0xEF,
+			'M', 'a', 'x', 'M', 'i', 'n', 'd', '.', 'c', 'o', 'm'
+	};
+	static final int TYPE_EXTENDED = 0;
+	static final int TYPE_POINTER = 1;
+	static final int TYPE_STRING = 2;
+	static final int TYPE_DOUBLE = 3;
+	static final int TYPE_BYTES = 4;
+	static final int TYPE_UINT16 = 5;
+	static final int TYPE_UINT32 = 6;
+	static final int TYPE_MAP = 7;
+	static final int TYPE_INT32 = 8;
+	static final int TYPE_UINT64 = 9;
+	static final int TYPE_UINT128 = 10;
+	static final int TYPE_ARRAY = 11;
+	static final int TYPE_BOOLEAN = 14;
+	static final int TYPE_FLOAT = 15;
+	private static final int METADATA_MAX_SIZE = 128 * 1024;
+	private static final int DATA_SECTION_SEPARATOR_SIZE = 16;
+	
+	private final ByteBuffer buffer;
+	private final int nodeCount;
+	private final int recordSize;
+	private final int nodeSize;
+	private final int dataStart;
+	@Getter
+	private final int ipVersion;
+	@Getter
+	private final String databaseType;
+	@Getter
+	private final List<String> languages;
+	@Getter
+	private final long buildEpoch;
+	
+	public MmdbReader(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("MMDB files larger than 2 GiB are not supported: " + path);
+			}
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer = mapped;
+		}
+		int metadataStart = findMetadata();
+		if (metadataStart < 0) {
+			throw new IOException("MMDB metadata not found in " + path);
+		}
+		@SuppressWarnings("unchecked")
+		Map<String, Object> metadata = (Map<String, Object>) new Decoder(metadataStart, metadataStart).decode();
+		nodeCount = ((Number) metadata.get("node_count")).intValue();
+		recordSize = ((Number) metadata.get("record_size")).intValue();
+		ipVersion = ((Number) metadata.get("ip_version")).intValue();
+		databaseType = (String) metadata.get("database_type");
+		List<String> languageList = new ArrayList<>();
+		Object languageValues = metadata.get("languages");
+		if (languageValues instanceof List) {
+			for (Object language : (List<?>) languageValues) {
+				languageList.add(language.toString());
+			}
+		}
+		languages = Collections.unmodifiableList(languageList);
+		Object epoch = metadata.get("build_epoch");
+		buildEpoch = epoch instanceof Number ? ((Number) epoch).longValue() : 0;
+		if (recordSize != 24 && recordSize != 28 && recordSize != 32) {
+			throw new IOException("Unsupported MMDB record size: " + recordSize);
+		}
+		nodeSize = recordSize / 4;
+		dataStart = nodeCount * nodeSize + DATA_SECTION_SEPARATOR_SIZE;
+	}
+	
+	private int findMetadata() {
+		int stop = Math.max(buffer.capacity() - METADATA_MAX_SIZE, 0);
+		for (int position = buffer.capacity() - METADATA_MARKER.length; position >= stop; position--) {
+			int i = 0;
+			while (i < METADATA_MARKER.length && buffer.get(position + i) == METADATA_MARKER[i]) {
+				i++;
+			}
+			if (i == METADATA_MARKER.length) {
+				return position + METADATA_MARKER.length;
+			}
+		}
+		return -1;
+	}
+	
+	// Walks the search tree without copying or allocating, returns an offset in the data section or -1
+	public int find(long addressHigh, long addressLow) {
+		int firstBit;
+		if (ipVersion == 4) {
+			if (addressHigh != 0 || (addressLow >>> 32) != 0xFFFFL) return -1;
+			firstBit = 96;
+		} else {
+			firstBit = 0;
+			// IPv4 networks live in the ::/96 subtree, aliases for ::ffff:0:0/96 are optional
+			if (addressHigh == 0 && (addressLow >>> 32) == 0xFFFFL) {
+				addressLow &= 0xFFFFFFFFL;
+			}
+		}
+		return walk(addressHigh, addressLow, firstBit);
+	}
+	
+	// Follows the address bits as given, without the IPv4-mapped shortcut
+	int walk(long addressHigh, long addressLow, int firstBit) {
+		long node = 0;
+		for (int i = firstBit; i < 128 && node < nodeCount; i++) {
+			int bit = (int) (i < 64 ? addressHigh >>> (63 - i) : addressLow >>> (127 - i)) & 1;
+			node = readRecord((int) node, bit);
+		}
+		if (node == nodeCount) return -1;
+		if (node < nodeCount) {
+			throw new IllegalStateException("Invalid MMDB search tree");
+		}
+		return (int) (node - nodeCount - DATA_SECTION_SEPARATOR_SIZE);
+	}
+	
+	private long readRecord(int node, int bit) {
+		int base = node * nodeSize;
+		switch (recordSize) {
+			case 24:
+				return readUnsigned(base + bit * 3, 3);
+			case 28:
+				int middle = buffer.get(base + 3) & 0xFF;
+				return bit == 0 ?
+						(long) (middle >>> 4) << 24 | readUnsigned(base, 3) :
+						(long) (middle & 0x0F) << 24 | readUnsigned(base + 4, 3);
+			default:
+				return readUnsigned(base + bit * 4, 4);
+		}
+	}
+	
+	private long readUnsigned(int position, int size) {
+		long result = 0;
+		for (int i = 0; i < size; i++) {
+			result = (result << 8) | (buffer.get(position + i) & 0xFF);
+		}
+		return result;
+	}
+	
+	public Object read(int offset) {
+		return new Decoder(dataStart, dataStart + offset).decode();
+	}
+	
+	private class Decoder {
+		private final int sectionStart;
+		private int position;
+		
+		Decoder(int sectionStart, int position) {
+			this.sectionStart = sectionStart;
+			this.position = position;
+		}
+		
+		Object decode() {
+			int control = buffer.get(position++) & 0xFF;
+			int type = control >>> 5;
+			if (type == TYPE_POINTER) {
+				int pointer = readPointer(control);
+				int next = position;
+				position = sectionStart + pointer;
+				Object value = decode();
+				position = next;
+				return value;
+			}
+			if (type == TYPE_EXTENDED) {
+				type = 7 + (buffer.get(position++) & 0xFF);
+			}
+			int size = readSize(control & 0x1F);
+			switch (type) {
+				case TYPE_STRING:
+					return readString(size);
+				case TYPE_DOUBLE:
+					return Double.longBitsToDouble(readValue(size));
+				case TYPE_FLOAT:
+					return Float.intBitsToFloat((int) readValue(size));
+				case TYPE_BYTES: {
+					byte[] bytes = new byte[size];
+					for (int i = 0; i < size; i++) {
+						bytes[i] = buffer.get(position++);
+					}
+					return bytes;
+				}
+				case TYPE_UINT16:
+				case TYPE_INT32:
+					return (int) readValue(size);
+				case TYPE_UINT32:
+				case TYPE_UINT64:
+					return readValue(size);
+				case TYPE_UINT128: {
+					byte[] bytes = new byte[size + 1];
+					for (int i = 0; i < size; i++) {
+						bytes[i + 1] = buffer.get(position++);
+					}
+					return new BigInteger(bytes);
+				}
+				case TYPE_BOOLEAN:
+					return size != 0;
+				case TYPE_MAP: {
+					Map<String, Object> map = new LinkedHashMap<>(size * 2);
+					for (int i = 0; i < size; i++) {
+						String key = decode().toString();
+						map.put(key, decode());
+					}
+					return map;
+				}
+				case TYPE_ARRAY: {
+					List<Object> list = new ArrayList<>(size);
+					for (int i = 0; i < size; i++) {
+						list.add(decode());
+					}
+					return list;
+				}
+				default:
+					throw new IllegalStateException("Unsupported MMDB data type: " + type);
+			}
+		}
+		
+		private int readPointer(int control) {
+			int sizeBits = (control >>> 3) & 0x03;
+			int value = control & 0x07;
+			switch (sizeBits) {
+				case 0:
+					return (value << 8 | (int) readValue(1));
+				case 1:
+					return (value << 16 | (int) readValue(2)) + 2048;
+				case 2:
+					return (value << 24 | (int) readValue(3)) + 526336;
+				default:
+					return (int) readValue(4);
+			}
+		}
+		
+		private int readSize(int size) {
+			switch (size) {
+				case 29:
+					return 29 + (int) readValue(1);
+				case 30:
+					return 285 + (int) readValue(2);
+				case 31:
+					return 65821 + (int) readValue(3);
+				default:
+					return size;
+			}
+		}
+		
+		private long readValue(int size) {
+			long result = readUnsigned(position, size);
+			position += size;
+			return result;
+		}
+		
+		private String readString(int size) {
+			byte[] bytes = new byte[size];
+			for (int i = 0; i < size; i++) {
+				bytes[i] = buffer.get(position++);
+			}
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package com.eternal_search.geoip.mmdb;
+
+import com.eternal_search.geoip.memory.GeoIPLocationStore;
+import com.eternal_search.geoip.model.GeoIPBlock;
+import com.eternal_search.geoip.model.GeoIPLocationLevel;
+import com.eternal_search.geoip.model.dto.GeoIPAddressDTO;
+import com.eternal_search.geoip.model.dto.GeoIPLocationDTO;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Maps between our blocks and GeoIP2-City compatible records, so exported files also work with MaxMind readers
+public final class MmdbRecords {
+	public static final String DATABASE_TYPE = "GeoIP2-City";
+	
+	private MmdbRecords() {
+		throw new UnsupportedOperationException();
+	}
+	
+	public static Map<String, Object> toRecord(GeoIPBlock block, List<String> locales, GeoIPLocationStore locations) {
+		Map<GeoIPLocationLevel, Map<String, Object>> levels = new EnumMap<>(GeoIPLocationLevel.class);
+		Boolean isInEuropeanUnion = null;
+		String timezone = null;
+		if (block.getLocationId() != null) {
+			for (String locale : locales) {
+				GeoIPLocationStore.Entry entry = locations.find(locale, block.getLocationId());
+				if (entry == null) continue;
+				if (isInEuropeanUnion == null) isInEuropeanUnion = entry.getIsInEuropeanUnion();
+				if (timezone == null) timezone = entry.getTimezone();
+				for (GeoIPLocationDTO location = entry.getLocation(); location != null; location = location.getParent()) {
+					Map<String, Object> level = levels.computeIfAbsent(location.getLevel(), key -> new LinkedHashMap<>());
+					if (location.getId() != null && isGeonameId(location.getId())) {
+						level.putIfAbsent("geoname_id", (int) (long) location.getId());
+					}
+					if (location.getCode() != null) {
+						level.putIfAbsent("code", location.getCode());
+					}
+					if (location.getName() != null) {
+						names(level).put(locale, location.getName());
+					}
+				}
+			}
+		}
+		Map<String, Object> record = new LinkedHashMap<>();
+		putLevel(record, "continent", levels.get(GeoIPLocationLevel.CONTINENT), "code");
+		Map<String, Object> country = putLevel(record, "country", levels.get(GeoIPLocationLevel.COUNTRY), "iso_code");
+		if (country != null && Boolean.TRUE.equals(isInEuropeanUnion)) {
+			country.put("is_in_european_union", true);
+		}
+		List<Object> subdivisions = new ArrayList<>();
+		Map<String, Object> subdivision1 = levels.get(GeoIPLocationLevel.SUBDIVISION_1);
+		Map<String, Object> subdivision2 = levels.get(GeoIPLocationLevel.SUBDIVISION_2);
+		if (subdivision1 != null) subdivisions.add(withCodeKey(subdivision1, "iso_code"));
+		if (subdivision2 != null) subdivisions.add(withCodeKey(subdivision2, "iso_code"));
+		if (!subdivisions.isEmpty()) {
+			record.put("subdivisions", subdivisions);
+		}
+		putLevel(record, "city", levels.get(GeoIPLocationLevel.CITY), null);
+		Map<String, Object> metro = levels.get(GeoIPLocationLevel.METRO);
+		putLevel(record, "metro", metro, "code");
+		Map<String, Object> location = new LinkedHashMap<>();
+		if (block.getLatitude() != null) location.put("latitude", block.getLatitude());
+		if (block.getLongitude() != null) location.put("longitude", block.getLongitude());
+		if (block.getAccuracyRadius() != null) location.put("accuracy_radius", block.getAccuracyRadius().shortValue());
+		if (metro != null && metro.get("code") instanceof String && ((String) metro.get("code")).matches("\\d{1,4}")) {
+			location.put("metro_code", Short.valueOf((String) metro.get("code")));
+		}
+		if (timezone != null) location.put("time_zone", timezone);
+		if (!location.isEmpty()) {
+			record.put("location", location);
+		}
+		if (block.getPostalCode() != null) {
+			Map<String, Object> postal = new LinkedHashMap<>();
+			postal.put("code", block.getPostalCode());
+			record.put("postal", postal);
+		}
+		Map<String, Object> traits = new LinkedHashMap<>();
+		if (Boolean.TRUE.equals(block.getIsAnonymousProxy())) traits.put("is_anonymous_proxy", true);
+		if (Boolean.TRUE.equals(block.getIsSatelliteProvider())) traits.put("is_satellite_provider", true);
+		if (!traits.isEmpty()) {
+			record.put("traits", traits);
+		}
+		return record;
+	}
+	
+	public static GeoIPAddressDTO toAddress(Object value, String address, String localeCode, boolean hasLocale) {
+		Map<?, ?> record = value instanceof Map ? (Map<?, ?>) value : new LinkedHashMap<>();
+		Map<?, ?> location = getMap(record, "location");
+		Map<?, ?> traits = getMap(record, "traits");
+		GeoIPAddressDTO.GeoIPAddressDTOBuilder builder = GeoIPAddressDTO.builder()
+				.address(address)
+				.localeCode(localeCode)
+				.postalCode(getString(getMap(record, "postal"), "code"))
+				.latitude(getDouble(location, "latitude"))
+				.longtiude(getDouble(location, "longitude"))
+				.accuracyRadius(getInteger(location, "accuracy_radius"))
+				.isAnonymousProxy(Boolean.TRUE.equals(getValue(traits, "is_anonymous_proxy")))
+				.isSatelliteProvider(Boolean.TRUE.equals(getValue(traits, "is_satellite_provider")));
+		// The database only knows locations for imported locales
+		if (!hasLocale) {
+			return builder.build();
+		}
+		Map<?, ?> country = getMap(record, "country");
+		GeoIPLocationDTO chain = null;
+		chain = toLocation(getMap(record, "continent"), GeoIPLocationLevel.CONTINENT, "code", localeCode, chain);
+		chain = toLocation(country, GeoIPLocationLevel.COUNTRY, "iso_code", localeCode, chain);
+		Object subdivisions = record.get("subdivisions");
+		if (subdivisions instanceof List) {
+			List<?> list = (List<?>) subdivisions;
+			for (int i = 0; i < list.size() && i < 2; i++) {
+				GeoIPLocationLevel level = i == 0 ? GeoIPLocationLevel.SUBDIVISION_1 : GeoIPLocationLevel.SUBDIVISION_2;
+				chain = toLocation((Map<?, ?>) list.get(i), level, "iso_code", localeCode, chain);
+			}
+		}
+		chain = toLocation(getMap(record, "city"), GeoIPLocationLevel.CITY, null, localeCode, chain);
+		Map<?, ?> metro = getMap(record, "metro");
+		if (metro != null) {
+			chain = toLocation(metro, GeoIPLocationLevel.METRO, "code", localeCode, chain);
+		} else if (getValue(location, "metro_code") != null) {
+			chain = GeoIPLocationDTO.builder()
+					.level(GeoIPLocationLevel.METRO)
+					.code(getValue(location, "metro_code").toString())
+					.parent(chain)
+					.build();
+		}
+		return builder
+				.isInEuropeanUnion(chain != null ? Boolean.TRUE.equals(getValue(country, "is_in_european_union")) : null)
+				.timezone(getString(location, "time_zone"))
+				.location(chain)
+				.build();
+	}
+	
+	private static GeoIPLocationDTO toLocation(
+			Map<?, ?> level,
+			GeoIPLocationLevel type,
+			String codeKey,
+			String localeCode,
+			GeoIPLocationDTO parent
+	) {
+		if (level == null) return parent;
+		String name = getString(getMap(level, "names"), localeCode);
+		Object code = codeKey != null ? level.get(codeKey) : null;
+		if (name == null && code == null) return parent;
+		Object id = level.get("geoname_id");
+		return GeoIPLocationDTO.builder()
+				.id(id instanceof Number ? ((Number) id).longValue() : null)
+				.level(type)
+				.name(name)
+				.code(code != null ? code.toString() : null)
+				.parent(parent)
+				.build();
+	}
+	
+	private static Map<String, Object> putLevel(
+			Map<String, Object> record,
+			String key,
+			Map<String, Object> level,
+			String codeKey
+	) {
+		if (level == null) return null;
+		Map<String, Object> result = withCodeKey(level, codeKey);
+		record.put(key, result);
+		return result;
+	}
+	
+	private static Map<String, Object> withCodeKey(Map<String, Object> level, String codeKey) {
+		Map<String, Object> result = new LinkedHashMap<>();
+		for (Map.Entry<String, Object> entry : level.entrySet()) {
+			if (entry.getKey().equals("code")) {
+				if (codeKey != null) result.put(codeKey, entry.getValue());
+			} else {
+				result.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return result;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> names(Map<String, Object> level) {
+		return (Map<String, Object>) level.computeIfAbsent("names", key -> new LinkedHashMap<String, Object>());
+	}
+	
+	// geoname_id is a uint32 in the GeoIP2 schema, synthetic ids of intermediate locations (negative) are left out,
+	// so MMDB lookups return those locations without an id
+	private static boolean isGeonameId(long id) {
+		return id >= 0 && id <= Integer.MAX_VALUE;
+	}
+	
+	private static Map<?, ?> getMap(Map<?, ?> map, String key) {
+		Object value = getValue(map, key);
+		return value instanceof Map ? (Map<?, ?>) value : null;
+	}
+	
+	private static Object getValue(Map<?, ?> map, String key) {
+		return map != null ? map.get(key) : null;
+	}
+	
+	private static String getString(Map<?, ?> map, String key) {
+		Object value = getValue(map, key);
+		return value != null ? value.toString() : null;
+	}
+	
+	private static Double getDouble(Map<?, ?> map, String key) {
+		Object value = getValue(map, key);
+		return value instanceof Number ? ((Number) value).doubleValue() : null;
+	}
+	
+	private static Integer getInteger(Map<?, ?> map, String key) {
+		Object value = getValue(map, key);
+		return value instanceof Number ? ((Number) value).intValue() : null;
+	}
+}
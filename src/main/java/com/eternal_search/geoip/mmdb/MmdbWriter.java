@@ -0,0 +1,332 @@
+package com.eternal_search.geoip.mmdb;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class MmdbWriter {
+	private static final int IPV4_ROOT_DEPTH = 96;
+	// Values of up to this size are cheaper to inline than to reference with a pointer
+	private static final int MAX_INLINE_SIZE = 4;
+	
+	private final String databaseType;
+	private final List<String> languages;
+	private final String description;
+	// Two records per node: 0 is empty, a positive value is a child node, a negative one is -(data offset + 1)
+	private int[] records = new int[1 << 16];
+	private int nodeCount = 1;
+	private final ByteArrayOutputStream data = new ByteArrayOutputStream(1 << 20);
+	private final Map<ByteBuffer, Integer> dataOffsets = new HashMap<>();
+	
+	public MmdbWriter(String databaseType, List<String> languages, String description) {
+		this.databaseType = databaseType;
+		this.languages = languages;
+		this.description = description;
+	}
+	
+	// Keys are unsigned 128-bit addresses, IPv4-mapped ranges are stored in the ::/96 subtree as MaxMind readers expect
+	public MmdbWriter insert(long startHigh, long startLow, long stopHigh, long stopLow, Map<String, Object> record) {
+		if (isIPv4Mapped(startHigh, startLow) && isIPv4Mapped(stopHigh, stopLow)) {
+			startLow &= 0xFFFFFFFFL;
+			stopLow &= 0xFFFFFFFFL;
+		}
+		int value = -(store(encode(record, true)) + 1);
+		int startTrailingZeros = startLow != 0 ?
+				Long.numberOfTrailingZeros(startLow) :
+				64 + Long.numberOfTrailingZeros(startHigh);
+		int stopTrailingOnes = stopLow != -1L ?
+				Long.numberOfTrailingZeros(~stopLow) :
+				64 + Long.numberOfTrailingZeros(~stopHigh);
+		insert(0, 0, true, true, startHigh, startLow, stopHigh, stopLow, startTrailingZeros, stopTrailingOnes, value);
+		return this;
+	}
+	
+	private void insert(
+			int node,
+			int depth,
+			boolean lowTight,
+			boolean highTight,
+			long startHigh,
+			long startLow,
+			long stopHigh,
+			long stopLow,
+			int startTrailingZeros,
+			int stopTrailingOnes,
+			int value
+	) {
+		int startBit = bit(startHigh, startLow, depth);
+		int stopBit = bit(stopHigh, stopLow, depth);
+		for (int branch = 0; branch <= 1; branch++) {
+			if (lowTight && branch < startBit) continue;
+			if (highTight && branch > stopBit) continue;
+			boolean childLowTight = lowTight && branch == startBit;
+			boolean childHighTight = highTight && branch == stopBit;
+			// The child subtree is covered when the remaining bounds are all zeros and all ones respectively
+			boolean covered = (!childLowTight || startTrailingZeros >= 127 - depth) &&
+					(!childHighTight || stopTrailingOnes >= 127 - depth);
+			int record = records[node * 2 + branch];
+			if (covered) {
+				if (record != 0) {
+					throw new IllegalArgumentException("Overlapping networks");
+				}
+				records[node * 2 + branch] = value;
+				continue;
+			}
+			if (record < 0) {
+				throw new IllegalArgumentException("Overlapping networks");
+			}
+			if (record == 0) {
+				record = newNode();
+				records[node * 2 + branch] = record;
+			}
+			insert(
+					record, depth + 1, childLowTight, childHighTight,
+					startHigh, startLow, stopHigh, stopLow, startTrailingZeros, stopTrailingOnes, value
+			);
+		}
+	}
+	
+	private int newNode() {
+		if (nodeCount * 2 >= records.length) {
+			records = Arrays.copyOf(records, records.length * 2);
+		}
+		return nodeCount++;
+	}
+	
+	private static boolean isIPv4Mapped(long high, long low) {
+		return high == 0 && (low >>> 32) == 0xFFFFL;
+	}
+	
+	private static int bit(long high, long low, int index) {
+		return (int) (index < 64 ? high >>> (63 - index) : low >>> (127 - index)) & 1;
+	}
+	
+	// Points ::ffff:0:0/96 at the IPv4 subtree so that mapped addresses resolve through either path
+	private void aliasIPv4() {
+		int ipv4Root = 0;
+		for (int depth = 0; depth < IPV4_ROOT_DEPTH; depth++) {
+			int record = records[ipv4Root * 2];
+			if (record <= 0) return;
+			ipv4Root = record;
+		}
+		int node = 0;
+		for (int depth = 0; depth < IPV4_ROOT_DEPTH - 1; depth++) {
+			int branch = depth < 80 ? 0 : 1;
+			int record = records[node * 2 + branch];
+			if (record < 0) return;
+			if (record == 0) {
+				record = newNode();
+				records[node * 2 + branch] = record;
+			}
+			node = record;
+		}
+		if (records[node * 2 + 1] == 0) {
+			records[node * 2 + 1] = ipv4Root;
+		}
+	}
+	
+	private int store(byte[] encoded) {
+		return dataOffsets.computeIfAbsent(ByteBuffer.wrap(encoded), key -> {
+			int offset = data.size();
+			data.write(encoded, 0, encoded.length);
+			return offset;
+		});
+	}
+	
+	public void write(OutputStream outputStream) throws IOException {
+		aliasIPv4();
+		int recordSize = recordSize(nodeCount + 16L + data.size());
+		OutputStream output = new BufferedOutputStream(outputStream, 1 << 16);
+		byte[] node = new byte[recordSize / 4];
+		for (int i = 0; i < nodeCount; i++) {
+			writeNode(node, recordSize, recordValue(records[i * 2]), recordValue(records[i * 2 + 1]));
+			output.write(node);
+		}
+		output.write(new byte[16]);
+		data.writeTo(output);
+		output.write(MmdbReader.METADATA_MARKER);
+		Map<String, Object> metadata = new LinkedHashMap<>();
+		metadata.put("node_count", nodeCount);
+		metadata.put("record_size", (short) recordSize);
+		metadata.put("ip_version", (short) 6);
+		metadata.put("database_type", databaseType);
+		metadata.put("languages", languages);
+		metadata.put("binary_format_major_version", (short) 2);
+		metadata.put("binary_format_minor_version", (short) 0);
+		metadata.put("build_epoch", Instant.now().getEpochSecond());
+		metadata.put("description", description != null ?
+				Collections.singletonMap("en", description) :
+				Collections.emptyMap());
+		output.write(encode(metadata, false));
+		output.flush();
+	}
+	
+	private long recordValue(int record) {
+		if (record == 0) return nodeCount;
+		if (record > 0) return record;
+		return nodeCount + 16L + (-record - 1);
+	}
+	
+	private static int recordSize(long maxValue) {
+		if (maxValue < 1L << 24) return 24;
+		if (maxValue < 1L << 28) return 28;
+		if (maxValue < 1L << 32) return 32;
+		throw new IllegalStateException("Database is too large");
+	}
+	
+	private static void writeNode(byte[] node, int recordSize, long left, long right) {
+		switch (recordSize) {
+			case 24:
+				writeUnsigned(node, 0, left, 3);
+				writeUnsigned(node, 3, right, 3);
+				break;
+			case 28:
+				writeUnsigned(node, 0, left & 0xFFFFFF, 3);
+				node[3] = (byte) (((left >>> 24) & 0x0F) << 4 | ((right >>> 24) & 0x0F));
+				writeUnsigned(node, 4, right & 0xFFFFFF, 3);
+				break;
+			default:
+				writeUnsigned(node, 0, left, 4);
+				writeUnsigned(node, 4, right, 4);
+				break;
+		}
+	}
+	
+	private static void writeUnsigned(byte[] target, int offset, long value, int size) {
+		for (int i = size - 1; i >= 0; i--) {
+			target[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+	
+	// Strings and containers nested in data records are stored once and referenced by pointers
+	private byte[] encode(Object value, boolean usePointers) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		if (value instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			writeControl(output, MmdbReader.TYPE_MAP, map.size());
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				writeNested(output, entry.getKey().toString(), usePointers);
+				writeNested(output, entry.getValue(), usePointers);
+			}
+		} else if (value instanceof List) {
+			List<?> list = (List<?>) value;
+			writeControl(output, MmdbReader.TYPE_ARRAY, list.size());
+			for (Object item : list) {
+				writeNested(output, item, usePointers);
+			}
+		} else if (value instanceof String) {
+			byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+			writeControl(output, MmdbReader.TYPE_STRING, bytes.length);
+			output.write(bytes, 0, bytes.length);
+		} else if (value instanceof Boolean) {
+			writeControl(output, MmdbReader.TYPE_BOOLEAN, (Boolean) value ? 1 : 0);
+		} else if (value instanceof Short) {
+			writeUnsigned(output, MmdbReader.TYPE_UINT16, (Short) value & 0xFFFF);
+		} else if (value instanceof Integer) {
+			int intValue = (Integer) value;
+			if (intValue >= 0) {
+				writeUnsigned(output, MmdbReader.TYPE_UINT32, intValue);
+			} else {
+				writeControl(output, MmdbReader.TYPE_INT32, 4);
+				byte[] bytes = new byte[4];
+				writeUnsigned(bytes, 0, intValue, 4);
+				output.write(bytes, 0, 4);
+			}
+		} else if (value instanceof Long) {
+			writeUnsigned(output, MmdbReader.TYPE_UINT64, (Long) value);
+		} else if (value instanceof Double) {
+			writeControl(output, MmdbReader.TYPE_DOUBLE, 8);
+			byte[] bytes = new byte[8];
+			writeUnsigned(bytes, 0, Double.doubleToLongBits((Double) value), 8);
+			output.write(bytes, 0, 8);
+		} else if (value instanceof Float) {
+			writeControl(output, MmdbReader.TYPE_FLOAT, 4);
+			byte[] bytes = new byte[4];
+			writeUnsigned(bytes, 0, Float.floatToIntBits((Float) value), 4);
+			output.write(bytes, 0, 4);
+		} else {
+			throw new IllegalArgumentException("Unsupported MMDB value: " + value);
+		}
+		return output.toByteArray();
+	}
+	
+	private void writeNested(ByteArrayOutputStream output, Object value, boolean usePointers) {
+		byte[] encoded = encode(value, usePointers);
+		if (!usePointers || encoded.length <= MAX_INLINE_SIZE || value instanceof Boolean || value instanceof Number) {
+			output.write(encoded, 0, encoded.length);
+			return;
+		}
+		writePointer(output, store(encoded));
+	}
+	
+	private static void writePointer(ByteArrayOutputStream output, int offset) {
+		if (offset < 2048) {
+			output.write(0x20 | (offset >>> 8) & 0x07);
+			output.write(offset);
+		} else if (offset < 526336) {
+			int value = offset - 2048;
+			output.write(0x28 | (value >>> 16) & 0x07);
+			output.write(value >>> 8);
+			output.write(value);
+		} else if (offset < 134744064) {
+			int value = offset - 526336;
+			output.write(0x30 | (value >>> 24) & 0x07);
+			output.write(value >>> 16);
+			output.write(value >>> 8);
+			output.write(value);
+		} else {
+			output.write(0x38);
+			output.write(offset >>> 24);
+			output.write(offset >>> 16);
+			output.write(offset >>> 8);
+			output.write(offset);
+		}
+	}
+	
+	private static void writeUnsigned(ByteArrayOutputStream output, int type, long value) {
+		int size = (64 - Long.numberOfLeadingZeros(value) + 7) / 8;
+		writeControl(output, type, size);
+		for (int i = size - 1; i >= 0; i--) {
+			output.write((int) (value >>> (i * 8)));
+		}
+	}
+	
+	private static void writeControl(ByteArrayOutputStream output, int type, int size) {
+		int typeBits = type <= 7 ? type : 0;
+		if (size < 29) {
+			output.write(typeBits << 5 | size);
+		} else if (size < 285) {
+			output.write(typeBits << 5 | 29);
+		} else if (size < 65821) {
+			output.write(typeBits << 5 | 30);
+		} else {
+			output.write(typeBits << 5 | 31);
+		}
+		if (type > 7) {
+			output.write(type - 7);
+		}
+		if (size >= 65821) {
+			int extra = size - 65821;
+			output.write(extra >>> 16);
+			output.write(extra >>> 8);
+			output.write(extra);
+		} else if (size >= 285) {
+			int extra = size - 285;
+			output.write(extra >>> 8);
+			output.write(extra);
+		} else if (size >= 29) {
+			output.write(size - 29);
+		}
+	}
+}
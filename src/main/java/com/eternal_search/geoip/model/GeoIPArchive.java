@@ -0,0 +1,14 @@
+package com.eternal_search.geoip.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@Builder
+public class GeoIPArchive {
+	private String sha256;
+	
+	private String etag;
+	
+	private String lastModified;
+}
@@ -6,8 +6,10 @@ import lombok.Data;
 @Data
 @Builder
 public class GeoIPBlock {
-	private String start;
-	private String stop;
+	private Long startHigh;
+	private Long startLow;
+	private Long stopHigh;
+	private Long stopLow;
 	private Long locationId;
 	private String postalCode;
 	private Double latitude;
@@ -0,0 +1,10 @@
+package com.eternal_search.geoip.model;
+
+public enum GeoIPImportPhase {
+	DOWNLOAD,
+	PARSE,
+	BLOCKS,
+	LOCATIONS,
+	INDEX_BUILD,
+	COMMIT
+}
@@ -0,0 +1,11 @@
+package com.eternal_search.geoip.model.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class GeoIPAddressBatchDTO {
+	private String localeCode;
+	private List<String> addresses;
+}
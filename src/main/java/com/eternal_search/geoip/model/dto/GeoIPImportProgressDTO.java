@@ -0,0 +1,23 @@
+package com.eternal_search.geoip.model.dto;
+
+import com.eternal_search.geoip.model.GeoIPImportPhase;
+import lombok.Builder;
+import lombok.Data;
+
+import java.time.Instant;
+import java.util.Map;
+
+@Data
+@Builder
+public class GeoIPImportProgressDTO {
+	private GeoIPImportPhase phase;
+	private Instant startedAt;
+	private Map<String, Long> rows;
+	private double rowsPerSecond;
+	// Downloaded bytes while downloading, uncompressed CSV bytes afterwards
+	private long bytesRead;
+	private Long bytesTotal;
+	private double bytesPerSecond;
+	// Only known while the progress is measured in bytes
+	private Long etaSeconds;
+}
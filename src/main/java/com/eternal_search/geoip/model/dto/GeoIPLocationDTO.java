@@ -2,9 +2,9 @@ package com.eternal_search.geoip.model.dto;
 
 import com.eternal_search.geoip.model.GeoIPLocationLevel;
 import lombok.Builder;
-import lombok.Data;
+import lombok.Value;
 
-@Data
+@Value
 @Builder
 public class GeoIPLocationDTO {
 	private Long id;
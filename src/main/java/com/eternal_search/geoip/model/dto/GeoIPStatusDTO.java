@@ -11,4 +11,6 @@ public class GeoIPStatusDTO {
 	private Instant updatedAt;
 	
 	private boolean updating;
+	
+	private GeoIPImportProgressDTO progress;
 }
@@ -0,0 +1,137 @@
+package com.eternal_search.geoip.service;
+
+import com.eternal_search.geoip.model.GeoIPArchive;
+import com.eternal_search.geoip.model.dto.GeoIPAddressDTO;
+import com.eternal_search.geoip.model.dto.GeoIPLocationDTO;
+import com.eternal_search.geoip.util.IPAddressParser;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import lombok.Value;
+import lombok.extern.jbosslog.JBossLog;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+@JBossLog
+public class GeoIPCachingStorage implements GeoIPStorage {
+	// Rough heap footprint of a cache node with its key and an empty result
+	private static final int ENTRY_OVERHEAD = 256;
+	private static final int LOCATION_OVERHEAD = 64;
+	private static final int STRING_OVERHEAD = 40;
+	
+	private final GeoIPStorage delegate;
+	private final Cache<CacheKey, Optional<GeoIPAddressDTO>> cache;
+	// Entries are keyed by dataset generation, so lookups that started before an update can't be served after it
+	private final AtomicLong generation = new AtomicLong();
+	
+	public GeoIPCachingStorage(GeoIPStorage delegate, long maximumSize) {
+		this.delegate = delegate;
+		cache = Caffeine.newBuilder()
+				.maximumWeight(maximumSize)
+				.weigher((CacheKey key, Optional<GeoIPAddressDTO> value) -> estimateSize(key, value.orElse(null)))
+				.recordStats()
+				.build();
+	}
+	
+	public CacheStats getStats() {
+		return cache.stats();
+	}
+	
+	public long getGeneration() {
+		return generation.get();
+	}
+	
+	@Override
+	public Multi<String> findLocales() {
+		return delegate.findLocales();
+	}
+	
+	@Override
+	public Uni<GeoIPAddressDTO> findAddress(String address, String localeCode) {
+		long[] key = new long[2];
+		if (!IPAddressParser.parse(address, key)) {
+			return delegate.findAddress(address, localeCode);
+		}
+		CacheKey cacheKey = new CacheKey(generation.get(), key[0], key[1], localeCode);
+		Optional<GeoIPAddressDTO> cached = cache.getIfPresent(cacheKey);
+		if (cached != null) {
+			return cached.isPresent() ?
+					Uni.createFrom().item(withAddress(cached.get(), address)) :
+					Uni.createFrom().nullItem();
+		}
+		return delegate.findAddress(address, localeCode)
+				.onItem().invoke(result -> {
+					if (cacheKey.getGeneration() == generation.get()) {
+						cache.put(cacheKey, Optional.ofNullable(result));
+					}
+				});
+	}
+	
+	@Override
+	public Uni<List<GeoIPAddressDTO>> findAddresses(List<String> addresses, String localeCode) {
+		return delegate.findAddresses(addresses, localeCode);
+	}
+	
+	@Override
+	public <T> Uni<T> update(GeoIPArchive archive, Function<Updater, Uni<T>> updaterFunction) {
+		// A failed update may still have published data (e.g. memory reload failure), so invalidate anyway
+		return delegate.update(archive, updaterFunction)
+				.onItemOrFailure().invoke((result, error) -> invalidate());
+	}
+	
+	@Override
+	public Uni<Void> rollback() {
+		return delegate.rollback()
+				.onItemOrFailure().invoke((result, error) -> invalidate());
+	}
+	
+	@Override
+	public Uni<GeoIPArchive> findArchive() {
+		return delegate.findArchive();
+	}
+	
+	@Override
+	public Uni<Instant> findUpdatedAt() {
+		return delegate.findUpdatedAt();
+	}
+	
+	public void invalidate() {
+		long newGeneration = generation.incrementAndGet();
+		cache.invalidateAll();
+		log.infof("Lookup cache invalidated, generation %s, %s", newGeneration, cache.stats());
+	}
+	
+	private static GeoIPAddressDTO withAddress(GeoIPAddressDTO result, String address) {
+		// Different spellings of the same address share an entry, but the response should echo the input
+		return address.equals(result.getAddress()) ? result : result.toBuilder().address(address).build();
+	}
+	
+	private static int estimateSize(CacheKey key, GeoIPAddressDTO value) {
+		int size = ENTRY_OVERHEAD + estimateSize(key.getLocaleCode());
+		if (value == null) return size;
+		size += estimateSize(value.getAddress()) + estimateSize(value.getLocaleCode()) +
+				estimateSize(value.getPostalCode()) + estimateSize(value.getTimezone());
+		for (GeoIPLocationDTO location = value.getLocation(); location != null; location = location.getParent()) {
+			size += LOCATION_OVERHEAD + estimateSize(location.getName()) + estimateSize(location.getCode());
+		}
+		return size;
+	}
+	
+	private static int estimateSize(String value) {
+		return value != null ? STRING_OVERHEAD + value.length() * 2 : 0;
+	}
+	
+	@Value
+	private static class CacheKey {
+		long generation;
+		long addressHigh;
+		long addressLow;
+		String localeCode;
+	}
+}
@@ -1,35 +1,146 @@
 package com.eternal_search.geoip.service;
 
-import com.eternal_search.geoip.maxmind.MaxMindBlockParser;
+import com.eternal_search.geoip.config.GeoIPStorageConfig;
+import com.eternal_search.geoip.memory.GeoIPBlockIndex;
+import com.eternal_search.geoip.memory.GeoIPLocationStore;
+import com.eternal_search.geoip.memory.GeoIPSnapshot;
+import com.eternal_search.geoip.mmdb.MmdbRecords;
+import com.eternal_search.geoip.mmdb.MmdbWriter;
+import com.eternal_search.geoip.model.GeoIPArchive;
 import com.eternal_search.geoip.model.GeoIPBlock;
+import com.eternal_search.geoip.model.GeoIPImportPhase;
 import com.eternal_search.geoip.model.GeoIPLocation;
 import com.eternal_search.geoip.model.GeoIPLocationLevel;
 import com.eternal_search.geoip.model.GeoIPTimezone;
 import com.eternal_search.geoip.model.dto.GeoIPAddressDTO;
 import com.eternal_search.geoip.model.dto.GeoIPLocationDTO;
+import com.eternal_search.geoip.util.IPAddressParser;
+import io.agroal.api.AgroalDataSource;
+import io.quarkus.runtime.StartupEvent;
 import io.smallrye.mutiny.Multi;
 import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
 import io.vertx.mutiny.pgclient.PgPool;
 import io.vertx.mutiny.sqlclient.Row;
-import io.vertx.mutiny.sqlclient.Transaction;
+import io.vertx.mutiny.sqlclient.SqlClient;
 import io.vertx.mutiny.sqlclient.Tuple;
 import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
 import lombok.extern.jbosslog.JBossLog;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 
 import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.enterprise.inject.Typed;
 import javax.inject.Inject;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.time.Instant;
+import java.time.LocalDateTime;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
 @ApplicationScoped
+@Typed(GeoIPDatabase.class)
 @JBossLog
 public class GeoIPDatabase implements GeoIPStorage {
+	private static final int BLOCK_FETCH_SIZE = 65536;
+	private static final int LOCATION_FETCH_SIZE = 16384;
+	private static final String IMPORT_MODE_COPY = "copy";
+	private static final String UPDATE_MODE_INCREMENTAL = "incremental";
+	private static final String STAGING_BLOCKS = PgStaging.staging("geoip_blocks");
+	private static final String STAGING_LOCATIONS = PgStaging.staging("geoip_locations");
+	private static final String STAGING_LOCATION_NAMES = PgStaging.staging("geoip_location_names");
+	private static final String STAGING_TIMEZONES = PgStaging.staging("geoip_timezones");
+	private static final String STAGING_LOCALES = PgStaging.staging("geoip_locales");
+	// The hierarchy is walked once for all locales, names are only joined in to build each locale's chain
+	private static final String BUILD_ANCESTORS_SQL =
+			"WITH RECURSIVE chain AS (" +
+					"SELECT id AS location_id, 0 AS depth, id, parent_id, code, level " +
+					"FROM " + STAGING_LOCATIONS + " " +
+					"UNION ALL SELECT c.location_id, c.depth + 1, p.id, p.parent_id, p.code, p.level " +
+					"FROM chain c " +
+					"INNER JOIN " + STAGING_LOCATIONS + " p ON p.id = c.parent_id" +
+					") UPDATE " + STAGING_LOCATION_NAMES + " l SET ancestors = a.ancestors FROM (" +
+					"SELECT ln.location_id, ln.locale_code, jsonb_agg(jsonb_build_object(" +
+					"'id', c.id, 'name', n.name, 'code', c.code, 'level', c.level" +
+					") ORDER BY c.depth) AS ancestors " +
+					"FROM " + STAGING_LOCATION_NAMES + " ln " +
+					"INNER JOIN chain c ON c.location_id = ln.location_id " +
+					"LEFT JOIN " + STAGING_LOCATION_NAMES + " n ON n.location_id = c.id AND n.locale_code = ln.locale_code " +
+					"GROUP BY ln.location_id, ln.locale_code" +
+					") a WHERE l.location_id = a.location_id AND l.locale_code = a.locale_code";
+	private static final String INSERT_UPDATE_SQL =
+			"INSERT INTO geoip_updates (updated_at, sha256, etag, last_modified) VALUES (CURRENT_TIMESTAMP, ?, ?, ?)";
+	// Rollbacks only alternate between the last two generations, so the second to last record describes the restored one
+	private static final String RESTORE_UPDATE_SQL =
+			"INSERT INTO geoip_updates (updated_at, sha256, etag, last_modified) " +
+					"SELECT updated_at, sha256, etag, last_modified FROM geoip_updates ORDER BY id DESC LIMIT 1 OFFSET 1";
+	
 	@Inject
 	PgPool client;
 	
+	@Inject
+	AgroalDataSource dataSource;
+	
+	@Inject
+	GeoIPMetrics metrics;
+	
+	@Inject
+	GeoIPImportProgress progress;
+	
+	@ConfigProperty(name = "geoip.database.import-mode", defaultValue = IMPORT_MODE_COPY)
+	String importMode;
+	
+	// full swaps in freshly built tables and keeps the replaced ones for a rollback,
+	// incremental applies only the changed rows to the live ones
+	@ConfigProperty(name = "geoip.database.update-mode", defaultValue = "full")
+	String updateMode;
+	
+	@ConfigProperty(name = "geoip.database.batch-size", defaultValue = "1024")
+	int batchSize;
+	
+	@ConfigProperty(name = "geoip.database.batch-concurrency", defaultValue = "4")
+	int batchConcurrency;
+	
+	@ConfigProperty(name = "geoip.locations.in-memory", defaultValue = "true")
+	boolean locationsInMemory;
+	
+	@ConfigProperty(name = "geoip.storage", defaultValue = GeoIPStorageConfig.DATABASE)
+	String storage;
+	
+	private final AtomicReference<GeoIPLocationStore> locationStore = new AtomicReference<>();
+	
+	void onStart(@Observes StartupEvent event) {
+		if (!keepsLocationStore()) return;
+		reloadLocationStore().subscribe().with(
+				store -> {},
+				error -> log.error("Failed to load location store", error)
+		);
+	}
+	
+	// Only lookups served by the database use it, the memory storage keeps locations in its snapshot
+	// and the MMDB storage in its file (the export reads its own copy)
+	private boolean keepsLocationStore() {
+		return locationsInMemory && GeoIPStorageConfig.DATABASE.equals(storage);
+	}
+	
 	@Override
 	public Multi<String> findLocales() {
 		return client.preparedQuery("SELECT code FROM geoip_locales").execute()
@@ -39,52 +150,32 @@ public class GeoIPDatabase implements GeoIPStorage {
 	
 	@Override
 	public Uni<GeoIPAddressDTO> findAddress(String address, String localeCode) {
-		return client.preparedQuery(
-				"SELECT " +
-						"b.postal_code, b.latitude, b.longitude, b.accuracy_radius, " +
-						"b.is_anonymous_proxy, b.is_satellite_provider, l.is_in_european_union, t.name, l.id " +
-						"FROM geoip_blocks b " +
-						"LEFT JOIN geoip_locations l ON l.id = b.location_id AND l.locale_code = $1 " +
-						"LEFT JOIN geoip_timezones t ON t.id = l.timezone_id " +
-						"WHERE $2 BETWEEN b.start AND b.stop LIMIT 1"
-		).execute(Tuple.of(localeCode, MaxMindBlockParser.addressToString(address)))
-				.onItem().transformToMulti(rows -> Multi.createFrom().iterable(rows))
-				.collectItems().first()
-				.flatMap(row -> {
-					if (row == null) {
-						return Uni.createFrom().nullItem();
-					}
-					return client.preparedQuery(
-							"WITH RECURSIVE parents AS (" +
-									"SELECT * FROM geoip_locations " +
-									"WHERE id = $1 AND locale_code = $2 " +
-									"UNION SELECT p.* FROM geoip_locations p " +
-									"INNER JOIN parents c " +
-									"ON c.parent_id = p.id and c.locale_code = p.locale_code " +
-									") SELECT " +
-									"id, name, code, level " +
-									"FROM parents"
-					).execute(Tuple.of(row.getLong(8), localeCode))
-							.onItem().transformToMulti(rows -> Multi.createFrom().iterable(rows))
-							.collectItems().asList()
-							.map(tree -> {
-								GeoIPLocationDTO location = null;
-								GeoIPLocationDTO current = null;
-								for (Row treeRow : tree) {
-									GeoIPLocationDTO parent = GeoIPLocationDTO.builder()
-											.id(treeRow.getLong(0))
-											.name(treeRow.getString(1))
-											.code(treeRow.getString(2))
-											.level(GeoIPLocationLevel.valueOf(treeRow.getString(3)))
-											.build();
-									if (current == null) {
-										location = parent;
-									} else {
-										current.setParent(parent);
-									}
-									current = parent;
-								}
-								return GeoIPAddressDTO.builder()
+		long start = System.nanoTime();
+		long[] key = new long[2];
+		if (!IPAddressParser.parse(address, key)) {
+			return Uni.createFrom().failure(new IllegalArgumentException("Invalid address: " + address));
+		}
+		long parsed = metrics.recordPhase(GeoIPMetrics.Phase.PARSE, start);
+		GeoIPLocationStore locations = locationStore.get();
+		if (locations != null) {
+			return client.preparedQuery(
+					"SELECT " +
+							"postal_code, latitude, longitude, accuracy_radius, " +
+							"is_anonymous_proxy, is_satellite_provider, location_id " +
+							"FROM (" +
+							"SELECT * FROM geoip_blocks " +
+							"WHERE (start_high, start_low) <= ($1, $2) " +
+							"ORDER BY start_high DESC, start_low DESC LIMIT 1" +
+							") b " +
+							"WHERE (stop_high, stop_low) >= ($1, $2)"
+			).execute(Tuple.of(flipSign(key[0]), flipSign(key[1])))
+					.onItem().transformToMulti(rows -> Multi.createFrom().iterable(rows))
+					.collectItems().first()
+					.map(row -> {
+						long found = metrics.recordPhase(GeoIPMetrics.Phase.BLOCKS, parsed);
+						if (row == null) return null;
+						GeoIPAddressDTO result = locations.apply(
+								GeoIPAddressDTO.builder()
 										.address(address)
 										.localeCode(localeCode)
 										.postalCode(row.getString(0))
@@ -92,52 +183,510 @@ public class GeoIPDatabase implements GeoIPStorage {
 										.longtiude(row.getDouble(2))
 										.accuracyRadius(row.getInteger(3))
 										.isAnonymousProxy(row.getBoolean(4))
-										.isSatelliteProvider(row.getBoolean(5))
-										.isInEuropeanUnion(row.getBoolean(6))
-										.timezone(row.getString(7))
-										.location(location)
-										.build();
-							});
+										.isSatelliteProvider(row.getBoolean(5)),
+								row.getLong(6),
+								localeCode
+						).build();
+						metrics.recordPhase(GeoIPMetrics.Phase.LOCATIONS, found);
+						return result;
+					});
+		}
+		return client.preparedQuery(
+				"SELECT " +
+						"b.postal_code, b.latitude, b.longitude, b.accuracy_radius, " +
+						"b.is_anonymous_proxy, b.is_satellite_provider, l.is_in_european_union, t.name, n.ancestors " +
+						"FROM (" +
+						"SELECT * FROM geoip_blocks " +
+						"WHERE (start_high, start_low) <= ($1, $2) " +
+						"ORDER BY start_high DESC, start_low DESC LIMIT 1" +
+						") b " +
+						"LEFT JOIN (" +
+						"geoip_location_names n INNER JOIN geoip_locations l ON l.id = n.location_id" +
+						") ON n.location_id = b.location_id AND n.locale_code = $3 " +
+						"LEFT JOIN geoip_timezones t ON t.id = l.timezone_id " +
+						"WHERE (b.stop_high, b.stop_low) >= ($1, $2)"
+		).execute(Tuple.of(flipSign(key[0]), flipSign(key[1]), localeCode))
+				.onItem().transformToMulti(rows -> Multi.createFrom().iterable(rows))
+				.collectItems().first()
+				// Blocks and locations come from a single query here, it's all accounted to the block query
+				.invoke(row -> metrics.recordPhase(GeoIPMetrics.Phase.BLOCKS, parsed))
+				.map(row -> row != null ?
+						GeoIPAddressDTO.builder()
+								.address(address)
+								.localeCode(localeCode)
+								.postalCode(row.getString(0))
+								.latitude(row.getDouble(1))
+								.longtiude(row.getDouble(2))
+								.accuracyRadius(row.getInteger(3))
+								.isAnonymousProxy(row.getBoolean(4))
+								.isSatelliteProvider(row.getBoolean(5))
+								.isInEuropeanUnion(row.getBoolean(6))
+								.timezone(row.getString(7))
+								.location(ancestorsToLocation(row.getValue(8)))
+								.build() :
+						null
+				);
+	}
+	
+	@Override
+	public Uni<List<GeoIPAddressDTO>> findAddresses(List<String> addresses, String localeCode) {
+		List<Long> highs = new ArrayList<>(addresses.size());
+		List<Long> lows = new ArrayList<>(addresses.size());
+		int[] positions = new int[addresses.size()];
+		long[] key = new long[2];
+		for (int i = 0; i < addresses.size(); i++) {
+			if (addresses.get(i) == null || !IPAddressParser.parse(addresses.get(i), key)) continue;
+			positions[highs.size()] = i;
+			highs.add(flipSign(key[0]));
+			lows.add(flipSign(key[1]));
+		}
+		List<GeoIPAddressDTO.GeoIPAddressDTOBuilder> builders = new ArrayList<>(
+				Collections.nCopies(addresses.size(), null)
+		);
+		List<Long> locationIds = new ArrayList<>(Collections.nCopies(addresses.size(), null));
+		if (highs.isEmpty()) {
+			return findAddressLocations(builders, locationIds, localeCode);
+		}
+		return client.preparedQuery(
+				"SELECT " +
+						"k.ord, b.postal_code, b.latitude, b.longitude, b.accuracy_radius, " +
+						"b.is_anonymous_proxy, b.is_satellite_provider, b.location_id " +
+						"FROM unnest($1::int8[], $2::int8[]) WITH ORDINALITY AS k(high, low, ord) " +
+						"CROSS JOIN LATERAL (" +
+						"SELECT * FROM geoip_blocks " +
+						"WHERE (start_high, start_low) <= (k.high, k.low) " +
+						"ORDER BY start_high DESC, start_low DESC LIMIT 1" +
+						") b " +
+						"WHERE (b.stop_high, b.stop_low) >= (k.high, k.low)"
+		).execute(Tuple.tuple()
+				.addLongArray(highs.toArray(new Long[0]))
+				.addLongArray(lows.toArray(new Long[0])))
+				.flatMap(rows -> {
+					for (Row row : rows) {
+						int position = positions[(int) (row.getLong(0) - 1)];
+						builders.set(position, GeoIPAddressDTO.builder()
+								.address(addresses.get(position))
+								.localeCode(localeCode)
+								.postalCode(row.getString(1))
+								.latitude(row.getDouble(2))
+								.longtiude(row.getDouble(3))
+								.accuracyRadius(row.getInteger(4))
+								.isAnonymousProxy(row.getBoolean(5))
+								.isSatelliteProvider(row.getBoolean(6)));
+						locationIds.set(position, row.getLong(7));
+					}
+					return findAddressLocations(builders, locationIds, localeCode);
+				});
+	}
+	
+	public Uni<GeoIPAddressDTO> findAddressLocation(
+			GeoIPAddressDTO.GeoIPAddressDTOBuilder address,
+			Long locationId,
+			String localeCode
+	) {
+		if (locationId == null) {
+			return Uni.createFrom().item(address.build());
+		}
+		GeoIPLocationStore locations = locationStore.get();
+		if (locations != null) {
+			return Uni.createFrom().item(locations.apply(address, locationId, localeCode).build());
+		}
+		return client.preparedQuery(
+				"SELECT l.is_in_european_union, t.name, n.ancestors " +
+						"FROM geoip_location_names n " +
+						"INNER JOIN geoip_locations l ON l.id = n.location_id " +
+						"LEFT JOIN geoip_timezones t ON t.id = l.timezone_id " +
+						"WHERE n.location_id = $1 AND n.locale_code = $2"
+		).execute(Tuple.of(locationId, localeCode))
+				.onItem().transformToMulti(rows -> Multi.createFrom().iterable(rows))
+				.collectItems().first()
+				.map(row -> {
+					if (row != null) {
+						address
+								.isInEuropeanUnion(row.getBoolean(0))
+								.timezone(row.getString(1))
+								.location(ancestorsToLocation(row.getValue(2)));
+					}
+					return address.build();
+				});
+	}
+	
+	// Builders may contain nulls for unresolved addresses, those stay null in the result
+	public Uni<List<GeoIPAddressDTO>> findAddressLocations(
+			List<GeoIPAddressDTO.GeoIPAddressDTOBuilder> addresses,
+			List<Long> locationIds,
+			String localeCode
+	) {
+		GeoIPLocationStore locations = locationStore.get();
+		if (locations != null) {
+			List<GeoIPAddressDTO> result = new ArrayList<>(addresses.size());
+			for (int i = 0; i < addresses.size(); i++) {
+				GeoIPAddressDTO.GeoIPAddressDTOBuilder address = addresses.get(i);
+				result.add(address != null ?
+						locations.apply(address, locationIds.get(i), localeCode).build() :
+						null);
+			}
+			return Uni.createFrom().item(result);
+		}
+		Long[] distinctIds = locationIds.stream().filter(Objects::nonNull).distinct().toArray(Long[]::new);
+		Uni<Map<Long, Row>> locationsUni = distinctIds.length == 0 ?
+				Uni.createFrom().item(Collections.<Long, Row>emptyMap()) :
+				client.preparedQuery(
+						"SELECT l.id, l.is_in_european_union, t.name, n.ancestors " +
+								"FROM geoip_location_names n " +
+								"INNER JOIN geoip_locations l ON l.id = n.location_id " +
+								"LEFT JOIN geoip_timezones t ON t.id = l.timezone_id " +
+								"WHERE n.location_id = ANY($1) AND n.locale_code = $2"
+				).execute(Tuple.tuple().addLongArray(distinctIds).addString(localeCode))
+						.map(rows -> {
+							Map<Long, Row> locations = new HashMap<>();
+							for (Row row : rows) {
+								locations.put(row.getLong(0), row);
+							}
+							return locations;
+						});
+		return locationsUni.map(locations -> {
+			Map<Long, GeoIPLocationDTO> chains = new HashMap<>();
+			List<GeoIPAddressDTO> result = new ArrayList<>(addresses.size());
+			for (int i = 0; i < addresses.size(); i++) {
+				GeoIPAddressDTO.GeoIPAddressDTOBuilder address = addresses.get(i);
+				if (address == null) {
+					result.add(null);
+					continue;
+				}
+				Row row = locationIds.get(i) != null ? locations.get(locationIds.get(i)) : null;
+				if (row != null) {
+					address
+							.isInEuropeanUnion(row.getBoolean(1))
+							.timezone(row.getString(2))
+							.location(chains.computeIfAbsent(
+									row.getLong(0),
+									id -> ancestorsToLocation(row.getValue(3))
+							));
+				}
+				result.add(address.build());
+			}
+			return result;
+		});
+	}
+	
+	private static GeoIPLocationDTO ancestorsToLocation(Object ancestors) {
+		if (!(ancestors instanceof JsonArray)) {
+			return null;
+		}
+		JsonArray chain = (JsonArray) ancestors;
+		GeoIPLocationDTO location = null;
+		// The chain starts with the location itself, so build it from the root down
+		for (int i = chain.size() - 1; i >= 0; i--) {
+			JsonObject ancestor = chain.getJsonObject(i);
+			location = GeoIPLocationDTO.builder()
+					.id(ancestor.getLong("id"))
+					.name(ancestor.getString("name"))
+					.code(ancestor.getString("code"))
+					.level(GeoIPLocationLevel.valueOf(ancestor.getString("level")))
+					.parent(location)
+					.build();
+		}
+		return location;
+	}
+	
+	public Uni<GeoIPLocationStore> reloadLocationStore() {
+		return Uni.createFrom().item(this::loadLocationStore)
+				.runSubscriptionOn(Infrastructure.getDefaultWorkerPool())
+				.invoke(store -> {
+					log.infof("Loaded %s locations into memory", store.size());
+					locationStore.set(store);
 				});
 	}
 	
-	private Uni<Void> clear(Transaction transaction) {
-		return transaction.preparedQuery(
-				"SET CONSTRAINTS geoip_locations_parent_id_locale_code_fkey, geoip_locations_timezone_id_fkey " +
-						"DEFERRED"
-		).execute()
-				.flatMap(result -> {
-					log.info("Deleting exiting blocks");
-					return transaction.preparedQuery("DELETE FROM geoip_blocks").execute();
-				})
-				.flatMap(result -> {
-					log.info("Deleting exiting locations");
-					return transaction.preparedQuery("DELETE FROM geoip_locations").execute();
-				})
-				.flatMap(result -> {
-					log.info("Deleting exiting timezones");
-					return transaction.preparedQuery("DELETE FROM geoip_timezones").execute();
-				})
-				.flatMap(result -> {
-					log.info("Deleting exiting locales");
-					return transaction.preparedQuery("DELETE FROM geoip_locales").execute();
-				})
-				.flatMap(result -> Uni.createFrom().voidItem());
+	@SneakyThrows(SQLException.class)
+	private GeoIPLocationStore loadLocationStore() {
+		try (Connection connection = dataSource.getConnection()) {
+			connection.setAutoCommit(false);
+			GeoIPLocationStore store = readLocationStore(connection);
+			connection.commit();
+			return store;
+		}
+	}
+	
+	private static GeoIPLocationStore readLocationStore(Connection connection) throws SQLException {
+		GeoIPLocationStore.Builder builder = GeoIPLocationStore.builder();
+		try (Statement statement = connection.createStatement()) {
+			statement.setFetchSize(LOCATION_FETCH_SIZE);
+			try (ResultSet resultSet = statement.executeQuery(
+					"SELECT n.locale_code, l.id, l.parent_id, l.level, n.name, l.code, " +
+							"l.is_in_european_union, t.name " +
+							"FROM geoip_location_names n " +
+							"INNER JOIN geoip_locations l ON l.id = n.location_id " +
+							"LEFT JOIN geoip_timezones t ON t.id = l.timezone_id"
+			)) {
+				while (resultSet.next()) {
+					builder.add(
+							resultSet.getString(1),
+							resultSet.getLong(2),
+							getNullableLong(resultSet, 3),
+							GeoIPLocationLevel.valueOf(resultSet.getString(4)),
+							resultSet.getString(5),
+							resultSet.getString(6),
+							getNullableBoolean(resultSet, 7),
+							resultSet.getString(8)
+					);
+				}
+			}
+		}
+		return builder.build();
+	}
+	
+	// Writes the current generation as a GeoIP2-City compatible MMDB file, the whole tree is built in memory first
+	@SneakyThrows({SQLException.class, IOException.class})
+	public void exportMmdb(OutputStream output) {
+		try (Connection connection = dataSource.getConnection()) {
+			connection.setAutoCommit(false);
+			connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			List<String> locales = new ArrayList<>();
+			try (
+					Statement statement = connection.createStatement();
+					ResultSet resultSet = statement.executeQuery("SELECT code FROM geoip_locales ORDER BY code")
+			) {
+				while (resultSet.next()) {
+					locales.add(resultSet.getString(1));
+				}
+			}
+			GeoIPLocationStore locations = readLocationStore(connection);
+			log.infof("Exporting blocks with %s locations in %s locales to MMDB", locations.size(), locales.size());
+			MmdbWriter writer = new MmdbWriter(MmdbRecords.DATABASE_TYPE, locales, "GeoIP service export");
+			readBlocks(connection, (startHigh, startLow, stopHigh, stopLow, block) -> writer.insert(
+					startHigh, startLow, stopHigh, stopLow,
+					MmdbRecords.toRecord(block, locales, locations)
+			));
+			connection.commit();
+			writer.write(output);
+		}
+	}
+	
+	public Uni<GeoIPSnapshot> loadSnapshot() {
+		return Uni.createFrom().item(this::doLoadSnapshot)
+				.runSubscriptionOn(Infrastructure.getDefaultWorkerPool());
+	}
+	
+	// Everything is read in one transaction, so the snapshot never mixes two generations
+	@SneakyThrows(SQLException.class)
+	private GeoIPSnapshot doLoadSnapshot() {
+		try (Connection connection = dataSource.getConnection()) {
+			connection.setAutoCommit(false);
+			connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			GeoIPBlockIndex.Builder builder;
+			List<String> locales = new ArrayList<>();
+			Instant updatedAt = null;
+			try (Statement statement = connection.createStatement()) {
+				try (ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM geoip_blocks")) {
+					resultSet.next();
+					builder = GeoIPBlockIndex.builder(resultSet.getInt(1));
+				}
+				try (ResultSet resultSet = statement.executeQuery("SELECT code FROM geoip_locales ORDER BY code")) {
+					while (resultSet.next()) {
+						locales.add(resultSet.getString(1));
+					}
+				}
+				try (ResultSet resultSet = statement.executeQuery(
+						"SELECT updated_at FROM geoip_updates WHERE id = (SELECT MAX(id) FROM geoip_updates)"
+				)) {
+					if (resultSet.next()) {
+						updatedAt = resultSet.getObject(1, LocalDateTime.class).atOffset(ZoneOffset.UTC).toInstant();
+					}
+				}
+			}
+			readBlocks(connection, builder::add);
+			GeoIPLocationStore locations = readLocationStore(connection);
+			connection.commit();
+			return new GeoIPSnapshot(builder.build(), locations, Collections.unmodifiableList(locales), updatedAt);
+		}
+	}
+	
+	private static void readBlocks(Connection connection, BlockConsumer consumer) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.setFetchSize(BLOCK_FETCH_SIZE);
+			try (ResultSet resultSet = statement.executeQuery(
+					"SELECT start_high, start_low, stop_high, stop_low, " +
+							"location_id, postal_code, latitude, longitude, accuracy_radius, " +
+							"is_anonymous_proxy, is_satellite_provider " +
+							"FROM geoip_blocks ORDER BY start_high, start_low"
+			)) {
+				while (resultSet.next()) {
+					consumer.accept(
+							flipSign(resultSet.getLong(1)), flipSign(resultSet.getLong(2)),
+							flipSign(resultSet.getLong(3)), flipSign(resultSet.getLong(4)),
+							GeoIPBlock.builder()
+									.locationId(getNullableLong(resultSet, 5))
+									.postalCode(resultSet.getString(6))
+									.latitude(getNullableDouble(resultSet, 7))
+									.longitude(getNullableDouble(resultSet, 8))
+									.accuracyRadius(getNullableInteger(resultSet, 9))
+									.isAnonymousProxy(resultSet.getBoolean(10))
+									.isSatelliteProvider(resultSet.getBoolean(11))
+									.build()
+					);
+				}
+			}
+		}
+	}
+	
+	// Range halves are stored with the sign bit flipped, so that signed BIGINT order matches unsigned address order
+	private static long flipSign(long value) {
+		return value ^ Long.MIN_VALUE;
+	}
+	
+	private static Long getNullableLong(ResultSet resultSet, int column) throws SQLException {
+		long value = resultSet.getLong(column);
+		return resultSet.wasNull() ? null : value;
+	}
+	
+	private static Integer getNullableInteger(ResultSet resultSet, int column) throws SQLException {
+		int value = resultSet.getInt(column);
+		return resultSet.wasNull() ? null : value;
+	}
+	
+	private static Boolean getNullableBoolean(ResultSet resultSet, int column) throws SQLException {
+		boolean value = resultSet.getBoolean(column);
+		return resultSet.wasNull() ? null : value;
+	}
+	
+	private static Double getNullableDouble(ResultSet resultSet, int column) throws SQLException {
+		double value = resultSet.getDouble(column);
+		return resultSet.wasNull() ? null : value;
 	}
 	
 	@Override
-	public <T> Uni<T> update(Function<Updater, Uni<T>> updaterFunction) {
-		return client.begin().flatMap(transaction ->
-				clear(transaction)
-						.flatMap(result -> updaterFunction.apply(new DatabaseUpdater(transaction)))
-						.flatMap(result -> transaction.preparedQuery(
-								"INSERT INTO geoip_updates (updated_at) VALUES (CURRENT_TIMESTAMP)"
-						).execute().map(rows -> result))
-						.onItem().call(transaction::commit)
-						.onFailure().call(transaction::rollback)
+	public <T> Uni<T> update(GeoIPArchive archive, Function<Updater, Uni<T>> updaterFunction) {
+		return metrics.timeTransaction(Uni.createFrom().item(this::beginUpdate).flatMap(connection ->
+				updaterFunction.apply(
+						IMPORT_MODE_COPY.equals(importMode) ?
+								new CopyUpdater(dataSource, metrics) :
+								new DatabaseUpdater(client, batchSize, batchConcurrency, metrics)
+				)
+						.invoke(result -> publishUpdate(connection, archive))
+						.onFailure().invoke(error -> abortUpdate(connection))
+						.onTermination().invoke(() -> closeUpdate(connection))
+		)).onItem().call(result -> keepsLocationStore() ?
+				reloadLocationStore() :
+				Uni.createFrom().<GeoIPLocationStore>nullItem()
 		);
 	}
 	
+	@SneakyThrows(SQLException.class)
+	private Connection beginUpdate() {
+		Connection connection = dataSource.getConnection();
+		try {
+			PgStaging.prepare(connection);
+		} catch (SQLException e) {
+			connection.close();
+			throw e;
+		}
+		return connection;
+	}
+	
+	@SneakyThrows(SQLException.class)
+	private void publishUpdate(Connection connection, GeoIPArchive archive) {
+		progress.setPhase(GeoIPImportPhase.INDEX_BUILD);
+		try (Statement statement = connection.createStatement()) {
+			log.info("Building location ancestor chains");
+			statement.execute(BUILD_ANCESTORS_SQL);
+		}
+		boolean incremental = UPDATE_MODE_INCREMENTAL.equals(updateMode);
+		if (incremental) {
+			PgStaging.analyze(connection);
+		} else {
+			PgStaging.finishLoad(connection);
+		}
+		log.info(incremental ? "Merging changes into the live tables" : "Swapping in the new generation");
+		progress.setPhase(GeoIPImportPhase.COMMIT);
+		connection.setAutoCommit(false);
+		if (incremental) {
+			PgStaging.merge(connection);
+		} else {
+			PgStaging.swap(connection);
+		}
+		try (PreparedStatement statement = connection.prepareStatement(INSERT_UPDATE_SQL)) {
+			statement.setString(1, archive != null ? archive.getSha256() : null);
+			statement.setString(2, archive != null ? archive.getEtag() : null);
+			statement.setString(3, archive != null ? archive.getLastModified() : null);
+			statement.execute();
+		}
+		connection.commit();
+		connection.setAutoCommit(true);
+		if (incremental) {
+			PgStaging.drop(connection);
+		}
+		// Fall back to the database until the store is reloaded from the new generation
+		locationStore.set(null);
+	}
+	
+	@Override
+	public Uni<Void> rollback() {
+		return Uni.createFrom().item(this::doRollback)
+				.runSubscriptionOn(Infrastructure.getDefaultWorkerPool())
+				.onItem().call(result -> keepsLocationStore() ?
+						reloadLocationStore() :
+						Uni.createFrom().<GeoIPLocationStore>nullItem()
+				);
+	}
+	
+	@SneakyThrows(SQLException.class)
+	private Void doRollback() {
+		try (Connection connection = dataSource.getConnection()) {
+			connection.setAutoCommit(false);
+			try {
+				log.info("Rolling back to the previous generation");
+				PgStaging.rollback(connection);
+				try (Statement statement = connection.createStatement()) {
+					// Without a record the archive of the rolled back generation would still count as imported
+					if (statement.executeUpdate(RESTORE_UPDATE_SQL) == 0) {
+						try (PreparedStatement insert = connection.prepareStatement(INSERT_UPDATE_SQL)) {
+							insert.setString(1, null);
+							insert.setString(2, null);
+							insert.setString(3, null);
+							insert.execute();
+						}
+					}
+				}
+				connection.commit();
+			} catch (SQLException | RuntimeException e) {
+				connection.rollback();
+				throw e;
+			}
+		}
+		locationStore.set(null);
+		return null;
+	}
+	
+	@SneakyThrows(SQLException.class)
+	private void abortUpdate(Connection connection) {
+		if (!connection.getAutoCommit()) {
+			connection.rollback();
+			connection.setAutoCommit(true);
+		}
+		log.info("Dropping staging tables");
+		PgStaging.drop(connection);
+	}
+	
+	@SneakyThrows(SQLException.class)
+	private void closeUpdate(Connection connection) {
+		connection.close();
+	}
+	
+	@Override
+	public Uni<GeoIPArchive> findArchive() {
+		return client.preparedQuery(
+				"SELECT sha256, etag, last_modified FROM geoip_updates WHERE id = (SELECT MAX(id) FROM geoip_updates)"
+		).execute().onItem().transformToMulti(rows -> Multi.createFrom().iterable(rows))
+				.map(row -> GeoIPArchive.builder()
+						.sha256(row.getString(0))
+						.etag(row.getString(1))
+						.lastModified(row.getString(2))
+						.build())
+				.collectItems().first();
+	}
+	
 	@Override
 	public Uni<Instant> findUpdatedAt() {
 		return client.preparedQuery(
@@ -149,77 +698,249 @@ public class GeoIPDatabase implements GeoIPStorage {
 	
 	@RequiredArgsConstructor
 	private static class DatabaseUpdater implements Updater {
-		private final Transaction transaction;
+		private final SqlClient client;
+		private final int batchSize;
+		private final int batchConcurrency;
+		private final GeoIPMetrics metrics;
 		
 		@Override
 		public Uni<Long> insertBlocks(Multi<GeoIPBlock> blockStream) {
-			return blockStream.groupItems().intoLists().of(1024)
-					.flatMap(blocks -> {
+			return blockStream.groupItems().intoLists().of(batchSize)
+					.onItem().transformToUni(blocks -> {
 						log.debugf("Going to import %s blocks", blocks.size());
-						return transaction.preparedQuery(
-								"INSERT INTO geoip_blocks (start, stop, location_id, postal_code, " +
-										"latitude, longitude, accuracy_radius, " +
+						return metrics.timeBatch("blocks", client.preparedQuery(
+								"INSERT INTO " + STAGING_BLOCKS + " (start_high, start_low, stop_high, stop_low, " +
+										"location_id, postal_code, latitude, longitude, accuracy_radius, " +
 										"is_anonymous_proxy, is_satellite_provider" +
-										") VALUES ($1, $2, $3, $4, $5, $6, $7, $8, $9)"
+										") VALUES ($1, $2, $3, $4, $5, $6, $7, $8, $9, $10, $11)"
 						).executeBatch(blocks.stream().map(block -> Tuple.tuple(Arrays.asList(
-								block.getStart(), block.getStop(), block.getLocationId(), block.getPostalCode(),
+								flipSign(block.getStartHigh()), flipSign(block.getStartLow()),
+								flipSign(block.getStopHigh()), flipSign(block.getStopLow()),
+								block.getLocationId(), block.getPostalCode(),
 								block.getLatitude(), block.getLongitude(), block.getAccuracyRadius(),
 								block.getIsAnonymousProxy(), block.getIsSatelliteProvider()
 						))).collect(Collectors.toList()))
-								.toMulti()
-								.map(rows -> (long) blocks.size());
+								.map(rows -> (long) blocks.size()));
 					})
+					.merge(batchConcurrency)
 					.collectItems().with(Collectors.summingLong(Long::longValue));
 		}
 		
 		@Override
 		public Uni<Long> insertLocations(Multi<GeoIPLocation> locationStream) {
-			return locationStream.groupItems().intoLists().of(1024)
-					.flatMap(locations -> {
+			return locationStream.groupItems().intoLists().of(batchSize)
+					.onItem().transformToUni(locations -> {
 						log.debugf("Going to import %s locations", locations.size());
-						return transaction.preparedQuery(
-								"INSERT INTO geoip_locations (id, locale_code, parent_id, level, " +
-										"name, code, is_in_european_union, timezone_id" +
-										") VALUES ($1, $2, $3, $4, $5, $6, $7, $8)"
+						return metrics.timeBatch("locations", client.preparedQuery(
+								"INSERT INTO " + STAGING_LOCATIONS + " (id, parent_id, level, " +
+										"code, is_in_european_union, timezone_id" +
+										") VALUES ($1, $2, $3, $4, $5, $6)"
 						).executeBatch(locations.stream().map(location -> Tuple.tuple(Arrays.asList(
-								location.getId(), location.getLocaleCode(), location.getParentId(),
-								location.getLevel().toString(), location.getName(), location.getCode(),
-								location.getIsInEuropeanUnion(), location.getTimezoneId()
+								location.getId(), location.getParentId(), location.getLevel().toString(),
+								location.getCode(), location.getIsInEuropeanUnion(), location.getTimezoneId()
 						))).collect(Collectors.toList()))
-								.toMulti()
-								.map(rows -> (long) locations.size());
+								.map(rows -> (long) locations.size()));
+					})
+					.merge(batchConcurrency)
+					.collectItems().with(Collectors.summingLong(Long::longValue));
+		}
+		
+		@Override
+		public Uni<Long> insertLocationNames(Multi<GeoIPLocation> locationStream) {
+			return locationStream.groupItems().intoLists().of(batchSize)
+					.onItem().transformToUni(locations -> {
+						log.debugf("Going to import %s location names", locations.size());
+						return metrics.timeBatch("location_names", client.preparedQuery(
+								"INSERT INTO " + STAGING_LOCATION_NAMES + " (location_id, locale_code, name) " +
+										"VALUES ($1, $2, $3)"
+						).executeBatch(locations.stream().map(location -> Tuple.of(
+								location.getId(), location.getLocaleCode(), location.getName()
+						)).collect(Collectors.toList()))
+								.map(rows -> (long) locations.size()));
 					})
+					.merge(batchConcurrency)
 					.collectItems().with(Collectors.summingLong(Long::longValue));
 		}
 		
 		@Override
 		public Uni<Long> insertTimezones(Multi<GeoIPTimezone> timezoneStream) {
-			return timezoneStream.groupItems().intoLists().of(1024)
-					.flatMap(timezones -> {
+			return timezoneStream.groupItems().intoLists().of(batchSize)
+					.onItem().transformToUni(timezones -> {
 						log.debugf("Going to import %s timezones", timezones.size());
-						return transaction.preparedQuery(
-								"INSERT INTO geoip_timezones (id, name) VALUES ($1, $2) ON CONFLICT DO NOTHING"
+						return metrics.timeBatch("timezones", client.preparedQuery(
+								"INSERT INTO " + STAGING_TIMEZONES + " (id, name) VALUES ($1, $2) ON CONFLICT DO NOTHING"
 						)
 								.executeBatch(timezones.stream().map(timezone -> Tuple.of(
 										timezone.getId(), timezone.getName()
 								)).collect(Collectors.toList()))
-								.toMulti()
-								.map(rows -> (long) timezones.size());
+								.map(rows -> (long) timezones.size()));
 					})
+					.merge(batchConcurrency)
 					.collectItems().with(Collectors.summingLong(Long::longValue));
 		}
 		
 		@Override
 		public Uni<Long> insertLocales(Multi<String> localeStream) {
-			return localeStream.groupItems().intoLists().of(1024)
-					.flatMap(locales -> {
+			return localeStream.groupItems().intoLists().of(batchSize)
+					.onItem().transformToUni(locales -> {
 						log.debugf("Going to import %s locales", locales.size());
-						return transaction.preparedQuery("INSERT INTO geoip_locales (code) VALUES ($1)")
-								.executeBatch(locales.stream().map(Tuple::of).collect(Collectors.toList()))
-								.toMulti()
-								.map(rows -> (long) locales.size());
+						return metrics.timeBatch(
+								"locales",
+								client.preparedQuery("INSERT INTO " + STAGING_LOCALES + " (code) VALUES ($1)")
+										.executeBatch(locales.stream().map(Tuple::of).collect(Collectors.toList()))
+										.map(rows -> (long) locales.size())
+						);
 					})
+					.merge(batchConcurrency)
 					.collectItems().with(Collectors.summingLong(Long::longValue));
 		}
 	}
+	
+	@RequiredArgsConstructor
+	private static class CopyUpdater implements Updater {
+		private final AgroalDataSource dataSource;
+		private final GeoIPMetrics metrics;
+		
+		@SneakyThrows(SQLException.class)
+		private Connection getConnection() {
+			return dataSource.getConnection();
+		}
+		
+		@SneakyThrows(SQLException.class)
+		private static void closeConnection(Connection connection) {
+			connection.close();
+		}
+		
+		// A COPY streams the whole table, so it's timed as a single batch
+		private <T> Uni<Long> copy(String table, String sql, Multi<T> stream, CopyRowWriter<T> rowWriter) {
+			return metrics.timeBatch(table, Uni.createFrom().item(this::getConnection).flatMap(connection ->
+					Uni.createFrom().item(() -> new PgCopyWriter(connection, sql))
+							.flatMap(writer -> stream
+									.onItem().invoke(item -> rowWriter.write(writer, item))
+									.collectItems().last()
+									.map(ignored -> writer.finish())
+									.onFailure().invoke(error -> writer.cancel())
+							)
+							.onTermination().invoke(() -> closeConnection(connection))
+			));
+		}
+		
+		private <T> Uni<Long> executeBatch(String table, String sql, List<T> items, StatementBinder<T> binder) {
+			return metrics.timeBatch(table, Uni.createFrom().item(() -> doExecuteBatch(sql, items, binder)));
+		}
+		
+		@SneakyThrows(SQLException.class)
+		private <T> long doExecuteBatch(String sql, List<T> items, StatementBinder<T> binder) {
+			try (
+					Connection connection = dataSource.getConnection();
+					PreparedStatement statement = connection.prepareStatement(sql)
+			) {
+				for (T item : items) {
+					binder.bind(statement, item);
+					statement.addBatch();
+				}
+				statement.executeBatch();
+			}
+			return items.size();
+		}
+		
+		@Override
+		public Uni<Long> insertBlocks(Multi<GeoIPBlock> blockStream) {
+			log.debug("Going to import blocks using COPY");
+			return copy(
+					"blocks",
+					"COPY " + STAGING_BLOCKS + " (start_high, start_low, stop_high, stop_low, " +
+							"location_id, postal_code, latitude, longitude, accuracy_radius, " +
+							"is_anonymous_proxy, is_satellite_provider" +
+							") FROM STDIN (FORMAT BINARY)",
+					blockStream,
+					(writer, block) -> writer.startRow(11)
+							.writeLong(flipSign(block.getStartHigh()))
+							.writeLong(flipSign(block.getStartLow()))
+							.writeLong(flipSign(block.getStopHigh()))
+							.writeLong(flipSign(block.getStopLow()))
+							.writeLong(block.getLocationId())
+							.writeString(block.getPostalCode())
+							.writeReal(block.getLatitude())
+							.writeReal(block.getLongitude())
+							.writeInteger(block.getAccuracyRadius())
+							.writeBoolean(block.getIsAnonymousProxy())
+							.writeBoolean(block.getIsSatelliteProvider())
+			);
+		}
+		
+		@Override
+		public Uni<Long> insertLocations(Multi<GeoIPLocation> locationStream) {
+			log.debug("Going to import locations using COPY");
+			return copy(
+					"locations",
+					"COPY " + STAGING_LOCATIONS + " (id, parent_id, level, " +
+							"code, is_in_european_union, timezone_id" +
+							") FROM STDIN (FORMAT BINARY)",
+					locationStream,
+					(writer, location) -> writer.startRow(6)
+							.writeLong(location.getId())
+							.writeLong(location.getParentId())
+							.writeString(location.getLevel().toString())
+							.writeString(location.getCode())
+							.writeBoolean(location.getIsInEuropeanUnion())
+							.writeLong(location.getTimezoneId())
+			);
+		}
+		
+		@Override
+		public Uni<Long> insertLocationNames(Multi<GeoIPLocation> locationStream) {
+			log.debug("Going to import location names using COPY");
+			return copy(
+					"location_names",
+					"COPY " + STAGING_LOCATION_NAMES + " (location_id, locale_code, name) FROM STDIN (FORMAT BINARY)",
+					locationStream,
+					(writer, location) -> writer.startRow(3)
+							.writeLong(location.getId())
+							.writeString(location.getLocaleCode())
+							.writeString(location.getName())
+			);
+		}
+		
+		@Override
+		public Uni<Long> insertTimezones(Multi<GeoIPTimezone> timezoneStream) {
+			return timezoneStream.collectItems().asList().flatMap(timezones -> {
+				log.debugf("Going to import %s timezones", timezones.size());
+				return executeBatch(
+						"timezones",
+						"INSERT INTO " + STAGING_TIMEZONES + " (id, name) VALUES (?, ?) ON CONFLICT DO NOTHING",
+						timezones,
+						(statement, timezone) -> {
+							statement.setLong(1, timezone.getId());
+							statement.setString(2, timezone.getName());
+						}
+				);
+			});
+		}
+		
+		@Override
+		public Uni<Long> insertLocales(Multi<String> localeStream) {
+			return localeStream.collectItems().asList().flatMap(locales -> {
+				log.debugf("Going to import %s locales", locales.size());
+				return executeBatch(
+						"locales",
+						"INSERT INTO " + STAGING_LOCALES + " (code) VALUES (?)",
+						locales,
+						(statement, locale) -> statement.setString(1, locale)
+				);
+			});
+		}
+		
+		private interface CopyRowWriter<T> {
+			void write(PgCopyWriter writer, T item);
+		}
+		
+		private interface StatementBinder<T> {
+			void bind(PreparedStatement statement, T item) throws SQLException;
+		}
+	}
+	
+	private interface BlockConsumer {
+		void accept(long startHigh, long startLow, long stopHigh, long stopLow, GeoIPBlock block);
+	}
 }
@@ -0,0 +1,137 @@
+package com.eternal_search.geoip.service;
+
+import com.eternal_search.geoip.model.GeoIPImportPhase;
+import com.eternal_search.geoip.model.dto.GeoIPImportProgressDTO;
+import lombok.Value;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters are bumped on the import path, rates and the ETA are only computed when the status is requested
+@ApplicationScoped
+public class GeoIPImportProgress {
+	public static final String BLOCKS = "blocks";
+	public static final String LOCATIONS = "locations";
+	
+	// Rates are measured over at least this long, so that they don't jump between two close requests
+	private static final long RATE_WINDOW = TimeUnit.SECONDS.toNanos(5);
+	
+	private volatile GeoIPImportPhase phase;
+	private volatile Instant startedAt;
+	private final Map<String, LongAdder> rows = new ConcurrentHashMap<>();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong bytesTotal = new AtomicLong();
+	private final AtomicInteger activeBlockFiles = new AtomicInteger();
+	private final AtomicInteger activeLocationFiles = new AtomicInteger();
+	private Sample previousSample;
+	private Sample lastSample;
+	
+	public synchronized void start() {
+		rows.clear();
+		bytesRead.set(0);
+		bytesTotal.set(-1);
+		activeBlockFiles.set(0);
+		activeLocationFiles.set(0);
+		startedAt = Instant.now();
+		phase = GeoIPImportPhase.DOWNLOAD;
+		resetSamples();
+	}
+	
+	public synchronized void finish() {
+		phase = null;
+	}
+	
+	public void setPhase(GeoIPImportPhase phase) {
+		if (this.phase != null) {
+			this.phase = phase;
+		}
+	}
+	
+	public void setBytesTotal(long total) {
+		bytesTotal.set(total);
+	}
+	
+	public void addBytesRead(long count) {
+		bytesRead.addAndGet(count);
+	}
+	
+	// Byte counters restart for the archive contents, the download is done by then
+	public synchronized void startParsing(long archiveBytes) {
+		bytesRead.set(0);
+		bytesTotal.set(archiveBytes);
+		setPhase(GeoIPImportPhase.PARSE);
+		resetSamples();
+	}
+	
+	public LongAdder rows(String entity) {
+		return rows.computeIfAbsent(entity, key -> new LongAdder());
+	}
+	
+	public void beginFile(String entity) {
+		(BLOCKS.equals(entity) ? activeBlockFiles : activeLocationFiles).incrementAndGet();
+	}
+	
+	public void endFile(String entity) {
+		(BLOCKS.equals(entity) ? activeBlockFiles : activeLocationFiles).decrementAndGet();
+	}
+	
+	public synchronized GeoIPImportProgressDTO snapshot() {
+		GeoIPImportPhase current = phase;
+		if (current == null) return null;
+		// Files are imported concurrently, blocks take the longest and are reported first
+		if (current == GeoIPImportPhase.PARSE && activeBlockFiles.get() > 0) {
+			current = GeoIPImportPhase.BLOCKS;
+		} else if (current == GeoIPImportPhase.PARSE && activeLocationFiles.get() > 0) {
+			current = GeoIPImportPhase.LOCATIONS;
+		}
+		Map<String, Long> rowCounts = new TreeMap<>();
+		long totalRows = 0;
+		for (Map.Entry<String, LongAdder> entry : rows.entrySet()) {
+			long count = entry.getValue().sum();
+			rowCounts.put(entry.getKey(), count);
+			totalRows += count;
+		}
+		Sample now = new Sample(System.nanoTime(), totalRows, bytesRead.get());
+		if (now.time - lastSample.time >= RATE_WINDOW) {
+			previousSample = lastSample;
+			lastSample = now;
+		}
+		double seconds = (now.time - previousSample.time) / 1e9;
+		double rowsPerSecond = seconds > 0 ? (now.rows - previousSample.rows) / seconds : 0;
+		double bytesPerSecond = seconds > 0 ? (now.bytes - previousSample.bytes) / seconds : 0;
+		long total = bytesTotal.get();
+		boolean measuredInBytes = current.compareTo(GeoIPImportPhase.LOCATIONS) <= 0;
+		return GeoIPImportProgressDTO.builder()
+				.phase(current)
+				.startedAt(startedAt)
+				.rows(rowCounts)
+				.rowsPerSecond(rowsPerSecond)
+				.bytesRead(now.bytes)
+				.bytesTotal(total >= 0 ? total : null)
+				.bytesPerSecond(bytesPerSecond)
+				.etaSeconds(measuredInBytes && total >= 0 && bytesPerSecond > 0 ?
+						(long) Math.ceil(Math.max(total - now.bytes, 0) / bytesPerSecond) :
+						null)
+				.build();
+	}
+	
+	private void resetSamples() {
+		long totalRows = rows.values().stream().mapToLong(LongAdder::sum).sum();
+		lastSample = new Sample(System.nanoTime(), totalRows, bytesRead.get());
+		previousSample = lastSample;
+	}
+	
+	@Value
+	private static class Sample {
+		long time;
+		long rows;
+		long bytes;
+	}
+}
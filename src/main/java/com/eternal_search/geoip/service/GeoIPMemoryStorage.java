@@ -0,0 +1,234 @@
+package com.eternal_search.geoip.service;
+
+import com.eternal_search.geoip.config.GeoIPStorageConfig;
+import com.eternal_search.geoip.memory.GeoIPBlockIndex;
+import com.eternal_search.geoip.memory.GeoIPIPv4Table;
+import com.eternal_search.geoip.memory.GeoIPSnapshot;
+import com.eternal_search.geoip.model.GeoIPArchive;
+import com.eternal_search.geoip.model.dto.GeoIPAddressDTO;
+import com.eternal_search.geoip.util.IPAddressParser;
+import io.quarkus.runtime.StartupEvent;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import lombok.SneakyThrows;
+import lombok.extern.jbosslog.JBossLog;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.enterprise.inject.Typed;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+@ApplicationScoped
+@Typed(GeoIPMemoryStorage.class)
+@JBossLog
+public class GeoIPMemoryStorage implements GeoIPStorage {
+	@ConfigProperty(name = "geoip.storage", defaultValue = GeoIPStorageConfig.DATABASE)
+	String storage;
+	
+	@ConfigProperty(name = "geoip.snapshot.path")
+	Optional<String> snapshotPath;
+	
+	// Off-heap budget of the IPv4 prefix table, 64 MiB is enough for /24, zero disables it
+	@ConfigProperty(name = "geoip.ipv4-table.max-memory", defaultValue = "0")
+	long ipv4TableMaxMemory;
+	
+	@Inject
+	GeoIPDatabase database;
+	
+	@Inject
+	GeoIPMetrics metrics;
+	
+	private final AtomicReference<GeoIPSnapshot> snapshot = new AtomicReference<>();
+	private volatile GeoIPIPv4Table ipv4Table;
+	
+	void onStart(@Observes StartupEvent event) {
+		if (!GeoIPStorageConfig.MEMORY.equals(storage)) return;
+		if (ipv4TableMaxMemory > 0) {
+			metrics.bindIPv4Table(this);
+		}
+		// A snapshot file lets the node start (and serve lookups) without the database
+		Uni<GeoIPSnapshot> loader = snapshotPath.map(Paths::get).filter(Files::exists)
+				.map(path -> readSnapshot(path).onFailure().recoverWithUni(error -> {
+					log.error("Failed to read snapshot file, loading from the database", error);
+					return reload();
+				}))
+				.orElseGet(this::reload);
+		loader.subscribe().with(
+				loaded -> {},
+				error -> log.error("Failed to load block index", error)
+		);
+	}
+	
+	private Uni<GeoIPSnapshot> readSnapshot(Path path) {
+		log.infof("Reading snapshot file %s", path);
+		return Uni.createFrom().item(() -> doReadSnapshot(path))
+				.runSubscriptionOn(Infrastructure.getDefaultWorkerPool())
+				.invoke(this::publish);
+	}
+	
+	@SneakyThrows(IOException.class)
+	private static GeoIPSnapshot doReadSnapshot(Path path) {
+		return GeoIPSnapshot.read(path);
+	}
+	
+	public Uni<GeoIPSnapshot> reload() {
+		log.info("Loading block index");
+		return database.loadSnapshot()
+				.invoke(this::publish)
+				.invoke(this::writeSnapshot);
+	}
+	
+	void publish(GeoIPSnapshot loaded) {
+		GeoIPBlockIndex index = loaded.getBlockIndex();
+		GeoIPIPv4Table table = buildIPv4Table(index);
+		snapshot.set(loaded);
+		ipv4Table = table;
+		log.infof(
+				"Loaded %s blocks (%s bytes off-heap) and %s locations into memory",
+				index.size(), index.getMemoryUsage(), loaded.getLocations().size()
+		);
+	}
+	
+	private GeoIPIPv4Table buildIPv4Table(GeoIPBlockIndex index) {
+		if (ipv4TableMaxMemory <= 0) return null;
+		GeoIPIPv4Table table = GeoIPIPv4Table.build(index, ipv4TableMaxMemory);
+		if (table == null) {
+			log.warnf("IPv4 prefix table doesn't fit into %s bytes, lookups use the range search", ipv4TableMaxMemory);
+			return null;
+		}
+		log.infof(
+				"Built IPv4 /%s prefix table (%s bytes off-heap), %s of %s prefixes map to a single block",
+				table.getPrefixBits(), table.getMemoryUsage(), table.getUniformPrefixes(), 1 << table.getPrefixBits()
+		);
+		return table;
+	}
+	
+	public long getIPv4TableMemoryUsage() {
+		GeoIPIPv4Table table = ipv4Table;
+		return table != null ? table.getMemoryUsage() : 0;
+	}
+	
+	// Failing to write the file only costs the next startup a database load
+	private void writeSnapshot(GeoIPSnapshot loaded) {
+		if (!snapshotPath.isPresent()) return;
+		try {
+			loaded.write(Paths.get(snapshotPath.get()));
+			log.infof("Wrote snapshot file %s", snapshotPath.get());
+		} catch (IOException e) {
+			log.error("Failed to write snapshot file", e);
+		}
+	}
+	
+	@Override
+	public Multi<String> findLocales() {
+		GeoIPSnapshot current = snapshot.get();
+		if (current == null) {
+			return database.findLocales();
+		}
+		return Multi.createFrom().iterable(current.getLocales());
+	}
+	
+	@Override
+	public Uni<GeoIPAddressDTO> findAddress(String address, String localeCode) {
+		GeoIPSnapshot current = snapshot.get();
+		if (current == null) {
+			return database.findAddress(address, localeCode);
+		}
+		long start = System.nanoTime();
+		long[] key = new long[2];
+		if (!IPAddressParser.parse(address, key)) {
+			return Uni.createFrom().failure(new IllegalArgumentException("Invalid address: " + address));
+		}
+		long parsed = metrics.recordPhase(GeoIPMetrics.Phase.PARSE, start);
+		int position = find(current, key);
+		long found = metrics.recordPhase(GeoIPMetrics.Phase.BLOCKS, parsed);
+		if (position < 0) return Uni.createFrom().nullItem();
+		GeoIPAddressDTO result = toAddress(current, position, address, localeCode);
+		metrics.recordPhase(GeoIPMetrics.Phase.LOCATIONS, found);
+		return Uni.createFrom().item(result);
+	}
+	
+	@Override
+	public Uni<List<GeoIPAddressDTO>> findAddresses(List<String> addresses, String localeCode) {
+		GeoIPSnapshot current = snapshot.get();
+		if (current == null) {
+			return database.findAddresses(addresses, localeCode);
+		}
+		List<GeoIPAddressDTO> result = new ArrayList<>(addresses.size());
+		long[] key = new long[2];
+		for (String address : addresses) {
+			result.add(address != null && IPAddressParser.parse(address, key) ?
+					lookup(current, find(current, key), address, localeCode) :
+					null);
+		}
+		return Uni.createFrom().item(result);
+	}
+	
+	// The table is swapped right after the snapshot, until then it belongs to the previous index and is skipped
+	private int find(GeoIPSnapshot current, long[] key) {
+		GeoIPIPv4Table table = ipv4Table;
+		GeoIPBlockIndex index = current.getBlockIndex();
+		return table != null && table.getBlockIndex() == index ?
+				table.find(key[0], key[1]) :
+				index.find(key[0], key[1]);
+	}
+	
+	private static GeoIPAddressDTO lookup(GeoIPSnapshot snapshot, int position, String address, String localeCode) {
+		return position >= 0 ? toAddress(snapshot, position, address, localeCode) : null;
+	}
+	
+	private static GeoIPAddressDTO toAddress(GeoIPSnapshot snapshot, int position, String address, String localeCode) {
+		GeoIPBlockIndex index = snapshot.getBlockIndex();
+		return snapshot.getLocations().apply(
+				GeoIPAddressDTO.builder()
+						.address(address)
+						.localeCode(localeCode)
+						.postalCode(index.getPostalCode(position))
+						.latitude(index.getLatitude(position))
+						.longtiude(index.getLongitude(position))
+						.accuracyRadius(index.getAccuracyRadius(position))
+						.isAnonymousProxy(index.isAnonymousProxy(position))
+						.isSatelliteProvider(index.isSatelliteProvider(position)),
+				index.getLocationId(position),
+				localeCode
+		).build();
+	}
+	
+	@Override
+	public <T> Uni<T> update(GeoIPArchive archive, Function<Updater, Uni<T>> updaterFunction) {
+		return database.update(archive, updaterFunction)
+				.onItem().call(result -> reload());
+	}
+	
+	@Override
+	public Uni<Void> rollback() {
+		return database.rollback()
+				.onItem().call(result -> reload());
+	}
+	
+	@Override
+	public Uni<GeoIPArchive> findArchive() {
+		return database.findArchive();
+	}
+	
+	@Override
+	public Uni<Instant> findUpdatedAt() {
+		GeoIPSnapshot current = snapshot.get();
+		if (current == null) {
+			return database.findUpdatedAt();
+		}
+		return Uni.createFrom().item(current.getUpdatedAt());
+	}
+}
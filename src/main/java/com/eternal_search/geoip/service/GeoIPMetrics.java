@@ -0,0 +1,165 @@
+package com.eternal_search.geoip.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.smallrye.mutiny.Uni;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Meters are created up front where possible, so recording on the lookup path doesn't go through the registry
+@Singleton
+public class GeoIPMetrics {
+	public static final String IPV4 = "ipv4";
+	public static final String IPV6 = "ipv6";
+	
+	public enum Phase {
+		PARSE, BLOCKS, LOCATIONS, SERIALIZATION
+	}
+	
+	private static final Duration MIN_LOOKUP_TIME = Duration.ofNanos(1000);
+	private static final Duration MAX_LOOKUP_TIME = Duration.ofSeconds(10);
+	
+	private final MeterRegistry registry;
+	// Indexed by family and result, see lookupTimer
+	private final Timer[] lookups = new Timer[4];
+	private final Timer[] phases = new Timer[Phase.values().length];
+	private final Timer batchLookups;
+	private final DistributionSummary batchSizes;
+	private final AtomicInteger batchesInFlight = new AtomicInteger();
+	private final Map<String, Timer> batchWrites = new ConcurrentHashMap<>();
+	
+	@Inject
+	public GeoIPMetrics(MeterRegistry registry) {
+		this.registry = registry;
+		for (String family : new String[] { IPV4, IPV6 }) {
+			for (boolean found : new boolean[] { false, true }) {
+				lookups[lookupTimer(family, found)] = Timer.builder("geoip.lookup")
+						.description("Single address lookups")
+						.tag("family", family)
+						.tag("result", found ? "hit" : "miss")
+						.publishPercentileHistogram()
+						.minimumExpectedValue(MIN_LOOKUP_TIME)
+						.maximumExpectedValue(MAX_LOOKUP_TIME)
+						.register(registry);
+			}
+		}
+		for (Phase phase : Phase.values()) {
+			phases[phase.ordinal()] = Timer.builder("geoip.lookup.phase")
+					.description("Time spent in a single lookup phase")
+					.tag("phase", phase.name().toLowerCase(Locale.ROOT))
+					.register(registry);
+		}
+		batchLookups = Timer.builder("geoip.lookup.batch")
+				.description("Batch address lookups")
+				.publishPercentileHistogram()
+				.minimumExpectedValue(MIN_LOOKUP_TIME)
+				.maximumExpectedValue(MAX_LOOKUP_TIME)
+				.register(registry);
+		batchSizes = DistributionSummary.builder("geoip.lookup.batch.size")
+				.description("Addresses per batch lookup")
+				.register(registry);
+		Gauge.builder("geoip.import.batches.in-flight", batchesInFlight, AtomicInteger::get)
+				.description("Import batches being written")
+				.register(registry);
+	}
+	
+	// IPv4-mapped IPv6 addresses are counted as IPv6, that's how clients spelled them
+	public static String family(String address) {
+		return address.indexOf(':') < 0 ? IPV4 : IPV6;
+	}
+	
+	private static int lookupTimer(String family, boolean found) {
+		return (IPV6.equals(family) ? 2 : 0) + (found ? 1 : 0);
+	}
+	
+	public void recordLookup(String address, boolean found, long startNanos) {
+		lookups[lookupTimer(family(address), found)].record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+	}
+	
+	public void recordBatchLookup(int size, long startNanos) {
+		batchLookups.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+		batchSizes.record(size);
+	}
+	
+	// Returns the current time, so that phases can be chained
+	public long recordPhase(Phase phase, long startNanos) {
+		long now = System.nanoTime();
+		phases[phase.ordinal()].record(now - startNanos, TimeUnit.NANOSECONDS);
+		return now;
+	}
+	
+	public Counter importedRows(String type, String subtype) {
+		return Counter.builder("geoip.import.rows")
+				.description("Rows parsed from the update archive")
+				.tag("type", type)
+				.tag("subtype", subtype)
+				.register(registry);
+	}
+	
+	// Compared with imported rows of the same type, this gives the ratio of adjacent block merging
+	public Counter storedBlocks(String type) {
+		return Counter.builder("geoip.import.blocks.stored")
+				.description("Block ranges left after merging adjacent networks with equal data")
+				.tag("type", type)
+				.register(registry);
+	}
+	
+	public <T> Uni<T> timeBatch(String table, Uni<T> batch) {
+		Timer timer = batchWrites.computeIfAbsent(table, key -> Timer.builder("geoip.import.batch")
+				.description("Import batch writes")
+				.tag("table", key)
+				.publishPercentileHistogram()
+				.register(registry));
+		return Uni.createFrom().deferred(() -> {
+			long start = System.nanoTime();
+			batchesInFlight.incrementAndGet();
+			return batch.onTermination().invoke(() -> {
+				batchesInFlight.decrementAndGet();
+				timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			});
+		});
+	}
+	
+	public <T> Uni<T> timeTransaction(Uni<T> update) {
+		return Uni.createFrom().deferred(() -> {
+			long start = System.nanoTime();
+			return update.onTermination().invoke((item, failure, cancelled) -> Timer.builder("geoip.import.transaction")
+					.description("Update transactions, from staging to swap")
+					.tag("outcome", failure == null && !cancelled ? "success" : "failure")
+					.register(registry)
+					.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+		});
+	}
+	
+	public void bindIPv4Table(GeoIPMemoryStorage storage) {
+		Gauge.builder("geoip.lookup.ipv4-table.memory", storage, GeoIPMemoryStorage::getIPv4TableMemoryUsage)
+				.description("Off-heap memory of the IPv4 prefix table in front of the block index")
+				.baseUnit("bytes")
+				.register(registry);
+	}
+	
+	public void bindCache(GeoIPCachingStorage cache) {
+		FunctionCounter.builder("geoip.cache.requests", cache, storage -> storage.getStats().hitCount())
+				.description("Lookup cache requests")
+				.tag("result", "hit")
+				.register(registry);
+		FunctionCounter.builder("geoip.cache.requests", cache, storage -> storage.getStats().missCount())
+				.description("Lookup cache requests")
+				.tag("result", "miss")
+				.register(registry);
+		FunctionCounter.builder("geoip.cache.evictions", cache, storage -> storage.getStats().evictionCount())
+				.description("Lookup cache evictions")
+				.register(registry);
+	}
+}
@@ -0,0 +1,176 @@
+package com.eternal_search.geoip.service;
+
+import com.eternal_search.geoip.config.GeoIPStorageConfig;
+import com.eternal_search.geoip.mmdb.MmdbReader;
+import com.eternal_search.geoip.mmdb.MmdbRecords;
+import com.eternal_search.geoip.model.GeoIPArchive;
+import com.eternal_search.geoip.model.dto.GeoIPAddressDTO;
+import com.eternal_search.geoip.util.IPAddressParser;
+import io.quarkus.runtime.StartupEvent;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import lombok.SneakyThrows;
+import lombok.extern.jbosslog.JBossLog;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.enterprise.inject.Typed;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+@ApplicationScoped
+@Typed(GeoIPMmdbStorage.class)
+@JBossLog
+public class GeoIPMmdbStorage implements GeoIPStorage {
+	@ConfigProperty(name = "geoip.storage", defaultValue = GeoIPStorageConfig.DATABASE)
+	String storage;
+	
+	@ConfigProperty(name = "geoip.mmdb.path", defaultValue = "geoip.mmdb")
+	String path;
+	
+	@Inject
+	GeoIPDatabase database;
+	
+	@Inject
+	GeoIPMetrics metrics;
+	
+	private final AtomicReference<MmdbReader> reader = new AtomicReference<>();
+	
+	void onStart(@Observes StartupEvent event) {
+		if (!GeoIPStorageConfig.MMDB.equals(storage)) return;
+		if (!Files.exists(Paths.get(path))) {
+			log.warnf("MMDB file %s doesn't exist yet, lookups are served from the database", path);
+			return;
+		}
+		try {
+			reload();
+		} catch (IOException e) {
+			log.error("Failed to open MMDB file, lookups are served from the database", e);
+		}
+	}
+	
+	public MmdbReader reload() throws IOException {
+		MmdbReader newReader = new MmdbReader(Paths.get(path));
+		reader.set(newReader);
+		log.infof(
+				"Mapped MMDB file %s (%s) built at %s",
+				path, newReader.getDatabaseType(), Instant.ofEpochSecond(newReader.getBuildEpoch())
+		);
+		return newReader;
+	}
+	
+	@Override
+	public Multi<String> findLocales() {
+		MmdbReader current = reader.get();
+		if (current == null) {
+			return database.findLocales();
+		}
+		return Multi.createFrom().iterable(current.getLanguages());
+	}
+	
+	@Override
+	public Uni<GeoIPAddressDTO> findAddress(String address, String localeCode) {
+		MmdbReader current = reader.get();
+		if (current == null) {
+			return database.findAddress(address, localeCode);
+		}
+		long start = System.nanoTime();
+		long[] key = new long[2];
+		if (!IPAddressParser.parse(address, key)) {
+			return Uni.createFrom().failure(new IllegalArgumentException("Invalid address: " + address));
+		}
+		long parsed = metrics.recordPhase(GeoIPMetrics.Phase.PARSE, start);
+		int offset = current.find(key[0], key[1]);
+		long found = metrics.recordPhase(GeoIPMetrics.Phase.BLOCKS, parsed);
+		if (offset < 0) return Uni.createFrom().nullItem();
+		GeoIPAddressDTO result = toAddress(current, offset, address, localeCode);
+		metrics.recordPhase(GeoIPMetrics.Phase.LOCATIONS, found);
+		return Uni.createFrom().item(result);
+	}
+	
+	@Override
+	public Uni<List<GeoIPAddressDTO>> findAddresses(List<String> addresses, String localeCode) {
+		MmdbReader current = reader.get();
+		if (current == null) {
+			return database.findAddresses(addresses, localeCode);
+		}
+		List<GeoIPAddressDTO> result = new ArrayList<>(addresses.size());
+		long[] key = new long[2];
+		for (String address : addresses) {
+			result.add(address != null && IPAddressParser.parse(address, key) ?
+					lookup(current, key, address, localeCode) :
+					null);
+		}
+		return Uni.createFrom().item(result);
+	}
+	
+	private static GeoIPAddressDTO lookup(MmdbReader reader, long[] key, String address, String localeCode) {
+		int offset = reader.find(key[0], key[1]);
+		return offset >= 0 ? toAddress(reader, offset, address, localeCode) : null;
+	}
+	
+	private static GeoIPAddressDTO toAddress(MmdbReader reader, int offset, String address, String localeCode) {
+		return MmdbRecords.toAddress(
+				reader.read(offset),
+				address,
+				localeCode,
+				reader.getLanguages().contains(localeCode)
+		);
+	}
+	
+	@Override
+	public <T> Uni<T> update(GeoIPArchive archive, Function<Updater, Uni<T>> updaterFunction) {
+		return database.update(archive, updaterFunction)
+				.onItem().call(result -> Uni.createFrom().item(this::export)
+						.runSubscriptionOn(Infrastructure.getDefaultWorkerPool()));
+	}
+	
+	@Override
+	public Uni<Void> rollback() {
+		return database.rollback()
+				.onItem().call(result -> Uni.createFrom().item(this::export)
+						.runSubscriptionOn(Infrastructure.getDefaultWorkerPool()));
+	}
+	
+	// The new file replaces the old one atomically, lookups in flight keep using the old mapping
+	@SneakyThrows(IOException.class)
+	private MmdbReader export() {
+		Path target = Paths.get(path).toAbsolutePath();
+		Path temporary = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+		try {
+			try (OutputStream output = Files.newOutputStream(temporary)) {
+				database.exportMmdb(output);
+			}
+			Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+		return reload();
+	}
+	
+	@Override
+	public Uni<GeoIPArchive> findArchive() {
+		return database.findArchive();
+	}
+	
+	@Override
+	public Uni<Instant> findUpdatedAt() {
+		MmdbReader current = reader.get();
+		if (current == null) {
+			return database.findUpdatedAt();
+		}
+		return Uni.createFrom().item(Instant.ofEpochSecond(current.getBuildEpoch()));
+	}
+}
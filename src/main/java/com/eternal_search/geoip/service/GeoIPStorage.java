@@ -1,5 +1,6 @@
 package com.eternal_search.geoip.service;
 
+import com.eternal_search.geoip.model.GeoIPArchive;
 import com.eternal_search.geoip.model.GeoIPBlock;
 import com.eternal_search.geoip.model.GeoIPLocation;
 import com.eternal_search.geoip.model.GeoIPTimezone;
@@ -8,6 +9,7 @@ import io.smallrye.mutiny.Multi;
 import io.smallrye.mutiny.Uni;
 
 import java.time.Instant;
+import java.util.List;
 import java.util.function.Function;
 
 public interface GeoIPStorage {
@@ -15,7 +17,17 @@ public interface GeoIPStorage {
 	
 	Uni<GeoIPAddressDTO> findAddress(String address, String localeCode);
 	
-	<T> Uni<T> update(Function<Updater, Uni<T>> updaterFunction);
+	Uni<List<GeoIPAddressDTO>> findAddresses(List<String> addresses, String localeCode);
+	
+	// The archive is recorded with the new generation
+	<T> Uni<T> update(GeoIPArchive archive, Function<Updater, Uni<T>> updaterFunction);
+	
+	// Swaps the previous generation back in, fails with IllegalStateException when none is kept
+	// (incremental updates change the live tables in place and don't keep one)
+	Uni<Void> rollback();
+	
+	// Archive of the current generation, null before the first update
+	Uni<GeoIPArchive> findArchive();
 	
 	Uni<Instant> findUpdatedAt();
 	
@@ -24,8 +36,11 @@ public interface GeoIPStorage {
 		
 		Uni<Long> insertTimezones(Multi<GeoIPTimezone> timezones);
 		
+		// Locale-independent part of the locations, every location is passed once whatever the number of locales
 		Uni<Long> insertLocations(Multi<GeoIPLocation> locations);
 		
+		Uni<Long> insertLocationNames(Multi<GeoIPLocation> locations);
+		
 		Uni<Long> insertLocales(Multi<String> locales);
 	}
 }
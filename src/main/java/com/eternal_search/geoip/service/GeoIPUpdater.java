@@ -1,5 +1,7 @@
 package com.eternal_search.geoip.service;
 
+import com.eternal_search.geoip.model.dto.GeoIPImportProgressDTO;
+
 import java.io.InputStream;
 
 public interface GeoIPUpdater {
@@ -8,4 +10,6 @@ public interface GeoIPUpdater {
 	void launchUpdate(InputStream inputStream);
 	
 	boolean isUpdating();
+	
+	GeoIPImportProgressDTO getProgress();
 }
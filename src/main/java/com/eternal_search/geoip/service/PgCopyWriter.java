@@ -0,0 +1,100 @@
+package com.eternal_search.geoip.service;
+
+import lombok.SneakyThrows;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+class PgCopyWriter {
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final byte[] SIGNATURE = {
+			'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0
+	};
+	
+	private final PGCopyOutputStream copyStream;
+	private final DataOutputStream output;
+	
+	@SneakyThrows({SQLException.class, IOException.class})
+	PgCopyWriter(Connection connection, String sql) {
+		copyStream = new PGCopyOutputStream(
+				connection.unwrap(PGConnection.class).getCopyAPI().copyIn(sql),
+				BUFFER_SIZE
+		);
+		output = new DataOutputStream(copyStream);
+		output.write(SIGNATURE);
+		output.writeInt(0);
+		output.writeInt(0);
+	}
+	
+	@SneakyThrows(IOException.class)
+	PgCopyWriter startRow(int fieldCount) {
+		output.writeShort(fieldCount);
+		return this;
+	}
+	
+	@SneakyThrows(IOException.class)
+	PgCopyWriter writeLong(Long value) {
+		if (value == null) return writeNull();
+		output.writeInt(Long.BYTES);
+		output.writeLong(value);
+		return this;
+	}
+	
+	@SneakyThrows(IOException.class)
+	PgCopyWriter writeInteger(Integer value) {
+		if (value == null) return writeNull();
+		output.writeInt(Integer.BYTES);
+		output.writeInt(value);
+		return this;
+	}
+	
+	@SneakyThrows(IOException.class)
+	PgCopyWriter writeReal(Double value) {
+		if (value == null) return writeNull();
+		output.writeInt(Float.BYTES);
+		output.writeFloat(value.floatValue());
+		return this;
+	}
+	
+	@SneakyThrows(IOException.class)
+	PgCopyWriter writeBoolean(Boolean value) {
+		if (value == null) return writeNull();
+		output.writeInt(1);
+		output.writeByte(value ? 1 : 0);
+		return this;
+	}
+	
+	@SneakyThrows(IOException.class)
+	PgCopyWriter writeString(String value) {
+		if (value == null) return writeNull();
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		output.writeInt(bytes.length);
+		output.write(bytes);
+		return this;
+	}
+	
+	@SneakyThrows(IOException.class)
+	private PgCopyWriter writeNull() {
+		output.writeInt(-1);
+		return this;
+	}
+	
+	@SneakyThrows({SQLException.class, IOException.class})
+	long finish() {
+		output.writeShort(-1);
+		output.flush();
+		return copyStream.endCopy();
+	}
+	
+	@SneakyThrows(SQLException.class)
+	void cancel() {
+		if (copyStream.isActive()) {
+			copyStream.cancelCopy();
+		}
+	}
+}
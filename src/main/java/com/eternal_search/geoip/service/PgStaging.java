@@ -0,0 +1,289 @@
+package com.eternal_search.geoip.service;
+
+import lombok.extern.jbosslog.JBossLog;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@JBossLog
+final class PgStaging {
+	static final String LIVE_SCHEMA = "public";
+	static final String STAGING_SCHEMA = "geoip_next";
+	static final String PREVIOUS_SCHEMA = "geoip_prev";
+	// Only exists inside the rollback transaction, while the live and the previous tables trade places
+	private static final String ROLLBACK_SCHEMA = "geoip_rollback";
+	
+	// Tables are listed in dependency order, referenced tables go first
+	private static final List<String> TABLES = Arrays.asList(
+			"geoip_timezones", "geoip_locales", "geoip_locations", "geoip_location_names", "geoip_blocks"
+	);
+	// Large tables are loaded without any indexes, small ones keep their unique constraints for ON CONFLICT
+	private static final List<String> DEFERRED_INDEX_TABLES = Arrays.asList(
+			"geoip_locations", "geoip_location_names", "geoip_blocks"
+	);
+	private static final String LOCATION_COLUMNS = "id, parent_id, level, code, is_in_european_union, timezone_id";
+	private static final String LOCATION_NAME_COLUMNS = "location_id, locale_code, name, ancestors";
+	private static final String BLOCK_COLUMNS =
+			"start_high, start_low, stop_high, stop_low, location_id, postal_code, latitude, longitude, " +
+					"accuracy_radius, is_anonymous_proxy, is_satellite_provider";
+	// Blocks have no natural key, a changed block is deleted and inserted again.
+	// Ranges are compared with plain equality so that the anti-joins can be hashed, nullable columns are join filters.
+	private static final String SAME_BLOCK =
+			"s.start_high = b.start_high AND s.start_low = b.start_low AND " +
+					"s.stop_high = b.stop_high AND s.stop_low = b.stop_low AND " +
+					"s.location_id IS NOT DISTINCT FROM b.location_id AND " +
+					"s.postal_code IS NOT DISTINCT FROM b.postal_code AND " +
+					"s.latitude IS NOT DISTINCT FROM b.latitude AND " +
+					"s.longitude IS NOT DISTINCT FROM b.longitude AND " +
+					"s.accuracy_radius IS NOT DISTINCT FROM b.accuracy_radius AND " +
+					"s.is_anonymous_proxy = b.is_anonymous_proxy AND " +
+					"s.is_satellite_provider = b.is_satellite_provider";
+	
+	private PgStaging() {
+		throw new UnsupportedOperationException();
+	}
+	
+	static String staging(String table) {
+		return STAGING_SCHEMA + "." + table;
+	}
+	
+	private static String live(String table) {
+		return LIVE_SCHEMA + "." + table;
+	}
+	
+	private static String previous(String table) {
+		return PREVIOUS_SCHEMA + "." + table;
+	}
+	
+	static void prepare(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			// The previous generation stays until the new one is swapped in, so a failed update can still roll back
+			log.info("Dropping stale staging tables");
+			statement.execute("DROP SCHEMA IF EXISTS " + STAGING_SCHEMA + " CASCADE");
+			statement.execute("CREATE SCHEMA " + STAGING_SCHEMA);
+			for (String table : TABLES) {
+				log.infof("Creating staging table %s", staging(table));
+				statement.execute(
+						"CREATE UNLOGGED TABLE " + staging(table) + " (LIKE " + LIVE_SCHEMA + "." + table +
+								(DEFERRED_INDEX_TABLES.contains(table) ? "" : " INCLUDING INDEXES") + ")"
+				);
+			}
+		}
+	}
+	
+	static void drop(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("DROP SCHEMA IF EXISTS " + STAGING_SCHEMA + " CASCADE");
+		}
+	}
+	
+	static void finishLoad(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			for (String table : TABLES) {
+				log.infof("Making %s logged", staging(table));
+				statement.execute("ALTER TABLE " + staging(table) + " SET LOGGED");
+			}
+			for (String table : DEFERRED_INDEX_TABLES) {
+				for (String[] constraint : findConstraints(connection, table, "contype IN ('p', 'u')")) {
+					log.infof("Adding constraint %s to %s", constraint[0], staging(table));
+					statement.execute(
+							"ALTER TABLE " + staging(table) +
+									" ADD CONSTRAINT " + constraint[0] + " " + toStaging(constraint[1])
+					);
+				}
+				for (String index : findIndexes(connection, table)) {
+					log.infof("Building index: %s", toStaging(index));
+					statement.execute(toStaging(index));
+				}
+			}
+			for (String table : TABLES) {
+				for (String[] constraint : findConstraints(connection, table, "contype = 'f'")) {
+					log.infof("Adding constraint %s to %s", constraint[0], staging(table));
+					statement.execute(
+							"ALTER TABLE " + staging(table) +
+									" ADD CONSTRAINT " + constraint[0] + " " + toStaging(constraint[1])
+					);
+				}
+				statement.execute("ANALYZE " + staging(table));
+			}
+		}
+	}
+	
+	static void swap(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("SET LOCAL lock_timeout = '10s'");
+			statement.execute("DROP SCHEMA IF EXISTS " + PREVIOUS_SCHEMA + " CASCADE");
+			statement.execute("CREATE SCHEMA " + PREVIOUS_SCHEMA);
+			for (String table : TABLES) {
+				statement.execute("ALTER TABLE " + LIVE_SCHEMA + "." + table + " SET SCHEMA " + PREVIOUS_SCHEMA);
+				statement.execute("ALTER TABLE " + staging(table) + " SET SCHEMA " + LIVE_SCHEMA);
+			}
+			statement.execute("DROP SCHEMA " + STAGING_SCHEMA);
+		}
+	}
+	
+	// Trades places between the live and the previous generation, so a second rollback restores the newer one.
+	// Runs in the caller's transaction.
+	static void rollback(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("SET LOCAL lock_timeout = '10s'");
+			try (ResultSet resultSet = statement.executeQuery(
+					"SELECT 1 FROM pg_namespace WHERE nspname = '" + PREVIOUS_SCHEMA + "'"
+			)) {
+				if (!resultSet.next()) {
+					throw new IllegalStateException("There is no previous generation to roll back to");
+				}
+			}
+			statement.execute("CREATE SCHEMA " + ROLLBACK_SCHEMA);
+			for (String table : TABLES) {
+				statement.execute("ALTER TABLE " + live(table) + " SET SCHEMA " + ROLLBACK_SCHEMA);
+				statement.execute("ALTER TABLE " + previous(table) + " SET SCHEMA " + LIVE_SCHEMA);
+			}
+			statement.execute("DROP SCHEMA " + PREVIOUS_SCHEMA);
+			statement.execute("ALTER SCHEMA " + ROLLBACK_SCHEMA + " RENAME TO " + PREVIOUS_SCHEMA);
+		}
+	}
+	
+	// Incremental updates keep the staging tables unlogged and unindexed, they are only read by merge
+	static void analyze(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			for (String table : TABLES) {
+				statement.execute("ANALYZE " + staging(table));
+			}
+		}
+	}
+	
+	// Applies the difference between staging and live tables, only changed rows are written (and WAL-logged).
+	// Runs in the caller's transaction, constraints are deferred so that the order of changes doesn't matter.
+	static void merge(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("SET LOCAL lock_timeout = '10s'");
+			statement.execute("SET CONSTRAINTS ALL DEFERRED");
+			// Merged rows change the live tables in place, the generation before the last swap is no longer the previous one
+			statement.execute("DROP SCHEMA IF EXISTS " + PREVIOUS_SCHEMA + " CASCADE");
+			// Timezone names are unique, an id change has to be applied in place before new ones go in
+			apply(statement, "Updated timezones",
+					"UPDATE " + live("geoip_timezones") + " t SET id = s.id " +
+							"FROM " + staging("geoip_timezones") + " s WHERE s.name = t.name AND s.id <> t.id"
+			);
+			apply(statement, "Inserted timezones",
+					"INSERT INTO " + live("geoip_timezones") + " (id, name) " +
+							"SELECT s.id, s.name FROM " + staging("geoip_timezones") + " s " +
+							"WHERE NOT EXISTS (SELECT 1 FROM " + live("geoip_timezones") + " t WHERE t.id = s.id)"
+			);
+			apply(statement, "Inserted locales",
+					"INSERT INTO " + live("geoip_locales") + " (code) " +
+							"SELECT s.code FROM " + staging("geoip_locales") + " s " +
+							"WHERE NOT EXISTS (SELECT 1 FROM " + live("geoip_locales") + " l WHERE l.code = s.code)"
+			);
+			apply(statement, "Updated locations",
+					"UPDATE " + live("geoip_locations") + " l SET " +
+							"parent_id = s.parent_id, level = s.level, code = s.code, " +
+							"is_in_european_union = s.is_in_european_union, timezone_id = s.timezone_id " +
+							"FROM " + staging("geoip_locations") + " s " +
+							"WHERE l.id = s.id AND " +
+							"(l.parent_id, l.level, l.code, l.is_in_european_union, l.timezone_id) " +
+							"IS DISTINCT FROM " +
+							"(s.parent_id, s.level, s.code, s.is_in_european_union, s.timezone_id)"
+			);
+			apply(statement, "Inserted locations",
+					"INSERT INTO " + live("geoip_locations") + " (" + LOCATION_COLUMNS + ") " +
+							"SELECT " + LOCATION_COLUMNS + " FROM " + staging("geoip_locations") + " s " +
+							"WHERE NOT EXISTS (SELECT 1 FROM " + live("geoip_locations") + " l WHERE l.id = s.id)"
+			);
+			apply(statement, "Updated location names",
+					"UPDATE " + live("geoip_location_names") + " n SET name = s.name, ancestors = s.ancestors " +
+							"FROM " + staging("geoip_location_names") + " s " +
+							"WHERE n.location_id = s.location_id AND n.locale_code = s.locale_code AND " +
+							"(n.name, n.ancestors) IS DISTINCT FROM (s.name, s.ancestors)"
+			);
+			apply(statement, "Inserted location names",
+					"INSERT INTO " + live("geoip_location_names") + " (" + LOCATION_NAME_COLUMNS + ") " +
+							"SELECT " + LOCATION_NAME_COLUMNS + " FROM " + staging("geoip_location_names") + " s " +
+							"WHERE NOT EXISTS (SELECT 1 FROM " + live("geoip_location_names") + " n " +
+							"WHERE n.location_id = s.location_id AND n.locale_code = s.locale_code)"
+			);
+			apply(statement, "Deleted location names",
+					"DELETE FROM " + live("geoip_location_names") + " n " +
+							"WHERE NOT EXISTS (SELECT 1 FROM " + staging("geoip_location_names") + " s " +
+							"WHERE s.location_id = n.location_id AND s.locale_code = n.locale_code)"
+			);
+			apply(statement, "Deleted locations",
+					"DELETE FROM " + live("geoip_locations") + " l " +
+							"WHERE NOT EXISTS (SELECT 1 FROM " + staging("geoip_locations") + " s WHERE s.id = l.id)"
+			);
+			apply(statement, "Deleted timezones",
+					"DELETE FROM " + live("geoip_timezones") + " t " +
+							"WHERE NOT EXISTS (SELECT 1 FROM " + staging("geoip_timezones") + " s WHERE s.id = t.id)"
+			);
+			apply(statement, "Deleted locales",
+					"DELETE FROM " + live("geoip_locales") + " l " +
+							"WHERE NOT EXISTS (SELECT 1 FROM " + staging("geoip_locales") + " s WHERE s.code = l.code)"
+			);
+			apply(statement, "Deleted blocks",
+					"DELETE FROM " + live("geoip_blocks") + " b " +
+							"WHERE NOT EXISTS (SELECT 1 FROM " + staging("geoip_blocks") + " s WHERE " + SAME_BLOCK + ")"
+			);
+			apply(statement, "Inserted blocks",
+					"INSERT INTO " + live("geoip_blocks") + " (" + BLOCK_COLUMNS + ") " +
+							"SELECT " + BLOCK_COLUMNS + " FROM " + staging("geoip_blocks") + " s " +
+							"WHERE NOT EXISTS (SELECT 1 FROM " + live("geoip_blocks") + " b WHERE " + SAME_BLOCK + ")"
+			);
+		}
+	}
+	
+	private static void apply(Statement statement, String description, String sql) throws SQLException {
+		log.infof("%s: %s", description, statement.executeUpdate(sql));
+	}
+	
+	private static String toStaging(String definition) {
+		return definition.replaceAll(
+				"\\b(ON|REFERENCES) (?:" + LIVE_SCHEMA + "\\.)?(geoip_\\w+)",
+				"$1 " + STAGING_SCHEMA + ".$2"
+		);
+	}
+	
+	private static List<String[]> findConstraints(
+			Connection connection,
+			String table,
+			String condition
+	) throws SQLException {
+		List<String[]> result = new ArrayList<>();
+		try (PreparedStatement statement = connection.prepareStatement(
+				"SELECT conname, pg_get_constraintdef(oid) FROM pg_constraint " +
+						"WHERE conrelid = CAST(? AS regclass) AND " + condition
+		)) {
+			statement.setString(1, LIVE_SCHEMA + "." + table);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				while (resultSet.next()) {
+					result.add(new String[] { resultSet.getString(1), resultSet.getString(2) });
+				}
+			}
+		}
+		return result;
+	}
+	
+	private static List<String> findIndexes(Connection connection, String table) throws SQLException {
+		List<String> result = new ArrayList<>();
+		try (PreparedStatement statement = connection.prepareStatement(
+				"SELECT pg_get_indexdef(i.indexrelid) FROM pg_index i " +
+						"WHERE i.indrelid = CAST(? AS regclass) AND NOT EXISTS (" +
+						"SELECT 1 FROM pg_constraint c WHERE c.conindid = i.indexrelid AND c.contype <> 'f'" +
+						")"
+		)) {
+			statement.setString(1, LIVE_SCHEMA + "." + table);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				while (resultSet.next()) {
+					result.add(resultSet.getString(1));
+				}
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,180 @@
+package com.eternal_search.geoip.util;
+
+public final class IPAddressParser {
+	public static final int INVALID = -1;
+	public static final int IPV4_BITS = 32;
+	public static final int IPV6_BITS = 128;
+	private static final long IPV4_MAPPED_PREFIX = 0xFFFFL << 32;
+	
+	private IPAddressParser() {
+		throw new UnsupportedOperationException();
+	}
+	
+	public static boolean parse(CharSequence text, long[] key) {
+		return parse(text, 0, text.length(), key) != INVALID;
+	}
+	
+	// Stores the address as an unsigned 128-bit key (IPv4 is mapped to ::ffff:a.b.c.d)
+	// and returns the width of the parsed address family in bits
+	public static int parse(CharSequence text, int start, int end, long[] key) {
+		if (start >= end) return INVALID;
+		for (int i = start; i < end; i++) {
+			if (text.charAt(i) == ':') {
+				return parseIPv6(text, start, end, key) ? IPV6_BITS : INVALID;
+			}
+		}
+		long address = parseIPv4(text, start, end);
+		if (address < 0) return INVALID;
+		key[0] = 0;
+		key[1] = IPV4_MAPPED_PREFIX | address;
+		return IPV4_BITS;
+	}
+	
+	// Parses "address/prefix" into the first and the last address of the network
+	public static boolean parseNetwork(CharSequence text, long[] start, long[] stop) {
+		int slash = -1;
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) == '/') {
+				slash = i;
+				break;
+			}
+		}
+		if (slash < 0) return false;
+		int bits = parse(text, 0, slash, start);
+		if (bits == INVALID) return false;
+		int prefix = parseDecimal(text, slash + 1, text.length(), bits);
+		if (prefix < 0) return false;
+		prefix += IPV6_BITS - bits;
+		long maskHigh;
+		long maskLow;
+		if (prefix >= 64) {
+			maskHigh = 0;
+			maskLow = prefix < 128 ? -1L >>> (prefix - 64) : 0;
+		} else {
+			maskHigh = -1L >>> prefix;
+			maskLow = -1L;
+		}
+		stop[0] = start[0] | maskHigh;
+		stop[1] = start[1] | maskLow;
+		start[0] &= ~maskHigh;
+		start[1] &= ~maskLow;
+		return true;
+	}
+	
+	private static int parseDecimal(CharSequence text, int start, int end, int max) {
+		if (start >= end || end - start > 3) return -1;
+		int value = 0;
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if (c < '0' || c > '9') return -1;
+			value = value * 10 + (c - '0');
+		}
+		return value <= max ? value : -1;
+	}
+	
+	private static long parseIPv4(CharSequence text, int start, int end) {
+		long result = 0;
+		int octets = 0;
+		int i = start;
+		while (true) {
+			int octetStart = i;
+			int value = 0;
+			while (i < end && i - octetStart < 4) {
+				char c = text.charAt(i);
+				if (c < '0' || c > '9') break;
+				value = value * 10 + (c - '0');
+				i++;
+			}
+			int digits = i - octetStart;
+			if (digits == 0 || digits > 3 || value > 255) return -1;
+			// Leading zeros are rejected since some parsers treat them as octal
+			if (digits > 1 && text.charAt(octetStart) == '0') return -1;
+			result = (result << 8) | value;
+			if (++octets == 4) {
+				return i == end ? result : -1;
+			}
+			if (i >= end || text.charAt(i) != '.') return -1;
+			i++;
+		}
+	}
+	
+	private static boolean parseIPv6(CharSequence text, int start, int end, long[] key) {
+		long high = 0;
+		long low = 0;
+		long headHigh = 0;
+		long headLow = 0;
+		int groups = 0;
+		// Number of groups before "::" or -1 if the address is not compressed
+		int headGroups = -1;
+		int i = start;
+		if (text.charAt(i) == ':') {
+			if (i + 1 >= end || text.charAt(i + 1) != ':') return false;
+			headGroups = 0;
+			i += 2;
+		}
+		while (i < end) {
+			int groupStart = i;
+			int value = 0;
+			while (i < end && i - groupStart < 5) {
+				int digit = hexDigit(text.charAt(i));
+				if (digit < 0) break;
+				value = (value << 4) | digit;
+				i++;
+			}
+			if (i < end && text.charAt(i) == '.') {
+				// Embedded IPv4 address occupies the last two groups
+				if (groups + 2 > 8) return false;
+				long address = parseIPv4(text, groupStart, end);
+				if (address < 0) return false;
+				high = (high << 32) | (low >>> 32);
+				low = (low << 32) | address;
+				groups += 2;
+				break;
+			}
+			int digits = i - groupStart;
+			if (digits == 0 || digits > 4 || groups == 8) return false;
+			high = (high << 16) | (low >>> 48);
+			low = (low << 16) | value;
+			groups++;
+			if (i == end) break;
+			if (text.charAt(i) != ':') return false;
+			i++;
+			if (i < end && text.charAt(i) == ':') {
+				if (headGroups >= 0) return false;
+				headGroups = groups;
+				headHigh = high;
+				headLow = low;
+				high = 0;
+				low = 0;
+				i++;
+			} else if (i == end) {
+				return false;
+			}
+		}
+		if (headGroups < 0) {
+			if (groups != 8) return false;
+			key[0] = high;
+			key[1] = low;
+			return true;
+		}
+		if (groups == 8) return false;
+		int shift = (8 - headGroups) * 16;
+		if (shift >= 64) {
+			headHigh = shift < 128 ? headLow << (shift - 64) : 0;
+			headLow = 0;
+		} else {
+			headHigh = (headHigh << shift) | (headLow >>> (64 - shift));
+			headLow <<= shift;
+		}
+		key[0] = headHigh | high;
+		key[1] = headLow | low;
+		return true;
+	}
+	
+	private static int hexDigit(char c) {
+		if (c >= '0' && c <= '9') return c - '0';
+		if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+		if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+		return -1;
+	}
+}
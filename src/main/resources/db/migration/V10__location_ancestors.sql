@@ -0,0 +1,14 @@
+ALTER TABLE geoip_locations ADD COLUMN ancestors JSONB;
+
+WITH RECURSIVE chain AS (
+    SELECT id AS location_id, locale_code, 0 AS depth, id, parent_id, name, code, level
+    FROM geoip_locations
+    UNION ALL SELECT c.location_id, c.locale_code, c.depth + 1, p.id, p.parent_id, p.name, p.code, p.level
+    FROM chain c
+    INNER JOIN geoip_locations p ON p.id = c.parent_id AND p.locale_code = c.locale_code
+) UPDATE geoip_locations l SET ancestors = a.ancestors FROM (
+    SELECT location_id, locale_code, jsonb_agg(jsonb_build_object(
+        'id', id, 'name', name, 'code', code, 'level', level
+    ) ORDER BY depth) AS ancestors
+    FROM chain GROUP BY location_id, locale_code
+) a WHERE l.id = a.location_id AND l.locale_code = a.locale_code;
@@ -0,0 +1,3 @@
+-- Tables are now rebuilt in a staging schema and swapped in, serial columns would tie them to a shared sequence
+ALTER TABLE geoip_locales DROP COLUMN id;
+ALTER TABLE geoip_locales ADD PRIMARY KEY (code);
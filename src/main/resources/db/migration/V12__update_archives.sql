@@ -0,0 +1,4 @@
+-- Identifies the imported archive, so that an unchanged release is neither downloaded nor imported again
+ALTER TABLE geoip_updates ADD COLUMN sha256 CHAR(64);
+ALTER TABLE geoip_updates ADD COLUMN etag VARCHAR(1024);
+ALTER TABLE geoip_updates ADD COLUMN last_modified VARCHAR(64);
@@ -0,0 +1,31 @@
+-- Locations are stored once, only names and the name chains built from them are kept per locale
+CREATE TABLE geoip_location_names (
+    location_id BIGINT NOT NULL,
+    locale_code VARCHAR(5) NOT NULL,
+    name VARCHAR(256),
+    ancestors JSONB,
+
+    PRIMARY KEY (location_id, locale_code)
+);
+
+INSERT INTO geoip_location_names (location_id, locale_code, name, ancestors)
+SELECT id, locale_code, name, ancestors FROM geoip_locations;
+
+CREATE INDEX geoip_location_names_locale_code_name ON geoip_location_names(locale_code, name);
+
+ALTER TABLE geoip_locations DROP CONSTRAINT geoip_locations_parent_id_locale_code_fkey;
+
+-- Structure columns are the same in every locale, one row per location is enough
+DELETE FROM geoip_locations l USING geoip_locations o WHERE o.id = l.id AND o.locale_code < l.locale_code;
+
+DROP INDEX geoip_locations_locale_code_name;
+
+ALTER TABLE geoip_locations
+    DROP CONSTRAINT geoip_locations_pkey,
+    DROP COLUMN locale_code,
+    DROP COLUMN name,
+    DROP COLUMN ancestors,
+    ADD PRIMARY KEY (id),
+    ADD FOREIGN KEY (parent_id) REFERENCES geoip_locations(id) DEFERRABLE;
+
+ALTER TABLE geoip_location_names ADD FOREIGN KEY (location_id) REFERENCES geoip_locations(id) DEFERRABLE;
@@ -0,0 +1,2 @@
+-- The previous generation is now kept for rollbacks, it has the layout it was built with and V13 changed it
+DROP SCHEMA IF EXISTS geoip_prev CASCADE;
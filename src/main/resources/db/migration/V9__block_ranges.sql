@@ -0,0 +1,25 @@
+ALTER TABLE geoip_blocks
+    ADD COLUMN start_high BIGINT,
+    ADD COLUMN start_low BIGINT,
+    ADD COLUMN stop_high BIGINT,
+    ADD COLUMN stop_low BIGINT;
+
+-- Halves are stored with the sign bit flipped so that signed BIGINT order matches unsigned address order
+UPDATE geoip_blocks SET
+    start_high = (('x' || substr(start, 1, 16))::BIT(64) # x'8000000000000000')::BIGINT,
+    start_low = (('x' || substr(start, 17, 16))::BIT(64) # x'8000000000000000')::BIGINT,
+    stop_high = (('x' || substr(stop, 1, 16))::BIT(64) # x'8000000000000000')::BIGINT,
+    stop_low = (('x' || substr(stop, 17, 16))::BIT(64) # x'8000000000000000')::BIGINT;
+
+DROP INDEX IF EXISTS stop_start;
+
+ALTER TABLE geoip_blocks
+    DROP COLUMN id,
+    DROP COLUMN start,
+    DROP COLUMN stop,
+    ALTER COLUMN start_high SET NOT NULL,
+    ALTER COLUMN start_low SET NOT NULL,
+    ALTER COLUMN stop_high SET NOT NULL,
+    ALTER COLUMN stop_low SET NOT NULL;
+
+CREATE INDEX geoip_blocks_start ON geoip_blocks(start_high, start_low);
@@ -0,0 +1,163 @@
+package com.eternal_search.geoip.maxmind;
+
+import com.eternal_search.geoip.maxmind.model.MaxMindLocation;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CSVParserTest {
+	private static final String HEADER = "geoname_id,city_name,time_zone,is_in_european_union\n";
+	
+	@Test
+	void readsPlainRecords() {
+		List<MaxMindLocation> locations = parse(HEADER + "1,Berlin,Europe/Berlin,1\n2,Moscow,Europe/Moscow,0\n");
+		assertEquals(2, locations.size());
+		assertEquals(1L, locations.get(0).getGeonameId());
+		assertEquals("Berlin", locations.get(0).getCityName());
+		assertEquals("Europe/Berlin", locations.get(0).getTimeZone());
+		assertTrue(locations.get(0).getIsInEuropeanUnion());
+		assertFalse(locations.get(1).getIsInEuropeanUnion());
+	}
+	
+	@Test
+	void leavesEmptyFieldsUnset() {
+		MaxMindLocation location = parse(HEADER + "3,,,\n").get(0);
+		assertEquals(3L, location.getGeonameId());
+		assertNull(location.getCityName());
+		assertNull(location.getTimeZone());
+		assertNull(location.getIsInEuropeanUnion());
+	}
+	
+	@Test
+	void readsQuotedFields() {
+		List<String[]> records = values(HEADER +
+				"1,\"Frankfurt, am Main\",\"Europe/\"\"Berlin\"\"\",0\n" +
+				"2,\"\",\"\"\"\",1\n" +
+				"3,\"Line\nbreak\",\"Carriage\r\nreturn\",0\n");
+		assertArrayEquals(new String[] { "1", "Frankfurt, am Main", "Europe/\"Berlin\"", "0" }, records.get(0));
+		assertArrayEquals(new String[] { "2", "", "\"", "1" }, records.get(1));
+		assertArrayEquals(new String[] { "3", "Line\nbreak", "Carriage\r\nreturn", "0" }, records.get(2));
+	}
+	
+	@Test
+	void acceptsCrlfAndBlankLines() {
+		List<String[]> records = values(
+				"geoname_id,city_name,time_zone,is_in_european_union\r\n\r\n1,a,b,0\r\n\r\n2,c,d,1\r\n"
+		);
+		assertEquals(2, records.size());
+		assertArrayEquals(new String[] { "1", "a", "b", "0" }, records.get(0));
+		assertArrayEquals(new String[] { "2", "c", "d", "1" }, records.get(1));
+	}
+	
+	@Test
+	void readsLastRecordWithoutNewline() {
+		List<String[]> records = values(HEADER + "1,a,b,0\n2,\"c\",d,");
+		assertEquals(2, records.size());
+		assertArrayEquals(new String[] { "2", "c", "d", "" }, records.get(1));
+		assertArrayEquals(new String[] { "3", "x\"", "y", "1" }, values(HEADER + "3,\"x\"\"\",y,\"1\"").get(0));
+	}
+	
+	@Test
+	void skipsRecordsWithWrongFieldCount() {
+		List<String[]> records = values(HEADER + "1,a,b\n2,a,b,0\n3,a,b,0,extra\n4,\"a,b\",c,1\n");
+		assertEquals(Arrays.asList("2", "4"), records.stream().map(record -> record[0]).collect(Collectors.toList()));
+	}
+	
+	@Test
+	void readsRecordsSpanningBufferBoundary() {
+		// The first refill happens at 64K, the padding record moves it through every character of the second one
+		String record = "2,\"Frank\"\"furt, am\r\nMain\",Europe/Berlin,1\r\n";
+		String[] expected = { "2", "Frank\"furt, am\r\nMain", "Europe/Berlin", "1" };
+		for (int offset = 0; offset <= record.length(); offset++) {
+			char[] padding = new char[(1 << 16) - HEADER.length() - offset - "1,,x,0\n".length()];
+			Arrays.fill(padding, 'x');
+			List<String[]> records = values(HEADER + "1," + new String(padding) + ",x,0\n" + record);
+			assertEquals(2, records.size(), "Offset " + offset);
+			assertEquals(padding.length, records.get(0)[1].length(), "Offset " + offset);
+			assertArrayEquals(expected, records.get(1), "Offset " + offset);
+		}
+	}
+	
+	@Test
+	void readsRecordsFromShortReads() {
+		String input = HEADER +
+				"1,\"Frankfurt, am Main\",\"Europe/\"\"Berlin\"\"\",0\r\n" +
+				"2,,\"Line\r\nbreak\",1\n" +
+				"3,a,\"\"\"\",0";
+		List<String[]> expected = values(input);
+		assertEquals(3, expected.size());
+		for (int chunk = 1; chunk <= 8; chunk++) {
+			assertRecords(expected, values(new ChunkedReader(input, chunk)));
+		}
+	}
+	
+	@Test
+	void convertsValuesOffTheReadingThread() {
+		CSVParser<MaxMindLocation> parser = new CSVParser<>(
+				new StringReader(HEADER + "7,Paris,Europe/Paris,1\n"), MaxMindLocation.class
+		);
+		String[] values = parser.readValues();
+		assertNull(parser.readValues());
+		MaxMindLocation location = parser.toEntry(values);
+		assertEquals(7L, location.getGeonameId());
+		assertEquals("Paris", location.getCityName());
+	}
+	
+	@Test
+	void handlesEmptyInput() {
+		assertEquals(Collections.emptyList(), parse(""));
+		assertEquals(Collections.emptyList(), parse(HEADER));
+	}
+	
+	private static List<MaxMindLocation> parse(String input) {
+		return new CSVParser<>(new StringReader(input), MaxMindLocation.class).stream().collect(Collectors.toList());
+	}
+	
+	private static List<String[]> values(String input) {
+		return values(new StringReader(input));
+	}
+	
+	private static List<String[]> values(Reader reader) {
+		CSVParser<MaxMindLocation> parser = new CSVParser<>(reader, MaxMindLocation.class);
+		List<String[]> records = new ArrayList<>();
+		for (String[] values = parser.readValues(); values != null; values = parser.readValues()) {
+			records.add(values);
+		}
+		return records;
+	}
+	
+	private static void assertRecords(List<String[]> expected, List<String[]> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertArrayEquals(expected.get(i), actual.get(i), "Record " + i);
+		}
+	}
+	
+	// Returns at most a few characters per read, so that every position becomes a buffer boundary
+	private static class ChunkedReader extends StringReader {
+		private final int chunk;
+		
+		ChunkedReader(String input, int chunk) {
+			super(input);
+			this.chunk = chunk;
+		}
+		
+		@Override
+		public int read(char[] buffer, int offset, int length) throws IOException {
+			return super.read(buffer, offset, Math.min(length, chunk));
+		}
+	}
+}
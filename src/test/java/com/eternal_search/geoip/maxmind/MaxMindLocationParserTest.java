@@ -0,0 +1,189 @@
+package com.eternal_search.geoip.maxmind;
+
+import com.eternal_search.geoip.maxmind.model.MaxMindLocation;
+import com.eternal_search.geoip.model.GeoIPLocation;
+import com.eternal_search.geoip.model.GeoIPLocationLevel;
+import com.eternal_search.geoip.model.GeoIPTimezone;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MaxMindLocationParserTest {
+	private static final long DUPLICATE_OFFSET = 5000000;
+	
+	@Test
+	void parallelCollectMatchesSequential() {
+		List<MaxMindLocation> rows = rows("en");
+		Map<Long, GeoIPLocation> expected = locations(rows.stream().collect(new MaxMindLocationParser()));
+		assertEquals(expected, locations(rows.parallelStream().collect(new MaxMindLocationParser())));
+		assertEquals(
+				timezones(rows.stream().collect(new MaxMindLocationParser())),
+				timezones(rows.parallelStream().collect(new MaxMindLocationParser()))
+		);
+	}
+	
+	@Test
+	void shuffledChunksMergeToTheSameTree() {
+		List<MaxMindLocation> rows = rows("en");
+		MaxMindLocationParser parser = new MaxMindLocationParser();
+		MaxMindLocationParser.Result sequential = rows.stream().collect(parser);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (long seed = 1; seed <= 5; seed++) {
+				List<MaxMindLocation> shuffled = new ArrayList<>(rows);
+				Random random = new Random(seed);
+				Collections.shuffle(shuffled, random);
+				List<MaxMindLocationParser.LocationTree> trees = new ArrayList<>();
+				for (int from = 0; from < shuffled.size(); from += 97) {
+					MaxMindLocationParser.LocationTree tree = parser.supplier().get();
+					shuffled.subList(from, Math.min(from + 97, shuffled.size())).forEach(tree::add);
+					trees.add(tree);
+				}
+				Collections.shuffle(trees, random);
+				MaxMindLocationParser.Result merged = parser.finisher().apply(
+						MaxMindUpdater.mergeAll(pool, trees, MaxMindLocationParser.LocationTree::merge, parser.supplier())
+				);
+				assertEquals(locations(sequential), locations(merged), "seed " + seed);
+				assertEquals(timezones(sequential), timezones(merged), "seed " + seed);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	@Test
+	void duplicatesBecomeSiblingsOfTheSmallestId() {
+		List<MaxMindLocation> rows = rows("en");
+		Map<Long, GeoIPLocation> locations = locations(rows.parallelStream().collect(new MaxMindLocationParser()));
+		for (MaxMindLocation row : rows) {
+			assertTrue(locations.containsKey(row.getGeonameId()), "row " + row.getGeonameId());
+		}
+		List<Long> duplicates = rows.stream()
+				.map(MaxMindLocation::getGeonameId)
+				.filter(id -> id > DUPLICATE_OFFSET)
+				.collect(Collectors.toList());
+		assertNotEquals(0, duplicates.size());
+		for (long id : duplicates) {
+			GeoIPLocation duplicate = locations.get(id);
+			GeoIPLocation original = locations.get(id - DUPLICATE_OFFSET);
+			assertEquals(original.getParentId(), duplicate.getParentId());
+			assertEquals(original.getLevel(), duplicate.getLevel());
+			assertEquals(original.getName(), duplicate.getName());
+		}
+	}
+	
+	@Test
+	void localeWithoutCityNamesKeepsTheStructure() {
+		MaxMindLocationParser.Result result = rows("en").stream().collect(new MaxMindLocationParser());
+		Map<Long, GeoIPLocation> en = locations(result.getLocations());
+		MaxMindLocationParser.LocationTree.LocaleNames names = result.localeNames("de");
+		List<MaxMindLocation> rows = localeRows("de");
+		rows.forEach(names::add);
+		Map<Long, GeoIPLocation> de = locations(names.getLocations());
+		assertEquals(en.keySet(), de.keySet());
+		for (GeoIPLocation location : en.values()) {
+			GeoIPLocation localized = de.get(location.getId());
+			assertEquals("de", localized.getLocaleCode());
+			assertEquals(location.getParentId(), localized.getParentId());
+			assertEquals(location.getLevel(), localized.getLevel());
+			assertEquals(location.getCode(), localized.getCode());
+			assertEquals(location.getIsInEuropeanUnion(), localized.getIsInEuropeanUnion());
+			assertEquals(location.getTimezoneId(), localized.getTimezoneId());
+		}
+		for (MaxMindLocation row : rows) {
+			if (row.getSubdivision2IsoCode() == null) continue;
+			GeoIPLocation city = de.get(row.getGeonameId());
+			// Rows with a metro code claim the metro node below their city
+			if (city.getLevel() == GeoIPLocationLevel.METRO) city = de.get(city.getParentId());
+			assertEquals(GeoIPLocationLevel.CITY, city.getLevel());
+			assertEquals(row.getCityName(), city.getName());
+			GeoIPLocation district = de.get(city.getParentId());
+			assertEquals(GeoIPLocationLevel.SUBDIVISION_2, district.getLevel());
+			assertEquals(row.getSubdivision2Name(), district.getName());
+			assertTrue(district.getId() < 0, "district " + district.getId() + " is claimed by a city");
+		}
+		assertEquals(0, names.getUnknownRows());
+	}
+	
+	@Test
+	void shuffledLocaleNamesMergeToTheSameNames() {
+		MaxMindLocationParser.Result result = rows("en").stream().collect(new MaxMindLocationParser());
+		List<MaxMindLocation> rows = localeRows("de");
+		MaxMindLocationParser.LocationTree.LocaleNames sequential = result.localeNames("de");
+		rows.forEach(sequential::add);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (long seed = 1; seed <= 5; seed++) {
+				List<MaxMindLocation> shuffled = new ArrayList<>(rows);
+				Random random = new Random(seed);
+				Collections.shuffle(shuffled, random);
+				List<MaxMindLocationParser.LocationTree.LocaleNames> parts = new ArrayList<>();
+				for (int from = 0; from < shuffled.size(); from += 97) {
+					MaxMindLocationParser.LocationTree.LocaleNames part = result.localeNames("de");
+					shuffled.subList(from, Math.min(from + 97, shuffled.size())).forEach(part::add);
+					parts.add(part);
+				}
+				Collections.shuffle(parts, random);
+				MaxMindLocationParser.LocationTree.LocaleNames merged = MaxMindUpdater.mergeAll(
+						pool,
+						parts,
+						MaxMindLocationParser.LocationTree.LocaleNames::merge,
+						() -> result.localeNames("de")
+				);
+				assertEquals(locations(sequential.getLocations()), locations(merged.getLocations()), "seed " + seed);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	// Generated rows plus copies of every seventh one under a larger geoname id, some of them without a timezone
+	private static List<MaxMindLocation> rows(String localeCode) {
+		MaxMindDatasetGenerator generator = MaxMindDatasetGenerator.builder()
+				.ipv4Blocks(0)
+				.locationCount(3000)
+				.build();
+		Stream<MaxMindLocation> duplicates = generator.locations(localeCode)
+				.filter(row -> row.getGeonameId() % 7 == 0)
+				.peek(row -> {
+					if (row.getGeonameId() % 3 == 0) row.setTimeZone(null);
+					row.setGeonameId(row.getGeonameId() + DUPLICATE_OFFSET);
+				});
+		return Stream.concat(generator.locations(localeCode), duplicates).collect(Collectors.toList());
+	}
+	
+	// Like in GeoLite2, some city names are left empty outside English
+	private static List<MaxMindLocation> localeRows(String localeCode) {
+		List<MaxMindLocation> rows = rows(localeCode);
+		for (MaxMindLocation row : rows) {
+			if (row.getGeonameId() % 2 == 0) row.setCityName(null);
+		}
+		return rows;
+	}
+	
+	private static Map<Long, GeoIPLocation> locations(MaxMindLocationParser.Result result) {
+		return locations(result.getLocations());
+	}
+	
+	// Fails on repeated ids, so colliding synthetic ids can't hide behind map equality
+	private static Map<Long, GeoIPLocation> locations(Collection<GeoIPLocation> locations) {
+		return locations.stream().collect(Collectors.toMap(GeoIPLocation::getId, Function.identity()));
+	}
+	
+	private static Map<Long, String> timezones(MaxMindLocationParser.Result result) {
+		return result.getTimezones().stream().collect(Collectors.toMap(GeoIPTimezone::getId, GeoIPTimezone::getName));
+	}
+}
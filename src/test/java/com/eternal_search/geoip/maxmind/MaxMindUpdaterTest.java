@@ -0,0 +1,197 @@
+package com.eternal_search.geoip.maxmind;
+
+import com.eternal_search.geoip.model.GeoIPArchive;
+import com.eternal_search.geoip.model.dto.GeoIPAddressDTO;
+import com.eternal_search.geoip.service.GeoIPImportProgress;
+import com.eternal_search.geoip.service.GeoIPMetrics;
+import com.eternal_search.geoip.service.GeoIPStorage;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Runs the download against a local stand-in for the MaxMind server, the storage only records what it's asked to import
+class MaxMindUpdaterTest {
+	private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+	private static final String LAST_MODIFIED = "Tue, 29 Dec 2020 12:00:00 GMT";
+	
+	private HttpServer server;
+	private final List<String> conditions = new CopyOnWriteArrayList<>();
+	private volatile String etag;
+	private volatile byte[] content;
+	private RecordingStorage storage;
+	private MaxMindUpdater updater;
+	
+	@BeforeEach
+	void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/GeoLite2-City-CSV.zip", this::serve);
+		server.start();
+		updater = new MaxMindUpdater();
+		updater.downloadUrl = "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" +
+				server.getAddress().getPort() + "/GeoLite2-City-CSV.zip";
+		updater.licenceKey = Optional.empty();
+		updater.importThreads = Optional.of(2);
+		updater.connectionPoolSize = 4;
+		updater.metrics = new GeoIPMetrics(new SimpleMeterRegistry());
+		updater.progress = new GeoIPImportProgress();
+	}
+	
+	@AfterEach
+	void tearDown() {
+		server.stop(0);
+	}
+	
+	// Answers like a server with conditional request support, unless the stand-in has no ETag
+	private void serve(HttpExchange exchange) throws IOException {
+		String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+		conditions.add(ifNoneMatch + "|" + exchange.getRequestHeaders().getFirst("If-Modified-Since"));
+		if (etag != null && etag.equals(ifNoneMatch)) {
+			exchange.sendResponseHeaders(304, -1);
+			exchange.close();
+			return;
+		}
+		if (etag != null) {
+			exchange.getResponseHeaders().set("ETag", etag);
+		}
+		exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+		exchange.sendResponseHeaders(200, content.length);
+		try (OutputStream output = exchange.getResponseBody()) {
+			output.write(content);
+		}
+	}
+	
+	@Test
+	void skipsImportWhenNotModified() {
+		etag = "\"release-1\"";
+		content = bytes("release 1");
+		run(GeoIPArchive.builder().sha256(sha256("release 1")).etag(etag).lastModified(LAST_MODIFIED).build());
+		assertEquals(1, conditions.size());
+		assertEquals("\"release-1\"|" + LAST_MODIFIED, conditions.get(0));
+		assertTrue(storage.updates.isEmpty());
+	}
+	
+	@Test
+	void skipsImportOfSameContent() {
+		etag = null;
+		content = bytes("release 1");
+		run(GeoIPArchive.builder().sha256(sha256("release 1")).etag("\"stale\"").build());
+		assertEquals(1, conditions.size());
+		assertTrue(storage.updates.isEmpty());
+	}
+	
+	@Test
+	void importsChangedContent() {
+		etag = "\"release-2\"";
+		content = bytes("release 2");
+		run(GeoIPArchive.builder().sha256(sha256("release 1")).etag("\"release-1\"").build());
+		assertEquals(1, storage.updates.size());
+		GeoIPArchive archive = storage.updates.get(0);
+		assertEquals(sha256("release 2"), archive.getSha256());
+		assertEquals("\"release-2\"", archive.getEtag());
+		assertEquals(LAST_MODIFIED, archive.getLastModified());
+	}
+	
+	@Test
+	void importsWithoutPreviousGeneration() {
+		etag = "\"release-1\"";
+		content = bytes("release 1");
+		run(null);
+		assertEquals("null|null", conditions.get(0));
+		assertEquals(1, storage.updates.size());
+		assertEquals(sha256("release 1"), storage.updates.get(0).getSha256());
+	}
+	
+	private void run(GeoIPArchive previous) {
+		storage = new RecordingStorage(previous);
+		updater.storage = storage;
+		updater.launchUpdate();
+		long deadline = System.nanoTime() + TIMEOUT;
+		while (updater.isUpdating()) {
+			assertTrue(System.nanoTime() < deadline, "Update didn't finish in time");
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+		}
+	}
+	
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+	
+	private static String sha256(String text) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes(text));
+			return String.format("%064x", new BigInteger(1, digest));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static class RecordingStorage implements GeoIPStorage {
+		private final GeoIPArchive previous;
+		private final List<GeoIPArchive> updates = new CopyOnWriteArrayList<>();
+		
+		RecordingStorage(GeoIPArchive previous) {
+			this.previous = previous;
+		}
+		
+		@Override
+		public Multi<String> findLocales() {
+			return Multi.createFrom().empty();
+		}
+		
+		@Override
+		public Uni<GeoIPAddressDTO> findAddress(String address, String localeCode) {
+			return Uni.createFrom().nullItem();
+		}
+		
+		@Override
+		public Uni<List<GeoIPAddressDTO>> findAddresses(List<String> addresses, String localeCode) {
+			return Uni.createFrom().nullItem();
+		}
+		
+		// The archive isn't imported, only the decision to import it is checked
+		@Override
+		public <T> Uni<T> update(GeoIPArchive archive, Function<Updater, Uni<T>> updaterFunction) {
+			updates.add(archive);
+			return Uni.createFrom().nullItem();
+		}
+		
+		@Override
+		public Uni<Void> rollback() {
+			return Uni.createFrom().voidItem();
+		}
+		
+		@Override
+		public Uni<GeoIPArchive> findArchive() {
+			return Uni.createFrom().item(previous);
+		}
+		
+		@Override
+		public Uni<Instant> findUpdatedAt() {
+			return Uni.createFrom().nullItem();
+		}
+	}
+}
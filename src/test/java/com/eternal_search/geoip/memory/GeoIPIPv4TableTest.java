@@ -0,0 +1,186 @@
+package com.eternal_search.geoip.memory;
+
+import com.eternal_search.geoip.maxmind.MaxMindBlockParser;
+import com.eternal_search.geoip.maxmind.MaxMindDatasetGenerator;
+import com.eternal_search.geoip.maxmind.model.MaxMindBlock;
+import com.eternal_search.geoip.model.GeoIPBlock;
+import com.eternal_search.geoip.util.IPAddressParser;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GeoIPIPv4TableTest {
+	private static final long IPV4_MAPPED_PREFIX = 0xFFFFL << 32;
+	private static final long[] BUDGETS = { 1L << 40, 1L << 26, 1 << 20, 1 << 12, 1 << 10 };
+	private static final int[] BUDGET_PREFIX_BITS = { 24, 24, 18, 10, 8 };
+	
+	@Test
+	void picksThePrefixLengthFromTheBudget() {
+		GeoIPBlockIndex index = index("1.0.0.0", "1.0.0.255");
+		assertNull(GeoIPIPv4Table.build(index, 0));
+		assertNull(GeoIPIPv4Table.build(index, (Integer.BYTES << GeoIPIPv4Table.MIN_PREFIX_BITS) - 1));
+		for (int bits = GeoIPIPv4Table.MIN_PREFIX_BITS; bits <= GeoIPIPv4Table.MAX_PREFIX_BITS; bits++) {
+			// The largest budget that still doesn't fit one more bit
+			GeoIPIPv4Table table = GeoIPIPv4Table.build(index, ((long) Integer.BYTES << (bits + 1)) - 1);
+			assertEquals(bits, table.getPrefixBits());
+			assertEquals((long) Integer.BYTES << bits, table.getMemoryUsage());
+		}
+		for (int i = 0; i < BUDGETS.length; i++) {
+			assertEquals(BUDGET_PREFIX_BITS[i], GeoIPIPv4Table.build(index, BUDGETS[i]).getPrefixBits());
+		}
+	}
+	
+	@Test
+	void matchesTheBlockIndexOnGeneratedBlocks() {
+		MaxMindDatasetGenerator generator = MaxMindDatasetGenerator.builder()
+				.ipv4Blocks(5000)
+				.ipv6Blocks(500)
+				.build();
+		List<MaxMindBlock> maxMindBlocks = Stream.concat(generator.blocks(false), generator.blocks(true))
+				.collect(Collectors.toList());
+		GeoIPBlockIndex.Builder builder = GeoIPBlockIndex.builder(maxMindBlocks.size());
+		for (MaxMindBlock maxMindBlock : maxMindBlocks) {
+			GeoIPBlock block = MaxMindBlockParser.parse(maxMindBlock);
+			builder.add(block.getStartHigh(), block.getStartLow(), block.getStopHigh(), block.getStopLow(), block);
+		}
+		GeoIPBlockIndex index = builder.build();
+		Random random = new Random(1);
+		List<long[]> addresses = new ArrayList<>();
+		for (int i = 0; i < 20000; i++) {
+			boolean ipv6 = i % 5 == 4;
+			int block = random.nextInt(ipv6 ? generator.getIpv6Blocks() : generator.getIpv4Blocks());
+			addresses.add(key(generator.address(ipv6, block, i % 2 == 0, random.nextLong())));
+		}
+		for (int i = 0; i < BUDGETS.length; i++) {
+			GeoIPIPv4Table table = GeoIPIPv4Table.build(index, BUDGETS[i]);
+			assertEquals(BUDGET_PREFIX_BITS[i], table.getPrefixBits());
+			int hits = 0;
+			for (long[] address : addresses) {
+				int position = table.find(address[0], address[1]);
+				assertEquals(index.find(address[0], address[1]), position, table.getPrefixBits() + " bits");
+				if (position >= 0) hits++;
+			}
+			assertNotEquals(0, hits);
+			assertNotEquals(addresses.size(), hits);
+			assertBoundsMatch(table, index);
+		}
+	}
+	
+	@Test
+	void matchesTheBlockIndexAroundPrefixEdges() {
+		GeoIPBlockIndex index = index(
+				"0.0.0.0", "0.0.0.255",
+				// Ends inside its /24, the next one starts inside the same /24 and ends inside the following one
+				"1.0.0.0", "1.0.0.127",
+				"1.0.0.200", "1.0.1.9",
+				"1.0.1.20", "1.0.1.30",
+				"2.0.0.0", "2.255.255.255",
+				"10.1.128.0", "10.2.127.255",
+				// The last prefix holds more than one block and is only partly covered
+				"255.255.255.0", "255.255.255.9",
+				"255.255.255.128", "255.255.255.255",
+				"2001:db8::", "2001:db8::ffff"
+		);
+		for (long budget : BUDGETS) {
+			GeoIPIPv4Table table = GeoIPIPv4Table.build(index, budget);
+			assertBoundsMatch(table, index);
+			assertRandomMatch(table, index);
+		}
+		GeoIPIPv4Table table = GeoIPIPv4Table.build(index, 1L << 26);
+		// 0.0.0/24, every /24 of 2.0.0.0/8 and the 256 ones from 10.1.128/24 are covered by a single block
+		assertEquals(1 + (1 << 16) + 256, table.getUniformPrefixes());
+		assertEquals(9, table.getBlockIndex().size());
+		assertEquals(1, GeoIPIPv4Table.build(index, 1 << 10).getUniformPrefixes());
+	}
+	
+	@Test
+	void matchesTheBlockIndexWithNoBlocksLeft() {
+		// IPv4 only and nothing past 10.x, later prefixes point past the end of the index
+		GeoIPBlockIndex index = index(
+				"1.2.3.4", "1.2.3.4",
+				"1.2.3.6", "1.2.4.0",
+				"10.0.0.0", "10.0.0.0"
+		);
+		for (long budget : BUDGETS) {
+			GeoIPIPv4Table table = GeoIPIPv4Table.build(index, budget);
+			assertBoundsMatch(table, index);
+			assertRandomMatch(table, index);
+			assertEquals(0, table.getUniformPrefixes());
+			assertEquals(-1, table.find(0, key("255.255.255.255")[1]));
+			assertEquals(-1, table.find(0, key("11.0.0.0")[1]));
+		}
+		GeoIPBlockIndex empty = GeoIPBlockIndex.builder(0).build();
+		GeoIPIPv4Table table = GeoIPIPv4Table.build(empty, 1L << 26);
+		assertEquals(-1, table.find(0, key("0.0.0.0")[1]));
+		assertEquals(-1, table.find(0, key("255.255.255.255")[1]));
+		assertEquals(-1, table.find(0, key("::1")[1]));
+	}
+	
+	// Every IPv4 block start and stop, the addresses next to them and the edges of their prefixes
+	private static void assertBoundsMatch(GeoIPIPv4Table table, GeoIPBlockIndex index) {
+		long prefixSize = 1L << (Integer.SIZE - table.getPrefixBits());
+		for (int i = 0; i < index.size(); i++) {
+			if (index.startHigh(i) != 0 || (index.startLow(i) & ~0xFFFFFFFFL) != IPV4_MAPPED_PREFIX) {
+				assertMatch(table, index, index.startHigh(i), index.startLow(i));
+				assertMatch(table, index, index.stopHigh(i), index.stopLow(i));
+				continue;
+			}
+			for (long bound : new long[] { index.startLow(i) & 0xFFFFFFFFL, index.stopLow(i) & 0xFFFFFFFFL }) {
+				long prefixStart = bound & -prefixSize;
+				long[] addresses = {
+						bound - 1, bound, bound + 1,
+						prefixStart - 1, prefixStart, prefixStart + prefixSize - 1, prefixStart + prefixSize
+				};
+				for (long address : addresses) {
+					if (address < 0 || address > 0xFFFFFFFFL) continue;
+					assertMatch(table, index, 0, IPV4_MAPPED_PREFIX | address);
+				}
+			}
+		}
+		assertMatch(table, index, 0, IPV4_MAPPED_PREFIX);
+		assertMatch(table, index, 0, IPV4_MAPPED_PREFIX | 0xFFFFFFFFL);
+		assertMatch(table, index, 0, 0x01020304L);
+		assertMatch(table, index, key("2001:db8::1")[0], key("2001:db8::1")[1]);
+	}
+	
+	private static void assertRandomMatch(GeoIPIPv4Table table, GeoIPBlockIndex index) {
+		Random random = new Random(table.getPrefixBits());
+		for (int i = 0; i < 20000; i++) {
+			assertMatch(table, index, 0, IPV4_MAPPED_PREFIX | (random.nextInt() & 0xFFFFFFFFL));
+		}
+	}
+	
+	private static void assertMatch(GeoIPIPv4Table table, GeoIPBlockIndex index, long high, long low) {
+		assertEquals(
+				index.find(high, low),
+				table.find(high, low),
+				Long.toHexString(high) + ":" + Long.toHexString(low) + " at " + table.getPrefixBits() + " bits"
+		);
+	}
+	
+	// Pairs of first and last addresses, in order
+	private static GeoIPBlockIndex index(String... bounds) {
+		GeoIPBlockIndex.Builder builder = GeoIPBlockIndex.builder(bounds.length / 2);
+		for (int i = 0; i < bounds.length; i += 2) {
+			long[] start = key(bounds[i]);
+			long[] stop = key(bounds[i + 1]);
+			builder.add(start[0], start[1], stop[0], stop[1], GeoIPBlock.builder().locationId((long) i).build());
+		}
+		return builder.build();
+	}
+	
+	private static long[] key(String address) {
+		long[] key = new long[2];
+		assertTrue(IPAddressParser.parse(address, key), address);
+		return key;
+	}
+}
@@ -0,0 +1,177 @@
+package com.eternal_search.geoip.memory;
+
+import com.eternal_search.geoip.maxmind.MaxMindBlockParser;
+import com.eternal_search.geoip.maxmind.MaxMindDatasetGenerator;
+import com.eternal_search.geoip.maxmind.MaxMindLocationParser;
+import com.eternal_search.geoip.maxmind.model.MaxMindBlock;
+import com.eternal_search.geoip.model.GeoIPBlock;
+import com.eternal_search.geoip.model.GeoIPLocation;
+import com.eternal_search.geoip.model.GeoIPTimezone;
+import com.eternal_search.geoip.util.IPAddressParser;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GeoIPSnapshotTest {
+	private static final List<String> LOCALES = Arrays.asList("en", "de", "ru");
+	private static final int HEADER_SIZE = 32;
+	
+	private final MaxMindDatasetGenerator generator = MaxMindDatasetGenerator.builder()
+			.ipv4Blocks(3000)
+			.ipv6Blocks(1000)
+			.locales(LOCALES)
+			.build();
+	
+	@Test
+	void readsBackTheSameLookups() throws IOException {
+		GeoIPSnapshot original = snapshot();
+		Path directory = Files.createTempDirectory("geoip_");
+		try {
+			Path path = directory.resolve("snapshot.bin");
+			original.write(path);
+			GeoIPSnapshot snapshot = GeoIPSnapshot.read(path);
+			assertEquals(original.getLocales(), snapshot.getLocales());
+			assertEquals(original.getUpdatedAt(), snapshot.getUpdatedAt());
+			GeoIPBlockIndex expected = original.getBlockIndex();
+			GeoIPBlockIndex blocks = snapshot.getBlockIndex();
+			assertEquals(expected.size(), blocks.size());
+			for (int i = 0; i < expected.size(); i++) {
+				String message = "block " + i;
+				assertEquals(expected.startHigh(i), blocks.startHigh(i), message);
+				assertEquals(expected.startLow(i), blocks.startLow(i), message);
+				assertEquals(expected.stopHigh(i), blocks.stopHigh(i), message);
+				assertEquals(expected.stopLow(i), blocks.stopLow(i), message);
+				assertEquals(expected.getLocationId(i), blocks.getLocationId(i), message);
+				assertEquals(expected.getPostalCode(i), blocks.getPostalCode(i), message);
+				assertEquals(expected.getLatitude(i), blocks.getLatitude(i), message);
+				assertEquals(expected.getLongitude(i), blocks.getLongitude(i), message);
+				assertEquals(expected.getAccuracyRadius(i), blocks.getAccuracyRadius(i), message);
+				assertEquals(expected.isAnonymousProxy(i), blocks.isAnonymousProxy(i), message);
+				assertEquals(expected.isSatelliteProvider(i), blocks.isSatelliteProvider(i), message);
+			}
+			// Hits and misses in both address families resolve to the same block and location chain
+			Random random = new Random(1);
+			long[] key = new long[2];
+			int hits = 0;
+			for (int i = 0; i < 4000; i++) {
+				boolean ipv6 = i % 2 == 1;
+				int index = random.nextInt(ipv6 ? generator.getIpv6Blocks() : generator.getIpv4Blocks());
+				String address = generator.address(ipv6, index, i % 4 < 2, random.nextLong());
+				assertTrue(IPAddressParser.parse(address, key), address);
+				int position = blocks.find(key[0], key[1]);
+				assertEquals(expected.find(key[0], key[1]), position, address);
+				if (position < 0) continue;
+				hits++;
+				for (String locale : LOCALES) {
+					Long locationId = blocks.getLocationId(position);
+					assertEquals(
+							original.getLocations().find(locale, locationId),
+							snapshot.getLocations().find(locale, locationId),
+							address + " " + locale
+					);
+				}
+			}
+			assertNotEquals(0, hits);
+			// Every chain is rebuilt from parent references, not only the ones reached by lookups
+			assertEquals(original.getLocations().size(), snapshot.getLocations().size());
+			original.getLocations().forEach((localeCode, id, entry) ->
+					assertEquals(entry, snapshot.getLocations().find(localeCode, id), localeCode + " " + id));
+		} finally {
+			delete(directory);
+		}
+	}
+	
+	@Test
+	void rejectsTruncatedFile() throws IOException {
+		Path directory = Files.createTempDirectory("geoip_");
+		try {
+			Path path = directory.resolve("snapshot.bin");
+			snapshot().write(path);
+			byte[] bytes = Files.readAllBytes(path);
+			Path truncated = directory.resolve("truncated.bin");
+			for (int length : new int[] {0, HEADER_SIZE - 1, HEADER_SIZE, bytes.length / 2, bytes.length - 1}) {
+				Files.write(truncated, Arrays.copyOf(bytes, length));
+				assertThrows(IOException.class, () -> GeoIPSnapshot.read(truncated), "length " + length);
+			}
+		} finally {
+			delete(directory);
+		}
+	}
+	
+	@Test
+	void rejectsFlippedPayloadByte() throws IOException {
+		Path directory = Files.createTempDirectory("geoip_");
+		try {
+			Path path = directory.resolve("snapshot.bin");
+			snapshot().write(path);
+			byte[] bytes = Files.readAllBytes(path);
+			Path corrupted = directory.resolve("corrupted.bin");
+			for (int offset : new int[] {HEADER_SIZE, HEADER_SIZE + 17, bytes.length / 2, bytes.length - 1}) {
+				byte[] copy = bytes.clone();
+				copy[offset] ^= 0x10;
+				Files.write(corrupted, copy);
+				assertThrows(IOException.class, () -> GeoIPSnapshot.read(corrupted), "offset " + offset);
+			}
+		} finally {
+			delete(directory);
+		}
+	}
+	
+	// Built like the importer does: IPv4 blocks first, the first locale gives the structure and the others their names
+	private GeoIPSnapshot snapshot() {
+		List<MaxMindBlock> maxMindBlocks = Stream.concat(generator.blocks(false), generator.blocks(true))
+				.collect(Collectors.toList());
+		GeoIPBlockIndex.Builder blocks = GeoIPBlockIndex.builder(maxMindBlocks.size());
+		for (MaxMindBlock maxMindBlock : maxMindBlocks) {
+			GeoIPBlock block = MaxMindBlockParser.parse(maxMindBlock);
+			blocks.add(block.getStartHigh(), block.getStartLow(), block.getStopHigh(), block.getStopLow(), block);
+		}
+		MaxMindLocationParser.Result result = generator.locations(LOCALES.get(0)).collect(new MaxMindLocationParser());
+		Map<Long, String> timezones = new HashMap<>();
+		for (GeoIPTimezone timezone : result.getTimezones()) {
+			timezones.put(timezone.getId(), timezone.getName());
+		}
+		GeoIPLocationStore.Builder locations = GeoIPLocationStore.builder();
+		for (String localeCode : LOCALES) {
+			MaxMindLocationParser.LocationTree.LocaleNames names = result.localeNames(localeCode);
+			generator.locations(localeCode).forEach(names::add);
+			for (GeoIPLocation location : names.getLocations()) {
+				locations.add(
+						localeCode,
+						location.getId(),
+						location.getParentId(),
+						location.getLevel(),
+						location.getName(),
+						location.getCode(),
+						location.getIsInEuropeanUnion(),
+						timezones.get(location.getTimezoneId())
+				);
+			}
+		}
+		return new GeoIPSnapshot(blocks.build(), locations.build(), LOCALES, Instant.ofEpochMilli(1600000000000L));
+	}
+	
+	private static void delete(Path directory) throws IOException {
+		try (Stream<Path> paths = Files.list(directory)) {
+			for (Path path : paths.collect(Collectors.toList())) {
+				Files.delete(path);
+			}
+		}
+		Files.delete(directory);
+	}
+}
@@ -0,0 +1,236 @@
+package com.eternal_search.geoip.mmdb;
+
+import com.eternal_search.geoip.memory.GeoIPLocationStore;
+import com.eternal_search.geoip.model.GeoIPBlock;
+import com.eternal_search.geoip.model.GeoIPLocationLevel;
+import com.eternal_search.geoip.model.dto.GeoIPAddressDTO;
+import com.eternal_search.geoip.model.dto.GeoIPLocationDTO;
+import com.eternal_search.geoip.util.IPAddressParser;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MmdbWriterTest {
+	private static final List<String> LOCALES = Arrays.asList("en", "de");
+	private static final long IPV4_MAPPED_PREFIX = 0xFFFFL << 32;
+	
+	@Test
+	void findsRangeBoundsAndMissesAroundThem() throws IOException {
+		List<long[]> ranges = new ArrayList<>();
+		// Edges of the IPv4 and IPv6 spaces, unaligned ranges and a run of random ones
+		ranges.add(range("0.0.0.0", "0.255.255.255"));
+		ranges.add(range("1.2.3.4", "1.2.3.200"));
+		ranges.add(range("10.0.0.0", "10.255.255.255"));
+		ranges.add(range("192.168.1.7", "192.168.3.9"));
+		ranges.add(range("223.255.255.0", "255.255.255.255"));
+		ranges.add(range("2001:db8::5", "2001:db8::1:3"));
+		ranges.add(range("2a00::", "2a00:0:ffff:ffff:ffff:ffff:ffff:ffff"));
+		ranges.add(range("ffff:ffff:ffff:ffff::", "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"));
+		Random random = new Random(1);
+		long[] ipv4 = key("100.0.0.0");
+		long[] ipv6 = key("2c00::");
+		for (int i = 0; i < 200; i++) {
+			ranges.add(randomRange(ipv4, random));
+			ranges.add(randomRange(ipv6, random));
+		}
+		ranges.sort((a, b) -> a[0] != b[0] ? Long.compareUnsigned(a[0], b[0]) : Long.compareUnsigned(a[1], b[1]));
+		MmdbWriter writer = new MmdbWriter(MmdbRecords.DATABASE_TYPE, LOCALES, "Test");
+		for (int i = 0; i < ranges.size(); i++) {
+			long[] range = ranges.get(i);
+			writer.insert(range[0], range[1], range[2], range[3], record(i));
+		}
+		MmdbReader reader = write(writer);
+		assertEquals(6, reader.getIpVersion());
+		assertEquals(MmdbRecords.DATABASE_TYPE, reader.getDatabaseType());
+		assertEquals(LOCALES, reader.getLanguages());
+		for (int i = 0; i < ranges.size(); i++) {
+			long[] range = ranges.get(i);
+			String message = "range " + i;
+			assertEquals(record(i), read(reader, range[0], range[1]), message);
+			assertEquals(record(i), read(reader, range[2], range[3]), message);
+			if (range[0] != 0 || range[1] != 0) {
+				long[] before = decrement(range[0], range[1]);
+				assertEquals(-1, reader.find(before[0], before[1]), message);
+			}
+			if (range[2] != -1L || range[3] != -1L) {
+				long[] after = increment(range[2], range[3]);
+				assertEquals(-1, reader.find(after[0], after[1]), message);
+			}
+			if (isIPv4Mapped(range[0], range[1])) {
+				// MaxMind readers walk ::ffff:0:0/96 literally, the alias has to lead to the same records
+				assertEquals(reader.find(range[0], range[1]), reader.walk(range[0], range[1], 0), message);
+				assertEquals(reader.find(range[2], range[3]), reader.walk(range[2], range[3], 0), message);
+				assertEquals(reader.find(range[0], range[1]), reader.walk(0, range[1] & 0xFFFFFFFFL, 0), message);
+			}
+		}
+	}
+	
+	@Test
+	void rejectsOverlappingRanges() {
+		long[] first = range("10.0.0.0", "10.0.0.255");
+		long[] second = range("10.0.0.128", "10.0.1.0");
+		MmdbWriter writer = new MmdbWriter(MmdbRecords.DATABASE_TYPE, LOCALES, null)
+				.insert(first[0], first[1], first[2], first[3], record(0));
+		assertThrows(IllegalArgumentException.class, () ->
+				writer.insert(second[0], second[1], second[2], second[3], record(1)));
+	}
+	
+	@Test
+	void convertsBlocksToRecordsAndBack() throws IOException {
+		GeoIPLocationStore locations = GeoIPLocationStore.builder()
+				.add("en", -11, null, GeoIPLocationLevel.CONTINENT, "Europe", "EU", null, null)
+				.add("de", -11, null, GeoIPLocationLevel.CONTINENT, "Europa", "EU", null, null)
+				.add("en", 2921044, -11L, GeoIPLocationLevel.COUNTRY, "Germany", "DE", true, "Europe/Berlin")
+				.add("de", 2921044, -11L, GeoIPLocationLevel.COUNTRY, "Deutschland", "DE", true, "Europe/Berlin")
+				.add("en", -12, 2921044L, GeoIPLocationLevel.SUBDIVISION_1, "Bavaria", "BY", true, "Europe/Berlin")
+				.add("de", -12, 2921044L, GeoIPLocationLevel.SUBDIVISION_1, "Bayern", "BY", true, "Europe/Berlin")
+				.add("en", 2867714, -12L, GeoIPLocationLevel.CITY, "Munich", null, true, "Europe/Berlin")
+				.add("de", 2867714, -12L, GeoIPLocationLevel.CITY, "M\u00FCnchen", null, true, "Europe/Berlin")
+				.build();
+		long[] city = range("1.2.3.0", "1.2.3.255");
+		long[] unknown = range("2001:db8::", "2001:db8::ffff");
+		GeoIPBlock cityBlock = GeoIPBlock.builder()
+				.locationId(2867714L)
+				.postalCode("80331")
+				.latitude(48.1374)
+				.longitude(11.5755)
+				.accuracyRadius(20)
+				.isAnonymousProxy(true)
+				.isSatelliteProvider(false)
+				.build();
+		GeoIPBlock unknownBlock = GeoIPBlock.builder().accuracyRadius(1000).build();
+		Map<String, Object> record = MmdbRecords.toRecord(cityBlock, LOCALES, locations);
+		// Synthetic ids don't fit the uint32 geoname_id, those levels go without one
+		assertFalse(((Map<?, ?>) record.get("continent")).containsKey("geoname_id"));
+		assertEquals(2921044, ((Map<?, ?>) record.get("country")).get("geoname_id"));
+		MmdbReader reader = write(new MmdbWriter(MmdbRecords.DATABASE_TYPE, LOCALES, null)
+				.insert(city[0], city[1], city[2], city[3], record)
+				.insert(unknown[0], unknown[1], unknown[2], unknown[3],
+						MmdbRecords.toRecord(unknownBlock, LOCALES, locations)));
+		
+		GeoIPLocationDTO chain = GeoIPLocationDTO.builder()
+				.id(2867714L)
+				.level(GeoIPLocationLevel.CITY)
+				.name("M\u00FCnchen")
+				.parent(GeoIPLocationDTO.builder()
+						.level(GeoIPLocationLevel.SUBDIVISION_1)
+						.name("Bayern")
+						.code("BY")
+						.parent(GeoIPLocationDTO.builder()
+								.id(2921044L)
+								.level(GeoIPLocationLevel.COUNTRY)
+								.name("Deutschland")
+								.code("DE")
+								.parent(GeoIPLocationDTO.builder()
+										.level(GeoIPLocationLevel.CONTINENT)
+										.name("Europa")
+										.code("EU")
+										.build())
+								.build())
+						.build())
+				.build();
+		GeoIPAddressDTO.GeoIPAddressDTOBuilder expected = GeoIPAddressDTO.builder()
+				.address("1.2.3.4")
+				.localeCode("de")
+				.postalCode("80331")
+				.latitude(48.1374)
+				.longtiude(11.5755)
+				.accuracyRadius(20)
+				.isAnonymousProxy(true)
+				.isSatelliteProvider(false);
+		Object value = read(reader, city[0], city[1] + 4);
+		assertEquals(
+				expected.isInEuropeanUnion(true).timezone("Europe/Berlin").location(chain).build(),
+				MmdbRecords.toAddress(value, "1.2.3.4", "de", true)
+		);
+		assertEquals(
+				expected.localeCode("ru").isInEuropeanUnion(null).timezone(null).location(null).build(),
+				MmdbRecords.toAddress(value, "1.2.3.4", "ru", false)
+		);
+		assertEquals(
+				GeoIPAddressDTO.builder()
+						.address("2001:db8::1")
+						.localeCode("en")
+						.accuracyRadius(1000)
+						.isAnonymousProxy(false)
+						.isSatelliteProvider(false)
+						.build(),
+				MmdbRecords.toAddress(read(reader, unknown[0], unknown[1] + 1), "2001:db8::1", "en", true)
+		);
+	}
+	
+	private static MmdbReader write(MmdbWriter writer) throws IOException {
+		Path path = Files.createTempFile("geoip_", ".mmdb");
+		try {
+			try (OutputStream output = Files.newOutputStream(path)) {
+				writer.write(output);
+			}
+			return new MmdbReader(path);
+		} finally {
+			Files.delete(path);
+		}
+	}
+	
+	private static Object read(MmdbReader reader, long high, long low) {
+		int offset = reader.find(high, low);
+		assertNotEquals(-1, offset);
+		return reader.read(offset);
+	}
+	
+	// Strings are long enough to be stored once and referenced, the nested map is the same for every record
+	private static Map<String, Object> record(int index) {
+		Map<String, Object> record = new LinkedHashMap<>();
+		record.put("index", (long) index);
+		record.put("name", "Range " + index);
+		record.put("shared", Collections.singletonMap("description", "Shared between records"));
+		return record;
+	}
+	
+	// Starts a random gap after the given address and moves the address past the range
+	private static long[] randomRange(long[] next, Random random) {
+		long[] start = increment(next[0], next[1] + random.nextInt(1000));
+		long[] stop = increment(start[0], start[1] + random.nextInt(100000));
+		next[0] = stop[0];
+		next[1] = stop[1] + 1;
+		return new long[] {start[0], start[1], stop[0], stop[1]};
+	}
+	
+	private static long[] range(String start, String stop) {
+		long[] startKey = key(start);
+		long[] stopKey = key(stop);
+		return new long[] {startKey[0], startKey[1], stopKey[0], stopKey[1]};
+	}
+	
+	private static long[] key(String address) {
+		long[] key = new long[2];
+		if (!IPAddressParser.parse(address, key)) throw new IllegalArgumentException(address);
+		return key;
+	}
+	
+	private static long[] increment(long high, long low) {
+		return new long[] {low == -1L ? high + 1 : high, low + 1};
+	}
+	
+	private static long[] decrement(long high, long low) {
+		return new long[] {low == 0 ? high - 1 : high, low - 1};
+	}
+	
+	private static boolean isIPv4Mapped(long high, long low) {
+		return high == 0 && (low & ~0xFFFFFFFFL) == IPV4_MAPPED_PREFIX;
+	}
+}
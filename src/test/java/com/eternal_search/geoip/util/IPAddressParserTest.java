@@ -0,0 +1,131 @@
+package com.eternal_search.geoip.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IPAddressParserTest {
+	@Test
+	void mapsIPv4Addresses() {
+		assertArrayEquals(new long[] { 0, 0xFFFF01020304L }, key("1.2.3.4"));
+		assertArrayEquals(new long[] { 0, 0xFFFF00000000L }, key("0.0.0.0"));
+		assertArrayEquals(new long[] { 0, 0xFFFFFFFFFFFFL }, key("255.255.255.255"));
+		assertEquals(IPAddressParser.IPV4_BITS, IPAddressParser.parse("1.2.3.4", 0, 7, new long[2]));
+	}
+	
+	@Test
+	void readsFullIPv6Addresses() {
+		assertArrayEquals(
+				new long[] { 0x0001000200030004L, 0x0005000600070008L },
+				key("1:2:3:4:5:6:7:8")
+		);
+		assertArrayEquals(
+				new long[] { 0x20010DB885A30000L, 0x00008A2E03707334L },
+				key("2001:0DB8:85a3:0000:0000:8A2E:0370:7334")
+		);
+		assertEquals(IPAddressParser.IPV6_BITS, IPAddressParser.parse("[::1]", 1, 4, new long[2]));
+	}
+	
+	@Test
+	void expandsCompressedGroups() {
+		assertArrayEquals(new long[] { 0, 0 }, key("::"));
+		assertArrayEquals(new long[] { 0, 1 }, key("::1"));
+		assertArrayEquals(new long[] { 0, 0x0001000200030004L }, key("::1:2:3:4"));
+		assertArrayEquals(new long[] { 0x0001000000000000L, 0 }, key("1::"));
+		assertArrayEquals(new long[] { 0x0001000200030004L, 0 }, key("1:2:3:4::"));
+		assertArrayEquals(new long[] { 0x20010DB800000000L, 0x0000FF0000428329L }, key("2001:db8::ff00:42:8329"));
+		assertArrayEquals(new long[] { 0x0001000200030000L, 0x0005000600070008L }, key("1:2:3::5:6:7:8"));
+		assertArrayEquals(new long[] { 0x0001000000000000L, 0x0000000000000008L }, key("1::8"));
+	}
+	
+	@Test
+	void readsEmbeddedIPv4Addresses() {
+		assertArrayEquals(new long[] { 0, 0x01020304L }, key("::1.2.3.4"));
+		assertArrayEquals(new long[] { 0, 0xFFFF01020304L }, key("::ffff:1.2.3.4"));
+		assertArrayEquals(new long[] { 0x0064FF9B00000000L, 0xC0000221L }, key("64:ff9b::192.0.2.33"));
+		assertArrayEquals(
+				new long[] { 0x0001000200030004L, 0x0005000601020304L },
+				key("1:2:3:4:5:6:1.2.3.4")
+		);
+	}
+	
+	@Test
+	void rejectsMalformedAddresses() {
+		String[] addresses = {
+				"",
+				":",
+				":::",
+				":1::",
+				"1:2:3:4:5:6:7:8:9",
+				"1:2:3:4:5:6:7",
+				"1::2::3",
+				"::1::",
+				"1:2:3:4:5:6:7:",
+				"1::2:",
+				"1:2:3:4:5:6:7:8::",
+				"::1:2:3:4:5:6:7:8",
+				"12345::",
+				"1:2:3:4:5:6:7:10000",
+				"1:2:3:4:5:6:7:1.2.3.4",
+				"::1.2.3",
+				"::ffff:1.2.3.04",
+				"g::",
+				"01.2.3.4",
+				"1.2.3.04",
+				"1.02.3.4",
+				"1.2.3.256",
+				"1.2.3",
+				"1.2.3.4.5",
+				"1.2.3.4 ",
+				"1..2.3",
+		};
+		for (String address : addresses) {
+			assertFalse(IPAddressParser.parse(address, new long[2]), address);
+			assertEquals(IPAddressParser.INVALID, IPAddressParser.parse(address, 0, address.length(), new long[2]));
+		}
+	}
+	
+	@Test
+	void masksNetworks() {
+		assertNetwork("::/0", 0, 0, -1L, -1L);
+		assertNetwork(
+				"2001:db8:1:2:3:4:5:6/64",
+				0x20010DB800010002L, 0,
+				0x20010DB800010002L, -1L
+		);
+		assertNetwork(
+				"2001:db8:1:2:3:4:5:6/128",
+				0x20010DB800010002L, 0x0003000400050006L,
+				0x20010DB800010002L, 0x0003000400050006L
+		);
+		assertNetwork("2001:db8::/33", 0x20010DB800000000L, 0, 0x20010DB87FFFFFFFL, -1L);
+		assertNetwork("1.2.3.4/0", 0, 0xFFFF00000000L, 0, 0xFFFFFFFFFFFFL);
+		assertNetwork("1.2.3.4/24", 0, 0xFFFF01020300L, 0, 0xFFFF010203FFL);
+		assertNetwork("1.2.3.4/32", 0, 0xFFFF01020304L, 0, 0xFFFF01020304L);
+	}
+	
+	@Test
+	void rejectsMalformedNetworks() {
+		String[] networks = { "1.2.3.4", "1.2.3.4/", "1.2.3.4/33", "1.2.3.4/100", "::/129", "::/1000", "::/a", "1.2.3/8" };
+		for (String network : networks) {
+			assertFalse(IPAddressParser.parseNetwork(network, new long[2], new long[2]), network);
+		}
+	}
+	
+	private static long[] key(String address) {
+		long[] key = new long[2];
+		assertTrue(IPAddressParser.parse(address, key), address);
+		return key;
+	}
+	
+	private static void assertNetwork(String network, long startHigh, long startLow, long stopHigh, long stopLow) {
+		long[] start = new long[2];
+		long[] stop = new long[2];
+		assertTrue(IPAddressParser.parseNetwork(network, start, stop), network);
+		assertArrayEquals(new long[] { startHigh, startLow }, start, network);
+		assertArrayEquals(new long[] { stopHigh, stopLow }, stop, network);
+	}
+}
@@ -0,0 +1,350 @@
+package com.eternal_search.geoip.maxmind;
+
+import com.eternal_search.geoip.maxmind.model.MaxMindBlock;
+import com.eternal_search.geoip.maxmind.model.MaxMindLocation;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.extern.jbosslog.JBossLog;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Writes deterministic GeoLite2-City-CSV look-alike archives, so imports can be exercised without MaxMind downloads.
+// Networks are CIDR aligned and every other slot is left empty, so both hits and misses can be generated.
+// Locations form a continent / country / subdivision 1 / subdivision 2 / city hierarchy cut to the requested depth.
+@Getter
+@JBossLog
+public class MaxMindDatasetGenerator {
+	public static final int MIN_DEPTH = 2;
+	public static final int MAX_DEPTH = 5;
+	public static final String BLOCKS_HEADER = "network,geoname_id,registered_country_geoname_id," +
+			"represented_country_geoname_id,is_anonymous_proxy,is_satellite_provider," +
+			"postal_code,latitude,longitude,accuracy_radius";
+	public static final String LOCATIONS_HEADER = "geoname_id,locale_code,continent_code,continent_name," +
+			"country_iso_code,country_name,subdivision_1_iso_code,subdivision_1_name," +
+			"subdivision_2_iso_code,subdivision_2_name,city_name,metro_code,time_zone,is_in_european_union";
+	private static final String ARCHIVE_DIRECTORY = "GeoLite2-City-CSV_20201229/";
+	private static final long IPV4_FIRST = 1L << 24;
+	private static final long IPV4_SPACE = (224L << 24) - IPV4_FIRST;
+	private static final long IPV6_PREFIX = 0x2A00L << 48;
+	private static final int IPV6_NETWORK_SHIFT = 17;
+	// Number of distinct continents, countries and subdivisions, the leaf level is sized by locationCount
+	private static final int[] LEVEL_SIZES = {7, 250, 2500, 5000};
+	private static final String[] CONTINENT_CODES = {"AF", "AN", "AS", "EU", "NA", "OC", "SA"};
+	private static final long COUNTRY_ID_BASE = 1000;
+	private static final long LEAF_ID_BASE = 1000000;
+	private static final int TIMEZONES = 40;
+	
+	private final int ipv4Blocks;
+	private final int ipv6Blocks;
+	private final int depth;
+	private final int locationCount;
+	private final List<String> locales;
+	private final long seed;
+	private final long ipv4Step;
+	
+	@Builder
+	private MaxMindDatasetGenerator(
+			Integer ipv4Blocks,
+			Integer ipv6Blocks,
+			Integer depth,
+			Integer locationCount,
+			List<String> locales,
+			Long seed
+	) {
+		this.ipv4Blocks = ipv4Blocks != null ? ipv4Blocks : 100000;
+		this.ipv6Blocks = ipv6Blocks != null ? ipv6Blocks : this.ipv4Blocks / 3;
+		this.depth = depth != null ? depth : MAX_DEPTH;
+		// GeoLite2 City has roughly one city per 20 networks
+		this.locationCount = locationCount != null ?
+				locationCount :
+				Math.max((this.ipv4Blocks + this.ipv6Blocks) / 20, 100);
+		this.locales = locales != null ? locales : Collections.singletonList("en");
+		this.seed = seed != null ? seed : 1;
+		if (this.ipv4Blocks < 0 || this.ipv6Blocks < 0 || this.ipv4Blocks > IPV4_SPACE / 2) {
+			throw new IllegalArgumentException("Invalid block counts: " + this.ipv4Blocks + ", " + this.ipv6Blocks);
+		}
+		if (this.depth < MIN_DEPTH || this.depth > MAX_DEPTH) {
+			throw new IllegalArgumentException("Depth should be between " + MIN_DEPTH + " and " + MAX_DEPTH);
+		}
+		if (this.locationCount <= 0) {
+			throw new IllegalArgumentException("Invalid location count: " + this.locationCount);
+		}
+		ipv4Step = Long.highestOneBit(IPV4_SPACE / Math.max(this.ipv4Blocks, 1));
+	}
+	
+	public Stream<MaxMindBlock> blocks(boolean ipv6) {
+		return IntStream.range(0, ipv6 ? ipv6Blocks : ipv4Blocks).mapToObj(index -> block(ipv6, index));
+	}
+	
+	public MaxMindBlock block(boolean ipv6, int index) {
+		long random = mix(seed, (ipv6 ? 1L << 32 : 0) | index);
+		int leaf = (int) Long.remainderUnsigned(random, locationCount);
+		MaxMindBlock block = new MaxMindBlock();
+		block.setNetwork(ipv6 ?
+				formatIPv6(ipv6NetworkHigh(index), 0) + "/48" :
+				formatIPv4(IPV4_FIRST + index * ipv4Step) + "/" + (33 - Long.numberOfTrailingZeros(ipv4Step)));
+		long countryId = COUNTRY_ID_BASE + ancestor(leaf, 1);
+		// Some networks are only known at the country level
+		block.setGeonameId(depth > MIN_DEPTH && (random >>> 32) % 10 == 0 ? countryId : leafId(leaf));
+		block.setRegisteredCountryGeonameId(countryId);
+		block.setIsAnonymousProxy((random >>> 40) % 1000 == 0);
+		block.setIsSatelliteProvider((random >>> 44) % 5000 == 0);
+		if ((random >>> 56) % 3 != 0) {
+			block.setPostalCode(String.valueOf(10000 + leaf % 90000));
+		}
+		long coordinates = mix(random, index);
+		block.setLatitude(((coordinates >>> 32) % 1800000 - 900000) / 10000.0);
+		block.setLongitude(((coordinates & 0xFFFFFFFFL) % 3600000 - 1800000) / 10000.0);
+		block.setAccuracyRadius(1 + (int) ((coordinates >>> 20) % 1000));
+		return block;
+	}
+	
+	// Country rows come first (unless countries are the leaves), like in the real files
+	public Stream<MaxMindLocation> locations(String localeCode) {
+		Stream<MaxMindLocation> countries = depth > MIN_DEPTH ?
+				IntStream.range(0, LEVEL_SIZES[1]).mapToObj(country -> location(localeCode, country, 2)) :
+				Stream.empty();
+		return Stream.concat(
+				countries,
+				IntStream.range(0, locationCount).mapToObj(leaf -> location(localeCode, leaf, depth))
+		);
+	}
+	
+	private MaxMindLocation location(String localeCode, int index, int levels) {
+		int[] path = new int[levels];
+		path[levels - 1] = index;
+		for (int level = levels - 2; level >= 0; level--) {
+			path[level] = path[level + 1] % LEVEL_SIZES[level];
+		}
+		MaxMindLocation location = new MaxMindLocation();
+		location.setGeonameId(levels == 2 ? COUNTRY_ID_BASE + index : leafId(index));
+		location.setLocaleCode(localeCode);
+		location.setContinentCode(CONTINENT_CODES[path[0]]);
+		location.setContinentName(localize(localeCode, "Continent " + path[0]));
+		location.setCountryIsoCode(isoCode(path[1]));
+		// Real country names contain commas, so they have to be quoted
+		location.setCountryName(localize(localeCode, "Country " + path[1] + ", Republic of"));
+		location.setIsInEuropeanUnion(path[0] == 3 && path[1] % 3 == 0);
+		location.setTimeZone("Zone/Area_" + path[1] % TIMEZONES);
+		if (levels > 2) {
+			location.setSubdivision1IsoCode("S" + path[2]);
+			location.setSubdivision1Name(localize(localeCode, "Region " + path[2]));
+		}
+		if (levels > 3) {
+			location.setSubdivision2IsoCode("D" + path[3]);
+			location.setSubdivision2Name(localize(localeCode, "District " + path[3]));
+		}
+		if (levels > 4) {
+			location.setCityName(localize(localeCode, index % 50 == 0 ?
+					"\"Old\" Town " + index + ", Upper" :
+					"City " + index));
+			if (index % 10 == 0) {
+				location.setMetroCode(String.valueOf(500 + index % 300));
+			}
+		}
+		return location;
+	}
+	
+	private long leafId(int leaf) {
+		return depth == MIN_DEPTH ? COUNTRY_ID_BASE + leaf : LEAF_ID_BASE + leaf;
+	}
+	
+	private int ancestor(int leaf, int level) {
+		int index = leaf;
+		for (int current = depth - 2; current >= level; current--) {
+			index %= LEVEL_SIZES[current];
+		}
+		return index;
+	}
+	
+	private static String localize(String localeCode, String name) {
+		return "en".equals(localeCode) ? name : name + " \u2013 " + localeCode;
+	}
+	
+	private static String isoCode(int index) {
+		StringBuilder code = new StringBuilder(3);
+		do {
+			code.append((char) ('A' + index % 26));
+			index /= 26;
+		} while (code.length() < 2 || index > 0);
+		return code.reverse().toString();
+	}
+	
+	// Address in the given block (or in the empty slot after it), the offset is picked by the random value
+	public String address(boolean ipv6, int index, boolean hit, long random) {
+		if (ipv6) {
+			long high = ipv6NetworkHigh(index) | (hit ? 0 : 1L << 16) | (random & 0xFFFF);
+			return formatIPv6(high, mix(random, index));
+		}
+		long half = ipv4Step / 2;
+		return formatIPv4(IPV4_FIRST + index * ipv4Step + (hit ? 0 : half) + Long.remainderUnsigned(random, half));
+	}
+	
+	private static long ipv6NetworkHigh(int index) {
+		return IPV6_PREFIX | ((long) index << IPV6_NETWORK_SHIFT);
+	}
+	
+	// SplitMix64 finalizer, gives every row its own reproducible random bits
+	private static long mix(long seed, long index) {
+		long value = seed + index * 0x9E3779B97F4A7C15L;
+		value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+		value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+		return value ^ (value >>> 31);
+	}
+	
+	private static String formatIPv4(long address) {
+		return (address >>> 24 & 0xFF) + "." + (address >>> 16 & 0xFF) + "." + (address >>> 8 & 0xFF) + "." +
+				(address & 0xFF);
+	}
+	
+	private static String formatIPv6(long high, long low) {
+		StringBuilder builder = new StringBuilder(39);
+		for (int group = 0; group < 8; group++) {
+			long half = group < 4 ? high : low;
+			if (group > 0) builder.append(':');
+			builder.append(Long.toHexString(half >>> (48 - (group % 4) * 16) & 0xFFFF));
+		}
+		return builder.toString();
+	}
+	
+	public void writeBlocks(Writer writer, boolean ipv6) throws IOException {
+		writer.write(BLOCKS_HEADER);
+		writer.write('\n');
+		StringBuilder line = new StringBuilder(128);
+		for (int index = 0; index < (ipv6 ? ipv6Blocks : ipv4Blocks); index++) {
+			MaxMindBlock block = block(ipv6, index);
+			line.setLength(0);
+			line.append(block.getNetwork()).append(',')
+					.append(block.getGeonameId()).append(',')
+					.append(block.getRegisteredCountryGeonameId()).append(',')
+					.append(',')
+					.append(block.getIsAnonymousProxy() ? '1' : '0').append(',')
+					.append(block.getIsSatelliteProvider() ? '1' : '0').append(',');
+			appendField(line, block.getPostalCode());
+			line.append(block.getLatitude()).append(',')
+					.append(block.getLongitude()).append(',')
+					.append(block.getAccuracyRadius()).append('\n');
+			writer.append(line);
+		}
+	}
+	
+	public void writeLocations(Writer writer, String localeCode) throws IOException {
+		writer.write(LOCATIONS_HEADER);
+		writer.write('\n');
+		StringBuilder line = new StringBuilder(256);
+		Iterator<MaxMindLocation> locations = locations(localeCode).iterator();
+		while (locations.hasNext()) {
+			MaxMindLocation location = locations.next();
+			line.setLength(0);
+			line.append(location.getGeonameId()).append(',');
+			appendField(line, location.getLocaleCode());
+			appendField(line, location.getContinentCode());
+			appendField(line, location.getContinentName());
+			appendField(line, location.getCountryIsoCode());
+			appendField(line, location.getCountryName());
+			appendField(line, location.getSubdivision1IsoCode());
+			appendField(line, location.getSubdivision1Name());
+			appendField(line, location.getSubdivision2IsoCode());
+			appendField(line, location.getSubdivision2Name());
+			appendField(line, location.getCityName());
+			appendField(line, location.getMetroCode());
+			appendField(line, location.getTimeZone());
+			line.append(location.getIsInEuropeanUnion() ? '1' : '0').append('\n');
+			writer.append(line);
+		}
+	}
+	
+	private static void appendField(StringBuilder line, String value) {
+		if (value != null) {
+			if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0) {
+				line.append('"').append(value.replace("\"", "\"\"")).append('"');
+			} else {
+				line.append(value);
+			}
+		}
+		line.append(',');
+	}
+	
+	// Entry names follow the GeoLite2-City-<Type>-<Subtype>.csv convention MaxMindUpdater relies on
+	public void writeArchive(OutputStream outputStream) throws IOException {
+		ZipOutputStream zip = new ZipOutputStream(outputStream);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(zip, StandardCharsets.UTF_8), 1 << 16);
+		zip.putNextEntry(new ZipEntry(ARCHIVE_DIRECTORY + "GeoLite2-City-Blocks-IPv4.csv"));
+		writeBlocks(writer, false);
+		writer.flush();
+		zip.putNextEntry(new ZipEntry(ARCHIVE_DIRECTORY + "GeoLite2-City-Blocks-IPv6.csv"));
+		writeBlocks(writer, true);
+		writer.flush();
+		for (String localeCode : locales) {
+			zip.putNextEntry(new ZipEntry(ARCHIVE_DIRECTORY + "GeoLite2-City-Locations-" + localeCode + ".csv"));
+			writeLocations(writer, localeCode);
+			writer.flush();
+		}
+		zip.finish();
+	}
+	
+	// Usage: [--ipv4-blocks=N] [--ipv6-blocks=N] [--depth=N] [--locations=N] [--locales=en,de] [--seed=N] <output.zip>
+	public static void main(String[] args) throws IOException {
+		MaxMindDatasetGeneratorBuilder builder = builder();
+		Path output = null;
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			String name = separator >= 0 ? arg.substring(0, separator) : arg;
+			String value = separator >= 0 ? arg.substring(separator + 1) : null;
+			switch (name) {
+				case "--ipv4-blocks":
+					builder.ipv4Blocks(Integer.valueOf(value));
+					break;
+				case "--ipv6-blocks":
+					builder.ipv6Blocks(Integer.valueOf(value));
+					break;
+				case "--depth":
+					builder.depth(Integer.valueOf(value));
+					break;
+				case "--locations":
+					builder.locationCount(Integer.valueOf(value));
+					break;
+				case "--locales":
+					builder.locales(Arrays.asList(value.split(",")));
+					break;
+				case "--seed":
+					builder.seed(Long.valueOf(value));
+					break;
+				default:
+					if (name.startsWith("--") || output != null) {
+						throw new IllegalArgumentException("Unexpected argument: " + arg);
+					}
+					output = Paths.get(arg);
+			}
+		}
+		if (output == null) {
+			throw new IllegalArgumentException("Output file is required");
+		}
+		MaxMindDatasetGenerator generator = builder.build();
+		long startTime = System.nanoTime();
+		try (OutputStream outputStream = Files.newOutputStream(output)) {
+			generator.writeArchive(outputStream);
+		}
+		log.infof(
+				"Generated %s IPv4 and %s IPv6 blocks, %s locations in %s locales to %s (%s bytes) in %s ms",
+				generator.getIpv4Blocks(), generator.getIpv6Blocks(), generator.getLocationCount(),
+				generator.getLocales().size(), output, Files.size(output), (System.nanoTime() - startTime) / 1000000
+		);
+	}
+}